@@ -28,6 +28,16 @@ public interface BaseTransaction {
      */
     void createTable(Schema s, String tableName) throws DatabaseException;
 
+    /**
+     * Create a new table in this database stored in pages of pageSize bytes.
+     *
+     * @param s the table schema
+     * @param tableName the name of the table
+     * @param pageSize the page size of the table's file
+     * @throws DatabaseException
+     */
+    void createTable(Schema s, String tableName, int pageSize) throws DatabaseException;
+
     /**
      * Create a new table in this database with an index on each of the given column names.
      * @param s the table schema
@@ -38,6 +48,18 @@ public interface BaseTransaction {
     void createTableWithIndices(Schema s, String tableName,
                                 List<String> indexColumns) throws DatabaseException;
 
+    /**
+     * Create a new table in this database with an index on each of the given column names,
+     * storing the table and its indices in pages of pageSize bytes.
+     * @param s the table schema
+     * @param tableName the name of the table
+     * @param indexColumns the list of unique columnNames on the maintain an index on
+     * @param pageSize the page size of the table's and indices' files
+     * @throws DatabaseException
+     */
+    void createTableWithIndices(Schema s, String tableName, List<String> indexColumns,
+                                int pageSize) throws DatabaseException;
+
     /**
      * Delete a table in this database.
      *
@@ -109,6 +131,10 @@ public interface BaseTransaction {
 
     RecordId addRecord(String tableName, List<DataBox> values) throws DatabaseException;
 
+    long bulkInsert(String tableName, Iterator<List<DataBox>> rows) throws DatabaseException;
+
+    int compactTable(String tableName, int maxPages) throws DatabaseException;
+
     int getNumMemoryPages() throws DatabaseException;
 
     RecordId deleteRecord(String tableName, RecordId rid)  throws DatabaseException;
@@ -5,16 +5,22 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.stream.StreamSupport;
 
 //import com.sun.xml.internal.rngom.parse.host.Base;
 import edu.berkeley.cs186.database.common.BacktrackingIterator;
 import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.concurrency.*;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
 import edu.berkeley.cs186.database.databox.Type;
 import edu.berkeley.cs186.database.index.BPlusTree;
 import edu.berkeley.cs186.database.index.BPlusTreeException;
+import edu.berkeley.cs186.database.io.BufferPool;
 import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.io.PageAllocator;
+import edu.berkeley.cs186.database.io.PageStore;
 import edu.berkeley.cs186.database.query.QueryPlan;
 import edu.berkeley.cs186.database.query.QueryPlanException;
 import edu.berkeley.cs186.database.query.SortOperator;
@@ -27,6 +33,15 @@ import edu.berkeley.cs186.database.table.stats.TableStats;
 import edu.berkeley.cs186.database.io.PageAllocator.PageIterator;
 
 public class Database {
+    // The memory the pages of a temporary table may take before they are spilled to its file.
+    public static final long DEFAULT_TEMP_TABLE_SPILL_BYTES = 256 * Page.pageSize;
+
+    // The fill factor of the leaves of an index built by bulkInsert.
+    public static final float BULK_INSERT_INDEX_FILL_FACTOR = 0.9f;
+
+    // The number of pages of rows bulkInsert adds before it updates the indices.
+    public static final int DEFAULT_BULK_INSERT_BATCH_PAGES = 64;
+
     private Map<String, Table> tableLookup;
     private Map<String, BPlusTree> indexLookup;
     private Map<String, List<String>> tableIndices;
@@ -34,6 +49,9 @@ public class Database {
     private String fileDir;
     private LockManager lockManager;
     private int numMemoryPages;
+    private PageStore.Factory pageStore;
+    private volatile PageStore.Factory tempPageStore;
+    private volatile int bulkInsertBatchPages;
 
     /**
      * Creates a new database with locking disabled.
@@ -66,7 +84,48 @@ public class Database {
      */
     public Database(String fileDir, int numMemoryPages, LockManager lockManager)
     throws DatabaseException {
+        this(fileDir, numMemoryPages, lockManager, PageStore.MMAP);
+    }
+
+    /**
+     * Creates a new database whose pages are read into a buffer pool with a fixed
+     * memory budget. The pool's frames are carved out of a single off-heap arena of
+     * bufferPoolBytes bytes, allocated up front, and pages are copied in and out of
+     * it with PageStore.CHANNEL. The buffer pool is shared by every database in the
+     * process, so this replaces it for all of them.
+     *
+     * @param fileDir the directory to put the table files in
+     * @param numMemoryPages the number of pages of memory Database Operations should use when executing Queries
+     * @param lockManager the lock manager
+     * @param bufferPoolBytes the size of the buffer pool in bytes
+     * @throws DatabaseException
+     */
+    public Database(String fileDir, int numMemoryPages, LockManager lockManager,
+                    long bufferPoolBytes) throws DatabaseException {
+        this(fileDir, numMemoryPages, lockManager, installBufferPool(bufferPoolBytes));
+    }
+
+    private static PageStore.Factory installBufferPool(long bufferPoolBytes) {
+        PageAllocator.setBufferPool(BufferPool.withMemoryBudget(bufferPoolBytes));
+        return PageStore.CHANNEL;
+    }
+
+    /**
+     * Creates a new database whose tables and indices read and write their pages
+     * through pageStore.
+     *
+     * @param fileDir the directory to put the table files in
+     * @param numMemoryPages the number of pages of memory Database Operations should use when executing Queries
+     * @param lockManager the lock manager
+     * @param pageStore the page I/O backend, e.g. PageStore.MMAP or PageStore.CHANNEL
+     * @throws DatabaseException
+     */
+    public Database(String fileDir, int numMemoryPages, LockManager lockManager,
+                    PageStore.Factory pageStore) throws DatabaseException {
         this.numMemoryPages = numMemoryPages;
+        this.pageStore = pageStore;
+        this.tempPageStore = PageStore.memory(DEFAULT_TEMP_TABLE_SPILL_BYTES);
+        this.bulkInsertBatchPages = DEFAULT_BULK_INSERT_BATCH_PAGES;
         this.fileDir = fileDir;
         numTransactions = 0;
         tableLookup = new ConcurrentHashMap<>();
@@ -91,7 +150,8 @@ public class Database {
                 int lastIndex = fName.lastIndexOf(Table.FILENAME_EXTENSION);
                 String tableName = fName.substring(0, lastIndex);
                 tableLookup.put(tableName, new Table(tableName, f.toPath().toString(),
-                                                     lockContext.childContext("table-" + tableName), initTransaction));
+                                                     lockContext.childContext("table-" + tableName), pageStore,
+                                                     initTransaction));
                 if (!tableIndices.containsKey(tableName)) {
                     tableIndices.put(tableName, new ArrayList<>());
                 }
@@ -100,7 +160,7 @@ public class Database {
                 String indexName = fName.substring(0, lastIndex);
                 String tableName = indexName.split(",", 2)[0];
                 indexLookup.put(indexName, new BPlusTree(f.toString(), getIndexContext(indexName),
-                                initTransaction));
+                                pageStore, initTransaction));
                 if (!tableIndices.containsKey(tableName)) {
                     tableIndices.put(tableName, new ArrayList<>());
                 }
@@ -145,6 +205,32 @@ public class Database {
         return tableLookup.get(tableName);
     }
 
+    /**
+     * Sets how much memory the pages of each temporary table created from now on may take
+     * before they are written out to the table's file. Temporary tables are kept in memory
+     * (see PageStore.memory) and never touch the disk while they are smaller than this.
+     *
+     * @param spillBytes the memory threshold in bytes, or 0 to write every temporary table
+     * to disk
+     */
+    public void setTempTableSpillBytes(long spillBytes) {
+        this.tempPageStore = PageStore.memory(spillBytes);
+    }
+
+    /**
+     * Sets how many pages of rows Transaction#bulkInsert adds to a table before it
+     * updates the table's indices with their entries, which bounds the number of
+     * index entries it holds in memory.
+     *
+     * @param numPages the number of pages per batch, at least 1
+     */
+    public void setBulkInsertBatchPages(int numPages) {
+        if (numPages < 1) {
+            throw new IllegalArgumentException("batch must be at least one page");
+        }
+        this.bulkInsertBatchPages = numPages;
+    }
+
     private LockContext getTableContext(String table) {
         return lockManager.databaseContext().childContext("table-" + table);
     }
@@ -153,6 +239,84 @@ public class Database {
         return lockManager.databaseContext().childContext("index-" + index);
     }
 
+    /**
+     * Returns an iterator over at most the next n elements of iter.
+     */
+    private static <T> Iterator<T> limit(Iterator<T> iter, long n) {
+        return new Iterator<T>() {
+            private long remaining = n;
+
+            public boolean hasNext() {
+                return this.remaining > 0 && iter.hasNext();
+            }
+
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                this.remaining--;
+                return iter.next();
+            }
+        };
+    }
+
+    /**
+     * Merges runs of index entries, each sorted by key, into one iterator in
+     * key order, holding only the next entry of every run. Iteration stops
+     * early at the first key that appears twice, which getDuplicate then
+     * returns.
+     */
+    private static class RunMerger implements Iterator<Pair<DataBox, RecordId>> {
+        private List<Iterator<Pair<DataBox, RecordId>>> runs;
+        // The next entry of each run that has one, with the index of its run.
+        private PriorityQueue<Pair<Pair<DataBox, RecordId>, Integer>> heads;
+        private DataBox last;
+        private DataBox duplicate;
+
+        RunMerger(List<Iterator<Pair<DataBox, RecordId>>> runs) {
+            this.runs = runs;
+            this.heads = new PriorityQueue<>(Math.max(1, runs.size()), (a, b) ->
+                                             a.getFirst().getFirst().compareTo(b.getFirst().getFirst()));
+            for (int i = 0; i < runs.size(); i++) {
+                if (runs.get(i).hasNext()) {
+                    this.heads.add(new Pair<>(runs.get(i).next(), i));
+                }
+            }
+            this.last = null;
+            this.duplicate = null;
+        }
+
+        public boolean hasNext() {
+            if (this.duplicate != null || this.heads.isEmpty()) {
+                return false;
+            }
+            DataBox key = this.heads.peek().getFirst().getFirst();
+            if (key.equals(this.last)) {
+                this.duplicate = key;
+                return false;
+            }
+            return true;
+        }
+
+        public Pair<DataBox, RecordId> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Pair<Pair<DataBox, RecordId>, Integer> head = this.heads.poll();
+            Iterator<Pair<DataBox, RecordId>> run = this.runs.get(head.getSecond());
+            if (run.hasNext()) {
+                this.heads.add(new Pair<>(run.next(), head.getSecond()));
+            }
+            this.last = head.getFirst().getFirst();
+            return head.getFirst();
+        }
+
+        /** Returns the key that stopped the merge, or null if there is none. */
+        DataBox getDuplicate() {
+            return this.duplicate;
+        }
+    }
+
     /**
      * Start a new transaction.
      *
@@ -212,6 +376,18 @@ public class Database {
          * @throws DatabaseException
          */
         public void createTable(Schema s, String tableName) throws DatabaseException {
+            createTable(s, tableName, Page.pageSize);
+        }
+
+        /**
+         * Create a new table in this database stored in pages of pageSize bytes.
+         *
+         * @param s the table schema
+         * @param tableName the name of the table
+         * @param pageSize the page size of the table's file, a multiple of Page.pageSize
+         * @throws DatabaseException
+         */
+        public void createTable(Schema s, String tableName, int pageSize) throws DatabaseException {
             // TODO(hw5): add locking
 
             LockContext tableContext = getTableContext(tableName);
@@ -226,7 +402,7 @@ public class Database {
             }
 
             Database.this.tableLookup.put(tableName, new Table(tableName, s, path.toString(), tableContext,
-                                          this));
+                                          pageSize, Database.this.pageStore, this));
             Database.this.tableIndices.put(tableName, new ArrayList<>());
         }
 
@@ -239,6 +415,21 @@ public class Database {
          */
         public void createTableWithIndices(Schema s, String tableName,
                                            List<String> indexColumns) throws DatabaseException {
+            createTableWithIndices(s, tableName, indexColumns, Page.pageSize);
+        }
+
+        /**
+         * Create a new table in this database with an index on each of the given column names.
+         * The table and its indices are stored in pages of pageSize bytes, and the indices use
+         * the largest order that fits in a page.
+         * @param s the table schema
+         * @param tableName the name of the table
+         * @param indexColumns the list of unique columnNames on the maintain an index on
+         * @param pageSize the page size of the table's and indices' files
+         * @throws DatabaseException
+         */
+        public void createTableWithIndices(Schema s, String tableName, List<String> indexColumns,
+                                           int pageSize) throws DatabaseException {
             // TODO(hw5): add locking
 
             LockContext tableContext = getTableContext(tableName);
@@ -269,7 +460,7 @@ public class Database {
                 LockUtil.requestLocks(this, tableContext, LockType.X);
             }
             Database.this.tableLookup.put(tableName, new Table(tableName, s, path.toString(), tableContext,
-                                          this));
+                                          pageSize, Database.this.pageStore, this));
             Database.this.tableIndices.put(tableName, new ArrayList<>());
             for (int i : schemaColIndex) {
                 String colName = schemaColNames.get(i);
@@ -279,7 +470,8 @@ public class Database {
                 LockContext indexContext = getIndexContext(indexName);
                 try {
                     Database.this.indexLookup.put(indexName, new BPlusTree(p.toString(), colType,
-                                                  BPlusTree.maxOrder(Page.pageSize, colType), indexContext, this));
+                                                  BPlusTree.maxOrder(pageSize, colType), indexContext,
+                                                  pageSize, Database.this.pageStore, this));
                     Database.this.tableIndices.get(tableName).add(indexName);
                 } catch (BPlusTreeException e) {
                     throw new DatabaseException(e.getMessage());
@@ -388,7 +580,7 @@ public class Database {
             }
 
             this.tempTables.put(tempTableName, new Table(tempTableName, schema, path.toString(), lockContext,
-                                this));
+                                Database.this.tempPageStore, this));
         }
 
         public boolean indexExists(String tableName, String columnName) {
@@ -484,6 +676,252 @@ public class Database {
             return rid;
         }
 
+        /**
+         * Adds every row of rows to a table, filling new pages one after the
+         * other instead of adding the rows one at a time (see
+         * Table#bulkAddRecords). The rows are added in batches of a bounded
+         * number of pages (see Database#setBulkInsertBatchPages). The index
+         * entries of each batch are sorted by key and, unless the batch is the
+         * last, written out as a run to a temporary table, so that only one
+         * batch of entries is in memory at a time.
+         *
+         * Once every row is added, each index is built once from the merged
+         * runs: an empty index is bulk loaded, and the entries are merged into
+         * the leaves of a nonempty one (see BPlusTree#merge).
+         *
+         * If a row does not match the schema or one of the keys is a
+         * duplicate, every row added by this call is deleted again, along with
+         * its index entries, and a DatabaseException is thrown.
+         *
+         * @param tableName the table to add the rows to
+         * @param rows the values of the rows to add
+         * @return the number of rows added
+         * @throws DatabaseException
+         */
+        public long bulkInsert(String tableName,
+                               Iterator<List<DataBox>> rows) throws DatabaseException {
+            assert(this.active);
+
+            Table tab = getTable(tableName);
+            if (tab == null) {
+                throw new DatabaseException("Table " + tableName + " does not exist");
+            }
+            List<String> colNames = tab.getSchema().getFieldNames();
+
+            // Resolve and lock the indices once. The runs of an index are
+            // ranges of pages of its temporary table, created on first use.
+            List<Integer> indexCols = new ArrayList<>();
+            List<BPlusTree> indices = new ArrayList<>();
+            List<List<Pair<DataBox, RecordId>>> entries = new ArrayList<>();
+            List<String> runTables = new ArrayList<>();
+            List<List<int[]>> runs = new ArrayList<>();
+            for (int i = 0; i < colNames.size(); i++) {
+                if (indexExists(tableName, colNames.get(i))) {
+                    Pair<String, BPlusTree> index = resolveIndexFromName(tableName, colNames.get(i));
+                    LockContext indexContext = getIndexContext(index.getFirst());
+                    if (!LockType.substitutable(indexContext.getGlobalLockType(this), LockType.X)) {
+                        LockUtil.requestLocks(this, indexContext, LockType.X);
+                    }
+                    indexCols.add(i);
+                    indices.add(index.getSecond());
+                    entries.add(new ArrayList<>());
+                    runTables.add(null);
+                    runs.add(new ArrayList<>());
+                }
+            }
+
+            // The pages the rows went to, in order, to delete the rows from on failure.
+            List<Integer> pageNums = new ArrayList<>();
+            BiConsumer<Record, RecordId> added = (record, rid) -> {
+                if (rid.getEntryNum() == 0) {
+                    pageNums.add(rid.getPageNum());
+                }
+                List<DataBox> values = record.getValues();
+                for (int j = 0; j < indexCols.size(); j++) {
+                    entries.get(j).add(new Pair<>(values.get(indexCols.get(j)), rid));
+                }
+            };
+
+            long batchRows = (long) Database.this.bulkInsertBatchPages * tab.getNumRecordsPerPage();
+            long count = 0;
+            try {
+                while (rows.hasNext()) {
+                    count += tab.bulkAddRecords(this, limit(rows, batchRows), added);
+                    for (int j = 0; j < indices.size(); j++) {
+                        entries.get(j).sort(Comparator.comparing(Pair::getFirst));
+                        if (!rows.hasNext()) {
+                            continue;
+                        }
+                        if (runTables.get(j) == null) {
+                            Type keyType = tab.getSchema().getFieldTypes().get(indexCols.get(j));
+                            runTables.set(j, createTempTable(new Schema(
+                                    Arrays.asList("key", "pageNum", "entryNum"),
+                                    Arrays.asList(keyType, Type.intType(), Type.intType()))));
+                        }
+                        runs.get(j).add(writeRun(getTable(runTables.get(j)), entries.get(j)));
+                        entries.get(j).clear();
+                    }
+                }
+
+                for (int j = 0; j < indices.size(); j++) {
+                    List<Iterator<Pair<DataBox, RecordId>>> sorted = new ArrayList<>();
+                    for (int[] run : runs.get(j)) {
+                        sorted.add(readRun(getTable(runTables.get(j)), run));
+                    }
+                    sorted.add(entries.get(j).iterator());
+                    RunMerger merged = new RunMerger(sorted);
+
+                    BPlusTree tree = indices.get(j);
+                    if (tree.canBulkLoad(this)) {
+                        tree.bulkLoad(this, merged, BULK_INSERT_INDEX_FILL_FACTOR);
+                    } else {
+                        tree.merge(this, merged);
+                    }
+                    if (merged.getDuplicate() != null) {
+                        throw new DatabaseException(String.format("Duplicate key %s inserted.",
+                                                    merged.getDuplicate()));
+                    }
+                    entries.set(j, null);
+                }
+            } catch (BPlusTreeException e) {
+                DatabaseException d = new DatabaseException(e.getMessage());
+                undoBulkInsert(tab, pageNums, indexCols, indices, d);
+                throw d;
+            } catch (DatabaseException | RuntimeException e) {
+                undoBulkInsert(tab, pageNums, indexCols, indices, e);
+                throw e;
+            } finally {
+                for (String runTable : runTables) {
+                    if (runTable != null) {
+                        deleteTempTable(runTable);
+                    }
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Appends the sorted index entries of a batch to the temporary table
+         * runTable, as (key, page number, entry number) records on new pages.
+         *
+         * @return the range [start, end) of the pages the run went to
+         */
+        private int[] writeRun(Table runTable, List<Pair<DataBox, RecordId>> sorted)
+        throws DatabaseException {
+            int[] run = new int[] {-1, -1};
+            Iterator<List<DataBox>> records = sorted.stream().map(e -> Arrays.asList(
+                    e.getFirst(),
+                    new IntDataBox(e.getSecond().getPageNum()),
+                    new IntDataBox(e.getSecond().getEntryNum()))).iterator();
+            runTable.bulkAddRecords(this, records, (record, rid) -> {
+                if (run[0] < 0) {
+                    run[0] = rid.getPageNum();
+                }
+                run[1] = rid.getPageNum() + 1;
+            });
+            return run;
+        }
+
+        /**
+         * Reads back a run written by writeRun, in order.
+         */
+        private Iterator<Pair<DataBox, RecordId>> readRun(Table runTable, int[] run) {
+            return StreamSupport.stream(runTable.spliterator(this, run[0], run[1]), false)
+                   .map(r -> {
+                       List<DataBox> values = r.getValues();
+                       return new Pair<>(values.get(0), new RecordId(values.get(1).getInt(),
+                                         (short) values.get(2).getInt()));
+                   }).iterator();
+        }
+
+        /**
+         * Deletes the rows that bulkInsert added to the pages pageNums, and the
+         * index entries that point at them. The rows of each page fill its
+         * slots from the first one on. Failures to undo are added to cause as
+         * suppressed exceptions.
+         */
+        private void undoBulkInsert(Table tab, List<Integer> pageNums, List<Integer> indexCols,
+                                    List<BPlusTree> indices, Exception cause) {
+            try {
+                for (int pageNum : pageNums) {
+                    for (int entryNum = 0; entryNum < tab.getNumRecordsPerPage(); entryNum++) {
+                        RecordId rid = new RecordId(pageNum, (short) entryNum);
+                        Record record;
+                        try {
+                            record = tab.deleteRecord(this, rid);
+                        } catch (DatabaseException e) {
+                            // Past the last row added to the page.
+                            break;
+                        }
+                        // An index may hold the key for another record if it rejected this one.
+                        List<DataBox> values = record.getValues();
+                        for (int j = 0; j < indices.size(); j++) {
+                            DataBox key = values.get(indexCols.get(j));
+                            Optional<RecordId> indexed = indices.get(j).get(this, key);
+                            if (indexed.isPresent() && indexed.get().equals(rid)) {
+                                indices.get(j).remove(this, key);
+                            }
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                cause.addSuppressed(e);
+            }
+        }
+
+        /**
+         * Frees up to maxPages of a table's sparsest pages by moving their
+         * records into its densest pages (see Table#compact), and points the
+         * table's indices at the records' new record ids. Compacting a large
+         * table a batch at a time, in short transactions, keeps the table
+         * available to others in between.
+         *
+         * @param tableName the table to compact
+         * @param maxPages the most pages to free
+         * @return the number of pages freed
+         * @throws DatabaseException
+         */
+        public int compactTable(String tableName, int maxPages) throws DatabaseException {
+            assert(this.active);
+
+            Table tab = getTable(tableName);
+            if (tab == null) {
+                throw new DatabaseException("Table " + tableName + " does not exist");
+            }
+            List<String> colNames = tab.getSchema().getFieldNames();
+
+            List<Integer> indexCols = new ArrayList<>();
+            List<BPlusTree> indices = new ArrayList<>();
+            for (int i = 0; i < colNames.size(); i++) {
+                if (indexExists(tableName, colNames.get(i))) {
+                    Pair<String, BPlusTree> index = resolveIndexFromName(tableName, colNames.get(i));
+                    LockContext indexContext = getIndexContext(index.getFirst());
+                    if (!LockType.substitutable(indexContext.getGlobalLockType(this), LockType.X)) {
+                        LockUtil.requestLocks(this, indexContext, LockType.X);
+                    }
+                    indexCols.add(i);
+                    indices.add(index.getSecond());
+                }
+            }
+
+            Table.RelocationListener moved = null;
+            if (!indices.isEmpty()) {
+                moved = (record, from, to) -> {
+                    List<DataBox> values = record.getValues();
+                    for (int j = 0; j < indices.size(); j++) {
+                        DataBox key = values.get(indexCols.get(j));
+                        indices.get(j).remove(this, key);
+                        try {
+                            indices.get(j).put(this, key, to);
+                        } catch (BPlusTreeException e) {
+                            throw new DatabaseException(e.getMessage());
+                        }
+                    }
+                };
+            }
+            return tab.compact(this, maxPages, moved);
+        }
+
         public int getNumMemoryPages() throws DatabaseException {
             assert(this.active);
             return Database.this.numMemoryPages;
@@ -710,15 +1148,14 @@ public class Database {
                 return;
             }
 
-            this.tempTables.get(tempTableName).close();
-            Database.this.tableLookup.remove(tempTableName);
+            this.tempTables.remove(tempTableName).close();
 
             File f = new File(Database.this.fileDir + "temp/" + tempTableName + Table.FILENAME_EXTENSION);
             f.delete();
         }
 
         private void deleteAllTempTables() {
-            Set<String> keys = tempTables.keySet();
+            Set<String> keys = new HashSet<>(tempTables.keySet());
 
             for (String tableName : keys) {
                 deleteTempTable(tableName);
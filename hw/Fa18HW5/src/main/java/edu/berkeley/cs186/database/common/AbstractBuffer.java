@@ -2,26 +2,36 @@ package edu.berkeley.cs186.database.common;
 
 import java.nio.ByteBuffer;
 
+/**
+ * A Buffer implemented on top of bulk get and put. Typed values are copied through a small
+ * scratch array, which is only allocated the first time it is needed. Subclasses that can
+ * read and write typed values directly may override the absolute typed accessors; the
+ * relative accessors are all implemented in terms of them.
+ */
 public abstract class AbstractBuffer implements Buffer {
     private int pos;
     private byte[] bytes;
     private ByteBuffer buf;
 
     protected AbstractBuffer() {
-        this.pos = 0;
-        this.bytes = new byte[8];
-        this.buf = ByteBuffer.wrap(this.bytes);
+        this(0);
     }
 
     protected AbstractBuffer(int pos) {
         this.pos = pos;
-        this.bytes = new byte[8];
-        this.buf = ByteBuffer.wrap(this.bytes);
+    }
+
+    private void scratch() {
+        if (this.bytes == null) {
+            this.bytes = new byte[8];
+            this.buf = ByteBuffer.wrap(this.bytes);
+        }
     }
 
     public abstract Buffer get(byte[] dst, int offset, int length);
 
-    public final byte get(int index) {
+    public byte get(int index) {
+        scratch();
         get(bytes, index, 1);
         return bytes[0];
     }
@@ -41,7 +51,8 @@ public abstract class AbstractBuffer implements Buffer {
         return getChar(this.pos - 1);
     }
 
-    public final char getChar(int index) {
+    public char getChar(int index) {
+        scratch();
         get(bytes, index, 1);
         return buf.getChar(0);
     }
@@ -51,7 +62,8 @@ public abstract class AbstractBuffer implements Buffer {
         return getDouble(this.pos - 8);
     }
 
-    public final double getDouble(int index) {
+    public double getDouble(int index) {
+        scratch();
         get(bytes, index, 8);
         return buf.getDouble(0);
     }
@@ -61,7 +73,8 @@ public abstract class AbstractBuffer implements Buffer {
         return getFloat(this.pos - 4);
     }
 
-    public final float getFloat(int index) {
+    public float getFloat(int index) {
+        scratch();
         get(bytes, index, 4);
         return buf.getFloat(0);
     }
@@ -71,7 +84,8 @@ public abstract class AbstractBuffer implements Buffer {
         return getInt(this.pos - 4);
     }
 
-    public final int getInt(int index) {
+    public int getInt(int index) {
+        scratch();
         get(bytes, index, 4);
         return buf.getInt(0);
     }
@@ -81,7 +95,8 @@ public abstract class AbstractBuffer implements Buffer {
         return getLong(this.pos - 8);
     }
 
-    public final long getLong(int index) {
+    public long getLong(int index) {
+        scratch();
         get(bytes, index, 8);
         return buf.getLong(0);
     }
@@ -91,7 +106,8 @@ public abstract class AbstractBuffer implements Buffer {
         return getShort(this.pos - 2);
     }
 
-    public final short getShort(int index) {
+    public short getShort(int index) {
+        scratch();
         get(bytes, index, 2);
         return buf.getShort(0);
     }
@@ -108,7 +124,8 @@ public abstract class AbstractBuffer implements Buffer {
         return put(pos - 1, b);
     }
 
-    public final Buffer put(int index, byte b) {
+    public Buffer put(int index, byte b) {
+        scratch();
         bytes[0] = b;
         return put(bytes, index, 1);
     }
@@ -118,7 +135,8 @@ public abstract class AbstractBuffer implements Buffer {
         return putChar(pos - 1, value);
     }
 
-    public final Buffer putChar(int index, char value) {
+    public Buffer putChar(int index, char value) {
+        scratch();
         buf.putChar(0, value);
         return put(bytes, index, 1);
     }
@@ -128,7 +146,8 @@ public abstract class AbstractBuffer implements Buffer {
         return putDouble(pos - 8, value);
     }
 
-    public final Buffer putDouble(int index, double value) {
+    public Buffer putDouble(int index, double value) {
+        scratch();
         buf.putDouble(0, value);
         return put(bytes, index, 8);
     }
@@ -138,7 +157,8 @@ public abstract class AbstractBuffer implements Buffer {
         return putFloat(pos - 4, value);
     }
 
-    public final Buffer putFloat(int index, float value) {
+    public Buffer putFloat(int index, float value) {
+        scratch();
         buf.putFloat(0, value);
         return put(bytes, index, 4);
     }
@@ -148,7 +168,8 @@ public abstract class AbstractBuffer implements Buffer {
         return putInt(pos - 4, value);
     }
 
-    public final Buffer putInt(int index, int value) {
+    public Buffer putInt(int index, int value) {
+        scratch();
         buf.putInt(0, value);
         return put(bytes, index, 4);
     }
@@ -158,7 +179,8 @@ public abstract class AbstractBuffer implements Buffer {
         return putLong(pos - 8, value);
     }
 
-    public final Buffer putLong(int index, long value) {
+    public Buffer putLong(int index, long value) {
+        scratch();
         buf.putLong(0, value);
         return put(bytes, index, 8);
     }
@@ -168,7 +190,8 @@ public abstract class AbstractBuffer implements Buffer {
         return putShort(pos - 2, value);
     }
 
-    public final Buffer putShort(int index, short value) {
+    public Buffer putShort(int index, short value) {
+        scratch();
         buf.putShort(0, value);
         return put(bytes, index, 2);
     }
@@ -26,12 +26,24 @@ public class Bits {
      *   - getBit(new byte[]{0b00000000, 0b00000001}, 15) == ONE
      */
     public static Bit getBit(byte[] bytes, int i) {
-        String err = String.format("bytes.length = %d; i = %d.", bytes.length, i);
-        assert (bytes.length > 0) : err;
-        assert (0 <= i && i < bytes.length * 8) : err;
+        // The messages are only formatted if an assertion fails.
+        assert (bytes.length > 0) : String.format("bytes.length = %d; i = %d.", bytes.length, i);
+        assert (0 <= i && i < bytes.length * 8) :
+            String.format("bytes.length = %d; i = %d.", bytes.length, i);
         return getBit(bytes[i / 8], i % 8);
     }
 
+    /**
+     * Get the ith bit of a byte buffer where the 0th bit is the most significant
+     * bit of the first byte read using buf.get(). Like setBit, getBit uses
+     * positioning relative to the current position of the buffer, which is left
+     * unchanged. Only the byte holding the bit is read, so with a page buffer
+     * from Page#getBuffer(transaction, lockType) no bytes are copied.
+     */
+    public static Bit getBit(Buffer buf, int i) {
+        return getBit(buf.get(buf.position() + (i / 8)), i % 8);
+    }
+
     /**
      * Set the ith bit of a byte where the 0th bit is the most significant bit
      * and the 7th bit is the least significant bit. Some examples:
@@ -82,4 +94,93 @@ public class Bits {
         b = setBit(b, i % 8, bit);
         buf.put(buf.position() + (i / 8), b);
     }
+
+    /**
+     * Count the ONE bits among the first numBits bits of a byte buffer, indexed
+     * like getBit. The bits are read a 64-bit word at a time, so the buffer
+     * must be in big-endian order, as every buffer is by default. The position
+     * of the buffer is left unchanged.
+     */
+    public static int countBits(Buffer buf, int numBits) {
+        int count = 0;
+        for (int w = 0; w << 6 < numBits; w++) {
+            count += Long.bitCount(word(buf, w, numBits));
+        }
+        return count;
+    }
+
+    /**
+     * Find the first ONE bit of a byte buffer at or after bit from and before
+     * bit numBits, indexed like getBit. Like countBits, the bits are read a
+     * word at a time. For example:
+     *
+     *   Buffer buf = ByteBuffer.wrap(new byte[]{0b00100000, 0b00000001});
+     *   nextSetBit(buf, 0, 16); // 2
+     *   nextSetBit(buf, 3, 16); // 15
+     *   nextSetBit(buf, 3, 15); // -1
+     *
+     * @return the index of the bit, or -1 if there is none
+     */
+    public static int nextSetBit(Buffer buf, int from, int numBits) {
+        if (from >= numBits) {
+            return -1;
+        }
+        int w = from >>> 6;
+        // Ignore the bits of the first word that come before from.
+        long word = word(buf, w, numBits) & (-1L >>> (from & 63));
+        while (word == 0) {
+            if (++w << 6 >= numBits) {
+                return -1;
+            }
+            word = word(buf, w, numBits);
+        }
+        return (w << 6) + Long.numberOfLeadingZeros(word);
+    }
+
+    /**
+     * Find the first ZERO bit of a byte buffer at or after bit from and before
+     * bit numBits, indexed like getBit.
+     *
+     * @return the index of the bit, or -1 if there is none
+     */
+    public static int nextClearBit(Buffer buf, int from, int numBits) {
+        if (from >= numBits) {
+            return -1;
+        }
+        int w = from >>> 6;
+        long word = ~word(buf, w, numBits) & (-1L >>> (from & 63));
+        while (word == 0) {
+            if (++w << 6 >= numBits) {
+                return -1;
+            }
+            word = ~word(buf, w, numBits);
+        }
+        // The bits past numBits read as ZERO, so they may be found first.
+        int i = (w << 6) + Long.numberOfLeadingZeros(word);
+        return i < numBits ? i : -1;
+    }
+
+    /**
+     * Read bits [64w, 64w + 64) of a byte buffer, relative to its position, as
+     * a long whose most significant bit is bit 64w. Bits at or past numBits
+     * read as ZERO, and no byte past the one holding bit numBits - 1 is read.
+     */
+    private static long word(Buffer buf, int w, int numBits) {
+        int index = buf.position() + (w << 3);
+        int numBytes = ((numBits + 7) >>> 3) - (w << 3);
+        long word;
+        if (numBytes >= 8) {
+            word = buf.getLong(index);
+        } else {
+            word = 0;
+            for (int i = 0; i < numBytes; i++) {
+                word |= (buf.get(index + i) & 0xFFL) << (56 - 8 * i);
+            }
+        }
+        int numValidBits = numBits - (w << 6);
+        if (numValidBits < 64) {
+            word &= ~(-1L >>> numValidBits);
+        }
+        return word;
+    }
 }
@@ -4,6 +4,7 @@ import edu.berkeley.cs186.database.BaseTransaction;
 import edu.berkeley.cs186.database.common.Pair;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * LockContext wraps around LockManager to provide the hierarchical structure
@@ -50,9 +51,11 @@ public class LockContext {
         }
         this.childLocksDisabled = readonly;
         this.readonly = readonly;
-        this.numChildLocks = new HashMap<>();
+        // Transactions on different threads lock children of the same context concurrently.
+        this.numChildLocks = new ConcurrentHashMap<>();
         this.capacity = 0;
-        this.children = new HashMap<>();
+        // Page read-ahead threads create page contexts concurrently with the scanning thread.
+        this.children = new ConcurrentHashMap<>();
     }
 
     /**
@@ -101,8 +104,7 @@ public class LockContext {
             if (!LockType.substitutable(parent.getLocalLockType(transaction), LockType.parentLock(lockType))) {
                 throw new InvalidLockException("");
             }
-            int val = parentContext().numChildLocks.getOrDefault(transNum, 0);
-            parentContext().numChildLocks.put(transNum, val + 1);
+            parentContext().numChildLocks.merge(transNum, 1, Integer::sum);
         }
         lockman.acquire(transaction, name, lockType);
     }
@@ -128,7 +130,7 @@ public class LockContext {
             if (child.getLocalLockType(transaction) != null) throw new InvalidLockException("");
         }
         lockman.release(transaction, name);
-        if (parent != null) parent.numChildLocks.put(transNum, parent.numChildLocks.get(transNum) - 1);
+        if (parent != null) parent.numChildLocks.merge(transNum, -1, Integer::sum);
     }
 
     /**
@@ -239,11 +241,8 @@ public class LockContext {
      * Gets the context for the child with name NAME.
      */
     public LockContext childContext(Object name) {
-        if (!this.children.containsKey(name)) {
-            this.children.put(name, new LockContext(lockman, this, name, this.childLocksDisabled ||
-                                                    this.readonly));
-        }
-        return this.children.get(name);
+        return this.children.computeIfAbsent(name, n -> new LockContext(lockman, this, n,
+                                             this.childLocksDisabled || this.readonly));
     }
 
     /**
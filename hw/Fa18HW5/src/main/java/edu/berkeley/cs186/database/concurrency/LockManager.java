@@ -25,6 +25,11 @@ import java.util.*;
  * locks at the time, the request is considered valid (because the only problem
  * with such a request would be that the transaction does not have the appropriate
  * intent locks, but that is a multigranularity concern).
+ *
+ * Transactions on different threads lock and unlock concurrently (e.g. the
+ * record operations of Table), so every method synchronizes on the lock
+ * manager. Blocking a transaction only marks it blocked; no method waits
+ * while holding the monitor.
  */
 public class LockManager {
     // These members are given as a suggestion. You are not required to use them, and may
@@ -42,7 +47,7 @@ public class LockManager {
      * Create a lock context for the database. See comments at
      * the top of this file and the top of LockContext.java for more information.
      */
-    public LockContext databaseContext() {
+    public synchronized LockContext databaseContext() {
         if (!contexts.containsKey("database")) {
             contexts.put("database", new LockContext(this, null, "database"));
         }
@@ -52,7 +57,7 @@ public class LockManager {
     /**
      * Create a lock context with no parent. Cannot be called "database".
      */
-    public LockContext orphanContext(Object name) {
+    public synchronized LockContext orphanContext(Object name) {
         if (name.equals("database")) {
             throw new IllegalArgumentException("cannot create orphan context named 'database'");
         }
@@ -74,7 +79,7 @@ public class LockManager {
      * isn't being released
      * @throws NoLockHeldException if no lock on a name in RELEASELOCKS is held by TRANSACTION
      */
-    public void acquireAndRelease(BaseTransaction transaction, ResourceName name,
+    public synchronized void acquireAndRelease(BaseTransaction transaction, ResourceName name,
                                   LockType lockType, List<ResourceName> releaseLocks)
     throws DuplicateLockRequestException, NoLockHeldException {
         boolean downgrade = false;
@@ -106,7 +111,7 @@ public class LockManager {
      * @throws DuplicateLockRequestException if a lock on NAME is held by
      * TRANSACTION
      */
-    public void acquire(BaseTransaction transaction, ResourceName name,
+    public synchronized void acquire(BaseTransaction transaction, ResourceName name,
                         LockType lockType) throws DuplicateLockRequestException {
         List<Pair<Long, Lock>> locks = new ArrayList<>();
         Long transNum = transaction.getTransNum();
@@ -146,7 +151,7 @@ public class LockManager {
      *
      * @throws NoLockHeldException if no lock on NAME is held by TRANSACTION
      */
-    public void release(BaseTransaction transaction, ResourceName name)
+    public synchronized void release(BaseTransaction transaction, ResourceName name)
     throws NoLockHeldException {
         Long transNum = transaction.getTransNum();
         if (!transactionLocks.containsKey(transNum)) throw new NoLockHeldException("NoLock");
@@ -211,7 +216,7 @@ public class LockManager {
      * from lock type A to lock type B is valid if and only if B is substitutable
      * for A, and B is not equal to A.
      */
-    public void promote(BaseTransaction transaction, ResourceName name,
+    public synchronized void promote(BaseTransaction transaction, ResourceName name,
                         LockType newLockType)
     throws DuplicateLockRequestException, NoLockHeldException, InvalidLockException {
         if (!resourceLocks.containsKey(name)) throw new NoLockHeldException("");
@@ -254,7 +259,7 @@ public class LockManager {
      * Return the type of lock TRANSACTION has on NAME, or null if no lock is
      * held.
      */
-    public LockType getLockType(BaseTransaction transaction, ResourceName name) {
+    public synchronized LockType getLockType(BaseTransaction transaction, ResourceName name) {
         if (resourceLocks.containsKey(name)) {
             List<Pair<Long, Lock>> locks = resourceLocks.get(name);
             for (Pair<Long, Lock> lock : locks) {
@@ -271,7 +276,7 @@ public class LockManager {
      * NAME, in order of acquisition. A promotion should count as acquired
      * at the original time.
      */
-    public List<Pair<Long, LockType>> getLocks(ResourceName name) {
+    public synchronized List<Pair<Long, LockType>> getLocks(ResourceName name) {
         List<Pair<Long, LockType>> list = new ArrayList<>();
         if (resourceLocks.containsKey(name)) {
             List<Pair<Long, Lock>> locks = resourceLocks.get(name);
@@ -287,7 +292,7 @@ public class LockManager {
      * TRANSACTION, in order of acquisition. A promotion should count as acquired
      * at the original time.
      */
-    public List<Pair<ResourceName, LockType>> getLocks(BaseTransaction transaction) {
+    public synchronized List<Pair<ResourceName, LockType>> getLocks(BaseTransaction transaction) {
         List<Pair<ResourceName, LockType>> list = new ArrayList<>();
         if (transactionLocks.containsKey(transaction.getTransNum())) {
             List<Lock> locks = transactionLocks.get(transaction.getTransNum());
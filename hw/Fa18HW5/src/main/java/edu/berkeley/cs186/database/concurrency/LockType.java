@@ -1,6 +1,5 @@
 package edu.berkeley.cs186.database.concurrency;
 
-import com.sun.org.apache.regexp.internal.RE;
 import edu.berkeley.cs186.database.table.Record;
 
 import java.util.Arrays;
@@ -164,6 +164,24 @@ abstract class BPlusNode {
             float fillFactor)
     throws BPlusTreeException;
 
+    /**
+     * n.merge(data, bound, duplicates) inserts the pairs of data, which are in
+     * ascending order of key, into the subtree rooted by n. It takes pairs from
+     * data as long as their key is less than bound (or until data runs out, if
+     * bound is empty), visiting every node of the subtree that gets a pair only
+     * once. Pairs whose key is already in the tree are skipped, and the first
+     * such key is added to duplicates.
+     *
+     * Nodes that overflow are split into as many nodes as they need, each with
+     * between d and 2d entries (or keys), rather than in two. The split keys
+     * and the page numbers of the new right nodes are returned in order, like
+     * the single pair returned by put; the list is empty if n did not split.
+     */
+    public abstract List<Pair<DataBox, Integer>> merge(BaseTransaction transaction,
+            PeekingIterator<Pair<DataBox, RecordId>> data,
+            Optional<DataBox> bound,
+            List<DataBox> duplicates);
+
     /**
      * n.remove(k) removes the key k and its corresponding record id from the
      * subtree rooted by n, or does nothing if the key k is not in the subtree.
@@ -216,9 +234,24 @@ abstract class BPlusNode {
     public abstract void remove(BaseTransaction transaction, DataBox key);
 
     // Helpers ///////////////////////////////////////////////////////////////////
-    /** Get the page on which this node is persisted. */
+    /**
+     * Get the page on which this node is persisted. The page is not pinned;
+     * it is meant for inspection only.
+     */
     abstract Page getPage();
 
+    /** Get the number of the page on which this node is persisted. */
+    abstract int getPageNum();
+
+    /**
+     * Returns whether the next pair of data belongs below bound; see merge.
+     */
+    static boolean hasNextBelow(PeekingIterator<Pair<DataBox, RecordId>> data,
+                                Optional<DataBox> bound) {
+        return data.hasNext()
+               && (!bound.isPresent() || data.peek().getFirst().compareTo(bound.get()) < 0);
+    }
+
     // Pretty Printing ///////////////////////////////////////////////////////////
     /**
      * S-expressions (or sexps) are a compact way of encoding nested tree-like
@@ -258,9 +291,13 @@ abstract class BPlusNode {
      */
     public static BPlusNode fromBytes(BaseTransaction transaction, BPlusTreeMetadata metadata,
                                       int pageNum) {
-        Page p = metadata.getAllocator().fetchPage(transaction, pageNum);
-        Buffer buf = p.getBuffer(transaction);
-        byte b = buf.get();
+        Page p = metadata.getAllocator().pinPage(transaction, pageNum);
+        byte b;
+        try {
+            b = p.getBuffer(transaction).get();
+        } finally {
+            p.unpin();
+        }
         if (b == 1) {
             return LeafNode.fromBytes(transaction, metadata, pageNum);
         } else if (b == 0) {
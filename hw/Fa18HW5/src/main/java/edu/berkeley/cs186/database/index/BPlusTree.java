@@ -18,8 +18,10 @@ import edu.berkeley.cs186.database.concurrency.DummyLockContext;
 import edu.berkeley.cs186.database.concurrency.LockContext;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.io.IOMetrics;
 import edu.berkeley.cs186.database.io.Page;
 import edu.berkeley.cs186.database.io.PageAllocator;
+import edu.berkeley.cs186.database.io.PageStore;
 import edu.berkeley.cs186.database.table.RecordId;
 
 /**
@@ -63,8 +65,12 @@ public class BPlusTree implements Closeable {
 
     private PageAllocator allocator;
     private BPlusTreeMetadata metadata;
+    // The header page and the page of the root are pinned for as long as the
+    // tree is open; every other node is only pinned while it is read or
+    // written (see LeafNode.sync).
     private Page headerPage;
     private BPlusNode root;
+    private Page rootPage;
     private LockContext lockContext;
 
     // Constructors ////////////////////////////////////////////////////////////
@@ -92,6 +98,26 @@ public class BPlusTree implements Closeable {
      */
     public BPlusTree(String filename, Type keySchema, int order, LockContext lockContext,
                      BaseTransaction transaction)
+    throws BPlusTreeException {
+        this(filename, keySchema, order, lockContext, PageStore.MMAP, transaction);
+    }
+
+    /**
+     * Construct a new B+ tree like above, reading and writing its pages through
+     * `pageStore`.
+     */
+    public BPlusTree(String filename, Type keySchema, int order, LockContext lockContext,
+                     PageStore.Factory pageStore, BaseTransaction transaction)
+    throws BPlusTreeException {
+        this(filename, keySchema, order, lockContext, Page.pageSize, pageStore, transaction);
+    }
+
+    /**
+     * Construct a new B+ tree like above, whose nodes are pages of `pageSize`
+     * bytes. Larger pages allow a larger order, i.e. a higher fanout.
+     */
+    public BPlusTree(String filename, Type keySchema, int order, LockContext lockContext,
+                     int pageSize, PageStore.Factory pageStore, BaseTransaction transaction)
     throws BPlusTreeException {
         // TODO(hw5): B+ tree locking
         lockContext.disableChildLocks();
@@ -104,7 +130,7 @@ public class BPlusTree implements Closeable {
             throw new BPlusTreeException(msg);
         }
 
-        int maxOrder = BPlusTree.maxOrder(Page.pageSize, keySchema);
+        int maxOrder = BPlusTree.maxOrder(pageSize, keySchema);
         if (order > maxOrder) {
             String msg = String.format(
                              "You cannot construct a B+ tree with order %d greater than the " +
@@ -116,19 +142,20 @@ public class BPlusTree implements Closeable {
         this.lockContext = lockContext;
 
         // Initialize the page allocator.
-        this.allocator = new PageAllocator(this.lockContext, filename, true, transaction);
+        this.allocator = new PageAllocator(this.lockContext, filename, true, pageSize, pageStore,
+                                           transaction);
         this.metadata = new BPlusTreeMetadata(allocator, keySchema, order);
 
         // Allocate the header page.
         int headerPageNum = allocator.allocPage(transaction);
         assert(headerPageNum == 0);
-        this.headerPage = allocator.fetchPage(transaction, headerPageNum);
+        this.headerPage = allocator.pinPage(transaction, headerPageNum);
 
         // Construct the root.
         List<DataBox> keys = new ArrayList<>();
         List<RecordId> rids = new ArrayList<>();
         Optional<Integer> rightSibling = Optional.empty();
-        this.root = new LeafNode(this.metadata, keys, rids, rightSibling, transaction);
+        setRoot(new LeafNode(this.metadata, keys, rids, rightSibling, transaction));
 
         // Initialize the header page.
         writeHeader(transaction, headerPage);
@@ -136,13 +163,22 @@ public class BPlusTree implements Closeable {
 
     /** Read a B+ tree that was previously serialized to filename. */
     public BPlusTree(String filename, LockContext lockContext, BaseTransaction transaction) {
+        this(filename, lockContext, PageStore.MMAP, transaction);
+    }
+
+    /**
+     * Read a B+ tree that was previously serialized to filename, reading and
+     * writing its pages through pageStore.
+     */
+    public BPlusTree(String filename, LockContext lockContext, PageStore.Factory pageStore,
+                     BaseTransaction transaction) {
         // TODO(hw5): B+ tree locking
         this.lockContext = lockContext;
         lockContext.disableChildLocks();
 
         // Initialize the page allocator and fetch the header page.
-        this.allocator = new PageAllocator(this.lockContext, filename, false, transaction);
-        Page headerPage = allocator.fetchPage(transaction, 0);
+        this.allocator = new PageAllocator(this.lockContext, filename, false, pageStore, transaction);
+        this.headerPage = allocator.pinPage(transaction, 0);
         Buffer buf = headerPage.getBuffer(transaction);
 
         // Read the contents of the header page. See writeHeader for information
@@ -153,11 +189,12 @@ public class BPlusTree implements Closeable {
 
         // Initialize members.
         this.metadata = new BPlusTreeMetadata(allocator, keySchema, order);
-        this.headerPage = allocator.fetchPage(transaction, 0);
-        this.root = BPlusNode.fromBytes(transaction, this.metadata, rootPageNum);
+        setRoot(BPlusNode.fromBytes(transaction, this.metadata, rootPageNum));
     }
 
     public void close() {
+        this.headerPage.unpin();
+        this.rootPage.unpin();
         this.allocator.close();
     }
 
@@ -306,11 +343,11 @@ public class BPlusTree implements Closeable {
         keys.add(p.getFirst());
 
         List<Integer> children = new ArrayList<>();
-        children.add(root.getPage().getPageNum());
+        children.add(root.getPageNum());
         children.add(p.getSecond());
 
         InnerNode inner = new InnerNode(metadata, keys, children, transaction);
-        this.root = inner;
+        setRoot(inner);
         writeHeader(transaction, headerPage);
     }
 
@@ -331,8 +368,7 @@ public class BPlusTree implements Closeable {
      */
     public void bulkLoad(BaseTransaction transaction, Iterator<Pair<DataBox, RecordId>> data,
                          float fillFactor) throws BPlusTreeException {
-        LeafNode left = this.root.getLeftmostLeaf(transaction);
-        if (left != this.root || left.scanAll().hasNext()) {
+        if (!canBulkLoad(transaction)) {
             throw new BPlusTreeException("cannot bulk load into nonempty tree");
         }
         while (data.hasNext()) {
@@ -344,16 +380,58 @@ public class BPlusTree implements Closeable {
                 keys.add(p.getFirst());
 
                 List<Integer> children = new ArrayList<>();
-                children.add(root.getPage().getPageNum());
+                children.add(root.getPageNum());
                 children.add(p.getSecond());
 
                 InnerNode inner = new InnerNode(metadata, keys, children, transaction);
-                this.root = inner;
+                setRoot(inner);
             }
         }
         writeHeader(transaction, headerPage);
     }
 
+    /**
+     * Returns whether the tree is a single empty leaf, i.e. whether bulkLoad
+     * may be called on it.
+     */
+    public boolean canBulkLoad(BaseTransaction transaction) {
+        LeafNode left = this.root.getLeftmostLeaf(transaction);
+        return left == this.root && !left.scanAll().hasNext();
+    }
+
+    /**
+     * Inserts the pairs of data into the B+ tree, which need not be empty.
+     * data must be in sorted order (by the DataBox key field) and contain no
+     * duplicates. Unlike a put of every pair, the merge visits each node that
+     * gets pairs once, and splits a node that overflows into as many nodes as
+     * it needs (see BPlusNode.merge).
+     *
+     * Pairs whose key is already in the tree are not inserted; once the other
+     * pairs are, an exception is raised.
+     */
+    public void merge(BaseTransaction transaction, Iterator<Pair<DataBox, RecordId>> data)
+    throws BPlusTreeException {
+        List<DataBox> duplicates = new ArrayList<>();
+        PeekingIterator<Pair<DataBox, RecordId>> iter = new PeekingIterator<>(data);
+        List<Pair<DataBox, Integer>> splits = this.root.merge(transaction, iter, Optional.empty(),
+                                              duplicates);
+
+        // A root that splits gets a new root above it, which may split in turn.
+        while (!splits.isEmpty()) {
+            List<Integer> children = new ArrayList<>();
+            children.add(root.getPageNum());
+            InnerNode inner = new InnerNode(metadata, new ArrayList<>(), children, transaction);
+            splits = inner.putChildren(transaction, 0, splits);
+            setRoot(inner);
+        }
+        writeHeader(transaction, headerPage);
+
+        if (!duplicates.isEmpty()) {
+            String msg = String.format("Duplicate key %s inserted.", duplicates.get(0));
+            throw new BPlusTreeException(msg);
+        }
+    }
+
     /**
      * Deletes a (key, rid) pair from a B+ tree.
      *
@@ -445,13 +523,28 @@ public class BPlusTree implements Closeable {
         return metadata.getAllocator().getNumPages();
     }
 
+    /** Returns the buffer pool and I/O counters of the tree's pages. */
+    public IOMetrics getMetrics() {
+        return metadata.getAllocator().getMetrics();
+    }
+
+    /** Makes root the root of the tree, moving the root pin from the old root. */
+    private void setRoot(BPlusNode root) {
+        Page page = allocator.pinPage(null, root.getPageNum());
+        if (this.rootPage != null) {
+            this.rootPage.unpin();
+        }
+        this.root = root;
+        this.rootPage = page;
+    }
+
     /** Serializes the header page to page. */
     private void writeHeader(BaseTransaction transaction, Page page) {
         byte[] keySchema = metadata.getKeySchema().toBytes();
         Buffer buf = page.getBuffer(transaction);
         buf.put(keySchema);
         buf.putInt(metadata.getOrder());
-        buf.putInt(root.getPage().getPageNum());
+        buf.putInt(root.getPageNum());
     }
 
     private void typecheck(DataBox key) {
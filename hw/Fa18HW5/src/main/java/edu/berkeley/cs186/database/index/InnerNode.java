@@ -5,6 +5,7 @@ import java.util.*;
 
 import edu.berkeley.cs186.database.BaseTransaction;
 import edu.berkeley.cs186.database.common.Buffer;
+import edu.berkeley.cs186.database.concurrency.LockType;
 import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.databox.Type;
@@ -28,8 +29,10 @@ class InnerNode extends BPlusNode {
     // Metadata about the B+ tree that this node belongs to.
     private BPlusTreeMetadata metadata;
 
-    // The page on which this leaf is serialized.
-    private Page page;
+    // The number of the page on which this node is serialized. The page is
+    // pinned for as long as it is read or written (see sync) rather than held
+    // here, where it could be evicted and its buffer reused.
+    private int pageNum;
 
     // The keys and child pointers of this inner node. See the comment above
     // LeafNode.keys and LeafNode.rids in LeafNode.java for a warning on the
@@ -58,7 +61,7 @@ class InnerNode extends BPlusNode {
         assert(keys.size() + 1 == children.size());
 
         this.metadata = metadata;
-        this.page = metadata.getAllocator().fetchPage(transaction, pageNum);
+        this.pageNum = pageNum;
         this.keys = keys;
         this.children = children;
         sync(transaction);
@@ -153,7 +156,7 @@ class InnerNode extends BPlusNode {
         this.children = leftChildren;
         sync(transaction);
 
-        return Optional.of(new Pair<>(middleKey, n.getPage().getPageNum()));
+        return Optional.of(new Pair<>(middleKey, n.getPageNum()));
     }
 
     // See BPlusNode.bulkLoad.
@@ -193,7 +196,77 @@ class InnerNode extends BPlusNode {
         this.children = leftChildren;
         sync(transaction);
 
-        return Optional.of(new Pair<>(middleKey, n.getPage().getPageNum()));
+        return Optional.of(new Pair<>(middleKey, n.getPageNum()));
+    }
+
+    // See BPlusNode.merge.
+    @Override
+    public List<Pair<DataBox, Integer>> merge(BaseTransaction transaction,
+            PeekingIterator<Pair<DataBox, RecordId>> data,
+            Optional<DataBox> bound,
+            List<DataBox> duplicates) {
+        // Each child takes the pairs up to the key that follows it, so every
+        // child that gets pairs is visited once.
+        while (hasNextBelow(data, bound)) {
+            int index = numLessThanEqual(data.peek().getFirst(), keys);
+            Optional<DataBox> childBound = index < keys.size()
+                                           ? Optional.of(keys.get(index)) : bound;
+            BPlusNode child = getChild(transaction, index);
+            addChildren(index, child.merge(transaction, data, childBound, duplicates));
+        }
+        return split(transaction);
+    }
+
+    /**
+     * Inserts the split keys and right nodes returned by a merge of child
+     * index, and splits this node as needed (see BPlusNode.merge).
+     */
+    List<Pair<DataBox, Integer>> putChildren(BaseTransaction transaction, int index,
+            List<Pair<DataBox, Integer>> splits) {
+        addChildren(index, splits);
+        return split(transaction);
+    }
+
+    private void addChildren(int index, List<Pair<DataBox, Integer>> splits) {
+        for (int i = 0; i < splits.size(); ++i) {
+            keys.add(index + i, splits.get(i).getFirst());
+            children.add(index + i + 1, splits.get(i).getSecond());
+        }
+    }
+
+    /**
+     * Syncs this node, first splitting it into the fewest nodes of at most 2d
+     * keys if it has more. Every split moves one key up, so k keys make
+     * m = ceil((k + 1) / (2d + 1)) nodes of between d and 2d keys each.
+     *
+     * @return the split keys and page numbers of the new right nodes
+     */
+    private List<Pair<DataBox, Integer>> split(BaseTransaction transaction) {
+        int d = metadata.getOrder();
+        List<Pair<DataBox, Integer>> splits = new ArrayList<>();
+        if (keys.size() <= 2 * d) {
+            sync(transaction);
+            return splits;
+        }
+
+        int numNodes = (keys.size() + 1 + 2 * d) / (2 * d + 1);
+        int numKept = keys.size() - (numNodes - 1);
+        // Node j gets the keys [start, start + size) and the children
+        // [start, start + size + 1); the key just before start moves up.
+        int start = numKept / numNodes + 1;
+        for (int j = 1; j < numNodes; ++j) {
+            int size = numKept * (j + 1) / numNodes - numKept * j / numNodes;
+            InnerNode n = new InnerNode(metadata,
+                                        new ArrayList<>(keys.subList(start, start + size)),
+                                        new ArrayList<>(children.subList(start, start + size + 1)),
+                                        transaction);
+            splits.add(new Pair<>(keys.get(start - 1), n.getPageNum()));
+            start += size + 1;
+        }
+        this.keys = new ArrayList<>(keys.subList(0, numKept / numNodes));
+        this.children = new ArrayList<>(children.subList(0, numKept / numNodes + 1));
+        sync(transaction);
+        return splits;
     }
 
     // See BPlusNode.remove.
@@ -207,7 +280,12 @@ class InnerNode extends BPlusNode {
     // Helpers ///////////////////////////////////////////////////////////////////
     @Override
     public Page getPage() {
-        return page;
+        return metadata.getAllocator().fetchPage(null, pageNum);
+    }
+
+    @Override
+    int getPageNum() {
+        return pageNum;
     }
 
     private BPlusNode getChild(BaseTransaction transaction, int i) {
@@ -216,12 +294,29 @@ class InnerNode extends BPlusNode {
     }
 
     private void sync(BaseTransaction transaction) {
-        Buffer b = page.getBuffer(transaction);
         byte[] newBytes = toBytes();
         byte[] bytes = new byte[newBytes.length];
-        b.get(bytes);
-        if (!Arrays.equals(bytes, newBytes)) {
-            page.getBuffer(transaction).put(toBytes());
+        Page page = metadata.getAllocator().pinPage(transaction, pageNum);
+        try {
+            Buffer b = page.getBuffer(transaction, LockType.S);
+            long stamp = page.latchShared();
+            try {
+                b.get(bytes);
+            } finally {
+                page.unlatch(stamp);
+            }
+            if (!Arrays.equals(bytes, newBytes)) {
+                // Take the X lock before the latch; see Page.
+                b = page.getBuffer(transaction, LockType.X);
+                stamp = page.latchExclusive();
+                try {
+                    b.put(newBytes);
+                } finally {
+                    page.unlatch(stamp);
+                }
+            }
+        } finally {
+            page.unpin();
         }
     }
 
@@ -358,7 +453,6 @@ class InnerNode extends BPlusNode {
         }
         ss.add(String.format("<f%d>", keys.size()));
 
-        int pageNum = getPage().getPageNum();
         String s = String.join("|", ss);
         String node = String.format("  node%d[label = \"%s\"];", pageNum, s);
 
@@ -366,7 +460,7 @@ class InnerNode extends BPlusNode {
         lines.add(node);
         for (int i = 0; i < children.size(); ++i) {
             BPlusNode child = getChild(transaction, i);
-            int childPageNum = child.getPage().getPageNum();
+            int childPageNum = child.getPageNum();
             lines.add(child.toDot(transaction));
             lines.add(String.format("  \"node%d\":f%d -> \"node%d\";",
                                     pageNum, i, childPageNum));
@@ -423,19 +517,27 @@ class InnerNode extends BPlusNode {
      */
     public static InnerNode fromBytes(BaseTransaction transaction, BPlusTreeMetadata metadata,
                                       int pageNum) {
-        Page page = metadata.getAllocator().fetchPage(transaction, pageNum);
-        Buffer buf = page.getBuffer(transaction);
-
-        assert(buf.get() == (byte) 0);
-
+        Page page = metadata.getAllocator().pinPage(transaction, pageNum);
         List<DataBox> keys = new ArrayList<>();
         List<Integer> children = new ArrayList<>();
-        int n = buf.getInt();
-        for (int i = 0; i < n; ++i) {
-            keys.add(DataBox.fromBytes(buf, metadata.getKeySchema()));
-        }
-        for (int i = 0; i < n + 1; ++i) {
-            children.add(buf.getInt());
+        try {
+            Buffer buf = page.getBuffer(transaction, LockType.S);
+            long stamp = page.latchShared();
+            try {
+                assert(buf.get() == (byte) 0);
+
+                int n = buf.getInt();
+                for (int i = 0; i < n; ++i) {
+                    keys.add(DataBox.fromBytes(buf, metadata.getKeySchema()));
+                }
+                for (int i = 0; i < n + 1; ++i) {
+                    children.add(buf.getInt());
+                }
+            } finally {
+                page.unlatch(stamp);
+            }
+        } finally {
+            page.unpin();
         }
         return new InnerNode(metadata, pageNum, keys, children, transaction);
     }
@@ -450,13 +552,13 @@ class InnerNode extends BPlusNode {
             return false;
         }
         InnerNode n = (InnerNode) o;
-        return page.getPageNum() == n.page.getPageNum() &&
+        return pageNum == n.pageNum &&
                keys.equals(n.keys) &&
                children.equals(n.children);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(page.getPageNum(), keys, children);
+        return Objects.hash(pageNum, keys, children);
     }
 }
@@ -5,6 +5,7 @@ import java.util.*;
 
 import edu.berkeley.cs186.database.BaseTransaction;
 import edu.berkeley.cs186.database.common.Buffer;
+import edu.berkeley.cs186.database.concurrency.LockType;
 import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.databox.Type;
@@ -28,8 +29,10 @@ class LeafNode extends BPlusNode {
     // Metadata about the B+ tree that this node belongs to.
     private BPlusTreeMetadata metadata;
 
-    // The page on which this leaf is serialized.
-    private Page page;
+    // The number of the page on which this node is serialized. The page is
+    // pinned for as long as it is read or written (see sync) rather than held
+    // here, where it could be evicted and its buffer reused.
+    private int pageNum;
 
     // The keys and record ids of this leaf. `keys` is always sorted in ascending
     // order. The record id at index i corresponds to the key at index i. For
@@ -119,7 +122,7 @@ class LeafNode extends BPlusNode {
         assert(keys.size() == rids.size());
 
         this.metadata = metadata;
-        this.page = metadata.getAllocator().fetchPage(transaction, pageNum);
+        this.pageNum = pageNum;
         this.keys = keys;
         this.rids = rids;
         this.rightSibling = rightSibling;
@@ -195,7 +198,7 @@ class LeafNode extends BPlusNode {
 
         // Create right node.
         LeafNode n = new LeafNode(metadata, rightKeys, rightRids, rightSibling, transaction);
-        int pageNum = n.getPage().getPageNum();
+        int pageNum = n.getPageNum();
 
         // Update left node.
         this.keys = leftKeys;
@@ -237,7 +240,7 @@ class LeafNode extends BPlusNode {
 
         // Create right node.
         LeafNode n = new LeafNode(metadata, rightKeys, rightRids, Optional.empty(), transaction);
-        int pageNum = n.getPage().getPageNum();
+        int pageNum = n.getPageNum();
 
         // Update left node.
         this.rightSibling = Optional.of(pageNum);
@@ -246,6 +249,65 @@ class LeafNode extends BPlusNode {
         return Optional.of(new Pair<>(rightKeys.get(0), pageNum));
     }
 
+    // See BPlusNode.merge.
+    @Override
+    public List<Pair<DataBox, Integer>> merge(BaseTransaction transaction,
+            PeekingIterator<Pair<DataBox, RecordId>> data,
+            Optional<DataBox> bound,
+            List<DataBox> duplicates) {
+        // Merge the new pairs with ours, as in the merge step of merge sort.
+        List<DataBox> mergedKeys = new ArrayList<>();
+        List<RecordId> mergedRids = new ArrayList<>();
+        int i = 0;
+        while (hasNextBelow(data, bound)) {
+            Pair<DataBox, RecordId> pair = data.next();
+            DataBox key = pair.getFirst();
+            while (i < keys.size() && keys.get(i).compareTo(key) < 0) {
+                mergedKeys.add(keys.get(i));
+                mergedRids.add(rids.get(i));
+                i++;
+            }
+            if (i < keys.size() && keys.get(i).equals(key)) {
+                if (duplicates.isEmpty()) {
+                    duplicates.add(key);
+                }
+                continue;
+            }
+            mergedKeys.add(key);
+            mergedRids.add(pair.getSecond());
+        }
+        mergedKeys.addAll(keys.subList(i, keys.size()));
+        mergedRids.addAll(rids.subList(i, rids.size()));
+        this.keys = mergedKeys;
+        this.rids = mergedRids;
+
+        int d = metadata.getOrder();
+        List<Pair<DataBox, Integer>> splits = new ArrayList<>();
+        if (keys.size() <= 2 * d) {
+            sync(transaction);
+            return splits;
+        }
+
+        // Spread the n pairs evenly over the fewest leaves of at most 2d pairs,
+        // each of which then has at least d. The new leaves are created from
+        // right to left so that each can point to the next.
+        int n = keys.size();
+        int numLeaves = (n + 2 * d - 1) / (2 * d);
+        for (int j = numLeaves - 1; j > 0; --j) {
+            int from = n * j / numLeaves;
+            int to = n * (j + 1) / numLeaves;
+            LeafNode leaf = new LeafNode(metadata, new ArrayList<>(keys.subList(from, to)),
+                                         new ArrayList<>(rids.subList(from, to)), rightSibling,
+                                         transaction);
+            this.rightSibling = Optional.of(leaf.getPageNum());
+            splits.add(0, new Pair<>(keys.get(from), leaf.getPageNum()));
+        }
+        this.keys = new ArrayList<>(keys.subList(0, n / numLeaves));
+        this.rids = new ArrayList<>(rids.subList(0, n / numLeaves));
+        sync(transaction);
+        return splits;
+    }
+
     // See BPlusNode.remove.
     @Override
     public void remove(BaseTransaction transaction, DataBox key) {
@@ -285,7 +347,12 @@ class LeafNode extends BPlusNode {
     // Helpers ///////////////////////////////////////////////////////////////////
     @Override
     public Page getPage() {
-        return page;
+        return metadata.getAllocator().fetchPage(null, pageNum);
+    }
+
+    @Override
+    int getPageNum() {
+        return pageNum;
     }
 
     /** Returns the right sibling of this leaf, if it has one. */
@@ -300,12 +367,29 @@ class LeafNode extends BPlusNode {
 
     /** Serializes this leaf to its page. */
     private void sync(BaseTransaction transaction) {
-        Buffer b = page.getBuffer(transaction);
         byte[] newBytes = toBytes();
         byte[] bytes = new byte[newBytes.length];
-        b.get(bytes);
-        if (!Arrays.equals(bytes, newBytes)) {
-            page.getBuffer(transaction).put(toBytes());
+        Page page = metadata.getAllocator().pinPage(transaction, pageNum);
+        try {
+            Buffer b = page.getBuffer(transaction, LockType.S);
+            long stamp = page.latchShared();
+            try {
+                b.get(bytes);
+            } finally {
+                page.unlatch(stamp);
+            }
+            if (!Arrays.equals(bytes, newBytes)) {
+                // Take the X lock before the latch; see Page.
+                b = page.getBuffer(transaction, LockType.X);
+                stamp = page.latchExclusive();
+                try {
+                    b.put(newBytes);
+                } finally {
+                    page.unlatch(stamp);
+                }
+            }
+        } finally {
+            page.unpin();
         }
     }
 
@@ -356,7 +440,7 @@ class LeafNode extends BPlusNode {
     @Override
     public String toString() {
         return String.format("LeafNode(pageNum=%s, keys=%s, rids=%s)",
-                             page.getPageNum(), keys, rids);
+                             pageNum, keys, rids);
     }
 
     @Override
@@ -382,7 +466,6 @@ class LeafNode extends BPlusNode {
         for (int i = 0; i < keys.size(); ++i) {
             ss.add(String.format("%s: %s", keys.get(i), rids.get(i).toSexp()));
         }
-        int pageNum = getPage().getPageNum();
         String s = String.join("|", ss);
         return String.format("  node%d[label = \"{%s}\"];", pageNum, s);
     }
@@ -437,20 +520,29 @@ class LeafNode extends BPlusNode {
      */
     public static LeafNode fromBytes(BaseTransaction transaction, BPlusTreeMetadata metadata,
                                      int pageNum) {
-        Page page = metadata.getAllocator().fetchPage(transaction, pageNum);
-        Buffer buf = page.getBuffer(transaction);
-
-        assert(buf.get() == (byte) 1);
-
-        int s = buf.getInt();
-        Optional<Integer> rightSibling = s == -1 ? Optional.empty() : Optional.of(s);
-
+        Page page = metadata.getAllocator().pinPage(transaction, pageNum);
         List<DataBox> keys = new ArrayList<>();
         List<RecordId> rids = new ArrayList<>();
-        int n = buf.getInt();
-        for (int i = 0; i < n; ++i) {
-            keys.add(DataBox.fromBytes(buf, metadata.getKeySchema()));
-            rids.add(RecordId.fromBytes(buf));
+        Optional<Integer> rightSibling;
+        try {
+            Buffer buf = page.getBuffer(transaction, LockType.S);
+            long stamp = page.latchShared();
+            try {
+                assert(buf.get() == (byte) 1);
+
+                int s = buf.getInt();
+                rightSibling = s == -1 ? Optional.empty() : Optional.of(s);
+
+                int n = buf.getInt();
+                for (int i = 0; i < n; ++i) {
+                    keys.add(DataBox.fromBytes(buf, metadata.getKeySchema()));
+                    rids.add(RecordId.fromBytes(buf));
+                }
+            } finally {
+                page.unlatch(stamp);
+            }
+        } finally {
+            page.unpin();
         }
 
         return new LeafNode(metadata, pageNum, keys, rids, rightSibling, transaction);
@@ -466,7 +558,7 @@ class LeafNode extends BPlusNode {
             return false;
         }
         LeafNode n = (LeafNode) o;
-        return page.getPageNum() == n.page.getPageNum() &&
+        return pageNum == n.pageNum &&
                keys.equals(n.keys) &&
                rids.equals(n.rids) &&
                rightSibling.equals(n.rightSibling);
@@ -474,6 +566,6 @@ class LeafNode extends BPlusNode {
 
     @Override
     public int hashCode() {
-        return Objects.hash(page.getPageNum(), keys, rids, rightSibling);
+        return Objects.hash(pageNum, keys, rids, rightSibling);
     }
 }
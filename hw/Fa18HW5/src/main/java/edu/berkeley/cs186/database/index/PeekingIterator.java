@@ -0,0 +1,47 @@
+package edu.berkeley.cs186.database.index;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An iterator that can look at its next element without consuming it. B+ tree
+ * nodes use it to take, from a sorted iterator, only the entries that belong
+ * in their subtree (see BPlusNode.merge).
+ */
+class PeekingIterator<T> implements Iterator<T> {
+    private Iterator<T> iter;
+    // The next element, if it has been looked at but not returned.
+    private T next;
+    private boolean peeked;
+
+    PeekingIterator(Iterator<T> iter) {
+        this.iter = iter;
+        this.next = null;
+        this.peeked = false;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return this.peeked || this.iter.hasNext();
+    }
+
+    /** Returns the next element without consuming it. */
+    public T peek() {
+        if (!this.peeked) {
+            this.next = this.iter.next();
+            this.peeked = true;
+        }
+        return this.next;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T t = peek();
+        this.next = null;
+        this.peeked = false;
+        return t;
+    }
+}
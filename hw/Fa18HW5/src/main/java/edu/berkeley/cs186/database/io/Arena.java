@@ -0,0 +1,118 @@
+package edu.berkeley.cs186.database.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A fixed amount of off-heap memory, allocated up front, from which page buffers are carved.
+ *
+ * The arena is split into units of Page.pageSize bytes. A page buffer takes as many contiguous
+ * units as its size requires and is a slice of the arena, so allocating and freeing one never
+ * allocates memory. The memory is held in slabs of at most maxSlabBytes, since a single direct
+ * buffer can't exceed 2GB, and a buffer never spans two slabs.
+ */
+class Arena {
+    private static final int maxSlabBytes = 1 << 30;
+
+    private final List<ByteBuffer> slabs;
+    private final int unitsPerSlab;
+    private final int numUnits;
+    // Bit i is set iff unit i is in use.
+    private final BitSet used;
+    // The first unit of every buffer handed out, by identity of the buffer.
+    private final Map<ByteBuffer, Integer> allocated;
+    // No unit below this one is free.
+    private int freeHint;
+
+    /**
+     * Allocates an arena of numBytes bytes, rounded down to a whole number of units.
+     */
+    Arena(long numBytes) {
+        if (numBytes < Page.pageSize) {
+            throw new IllegalArgumentException("an arena must hold at least one page");
+        }
+        long units = numBytes / Page.pageSize;
+        if (units > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("arena of " + numBytes + " bytes is too large");
+        }
+        this.numUnits = (int) units;
+        this.unitsPerSlab = maxSlabBytes / Page.pageSize;
+        this.slabs = new ArrayList<>();
+        for (long remaining = units; remaining > 0; remaining -= this.unitsPerSlab) {
+            int slabUnits = (int) Math.min(remaining, this.unitsPerSlab);
+            this.slabs.add(ByteBuffer.allocateDirect(slabUnits * Page.pageSize));
+        }
+        this.used = new BitSet(this.numUnits);
+        this.allocated = new IdentityHashMap<>();
+        this.freeHint = 0;
+    }
+
+    /**
+     * @return a buffer of size bytes, a multiple of Page.pageSize, from the arena, or
+     * null if there is no run of free units long enough
+     */
+    synchronized ByteBuffer allocate(int size) {
+        int n = size / Page.pageSize;
+        if (n < 1 || size % Page.pageSize != 0) {
+            throw new IllegalArgumentException("arena buffers are multiples of " + Page.pageSize);
+        }
+        int start = this.used.nextClearBit(this.freeHint);
+        while (start + n <= this.numUnits) {
+            int slabEnd = (start / this.unitsPerSlab + 1) * this.unitsPerSlab;
+            int end = this.used.nextSetBit(start);
+            end = end < 0 ? this.numUnits : end;
+            if (start + n > slabEnd) {
+                // Runs don't span slabs; move on to the next one.
+                start = this.used.nextClearBit(slabEnd);
+            } else if (start + n > end) {
+                start = this.used.nextClearBit(end);
+            } else {
+                this.used.set(start, start + n);
+                if (start == this.freeHint) {
+                    this.freeHint = start + n;
+                }
+                ByteBuffer slab = this.slabs.get(start / this.unitsPerSlab).duplicate();
+                int offset = (start % this.unitsPerSlab) * Page.pageSize;
+                slab.position(offset);
+                slab.limit(offset + size);
+                ByteBuffer buffer = slab.slice();
+                this.allocated.put(buffer, start);
+                return buffer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns buffer to the arena if it was allocated from it.
+     *
+     * @return whether buffer belonged to the arena
+     */
+    synchronized boolean free(ByteBuffer buffer) {
+        Integer start = this.allocated.remove(buffer);
+        if (start == null) {
+            return false;
+        }
+        this.used.clear(start, start + buffer.capacity() / Page.pageSize);
+        this.freeHint = Math.min(this.freeHint, start);
+        return true;
+    }
+
+    /**
+     * @return the size of the arena in bytes
+     */
+    long getSize() {
+        return (long) this.numUnits * Page.pageSize;
+    }
+
+    /**
+     * @return the number of bytes of the arena in use
+     */
+    synchronized long getUsed() {
+        return (long) this.used.cardinality() * Page.pageSize;
+    }
+}
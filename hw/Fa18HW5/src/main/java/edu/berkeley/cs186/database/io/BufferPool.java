@@ -0,0 +1,747 @@
+package edu.berkeley.cs186.database.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
+
+/**
+ * A buffer pool of page frames shared by every PageAllocator. Frames are keyed by virtual page
+ * number (see PageAllocator#translatePageNum).
+ *
+ * The frame table is hash partitioned into a power-of-two number of shards, each guarded by its
+ * own monitor, so lookups of pages that hash to different shards never contend. Each shard
+ * owns a fixed slice of the total capacity and picks victims with the CLOCK algorithm: every
+ * frame has a reference bit that is set on access and cleared as the clock hand sweeps past it,
+ * and the first frame found with a clear bit is evicted. Unlike LRU, a single pass over many
+ * cold pages only costs one sweep of the hand instead of reordering the whole pool.
+ *
+ * Pinned pages (see Page#pin) are never evicted, and clean pages are preferred over dirty ones
+ * so that an eviction rarely has to write a page back. A page that is about to be used must be
+ * looked up with getPinned or putPinned, which pin it under the shard's monitor: pinning a page
+ * returned by get leaves a window in which the clock may evict it and recycle its buffer. An
+ * optional background flusher (see startFlusher) writes dirty pages back ahead of time, in file
+ * order.
+ *
+ * A large sequential scan would cycle every frame of the pool through its pages, each read once,
+ * and push out the hot pages of everyone else. Such a scan instead loads the pages it misses into
+ * a small Ring of its own (see newRing). Ring pages are resident, so everyone finds them, but
+ * they do not count against the capacity of the pool and are never picked by the clock: the
+ * ring evicts its own oldest page whenever it is full.
+ *
+ * The pool also owns the page-sized direct buffers that PageStore.CHANNEL reads pages into,
+ * and recycles them as pages are evicted. A pool created with withMemoryBudget carves these
+ * buffers out of a single off-heap Arena allocated up front, and never allocates one anywhere
+ * else, so the memory used for pages is fixed no matter how many pages pass through the pool.
+ */
+public class BufferPool {
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int DEFAULT_NUM_SHARDS = 16;
+
+    private final Shard[] shards;
+    private final int capacity;
+    // Recycled direct buffers, by size.
+    private final Map<Integer, Deque<ByteBuffer>> freeBuffers;
+    // The memory page buffers are taken from, or null to allocate them as needed.
+    private final Arena arena;
+    // The number of buffers allocated outside of any arena.
+    private final AtomicLong numDirectAllocations = new AtomicLong();
+    // The shard that allocateBuffer evicts from next when the arena is full.
+    private int nextEvictionShard;
+    private Thread flusher;
+
+    /**
+     * Create a buffer pool with room for capacity frames split across the default number of
+     * shards.
+     *
+     * @param capacity the total number of frames in the pool
+     */
+    public BufferPool(int capacity) {
+        this(capacity, DEFAULT_NUM_SHARDS);
+    }
+
+    /**
+     * Create a buffer pool with room for capacity frames split across numShards shards. The
+     * number of shards is rounded up to a power of two and capped so that every shard has at
+     * least one frame.
+     *
+     * @param capacity the total number of frames in the pool
+     * @param numShards the number of independently locked partitions of the frame table
+     */
+    public BufferPool(int capacity, int numShards) {
+        this(capacity, numShards, null);
+    }
+
+    private BufferPool(int capacity, int numShards, Arena arena) {
+        if (capacity < 1 || numShards < 1) {
+            throw new IllegalArgumentException("buffer pool capacity and shards must be positive");
+        }
+        int n = 1;
+        while (n < numShards && n * 2 <= capacity) {
+            n *= 2;
+        }
+
+        this.capacity = capacity;
+        this.freeBuffers = new HashMap<>();
+        this.arena = arena;
+        this.shards = new Shard[n];
+        for (int i = 0; i < n; i++) {
+            // Spread the remainder over the first few shards so the total is exactly capacity.
+            this.shards[i] = new Shard(capacity / n + (i < capacity % n ? 1 : 0));
+        }
+    }
+
+    /**
+     * Create a buffer pool whose page buffers live in an off-heap arena of budgetBytes bytes,
+     * allocated now. The pool has one frame per Page.pageSize bytes of the budget. Pages only
+     * take buffers from the arena if their store copies them into memory (PageStore.CHANNEL);
+     * memory-mapped pages live in the OS page cache instead.
+     *
+     * Every buffer comes from the arena, including those of the master and header pages that
+     * each open PageAllocator keeps outside the pool, so fewer data pages fit than the capacity
+     * suggests. When the arena has no room left, unpinned pages are evicted until the buffer
+     * fits, and if every page holding arena memory is pinned, the load fails with a
+     * PageException.
+     *
+     * @param budgetBytes the size of the arena in bytes
+     */
+    public static BufferPool withMemoryBudget(long budgetBytes) {
+        Arena arena = new Arena(budgetBytes);
+        int capacity = (int) (arena.getSize() / Page.pageSize);
+        return new BufferPool(capacity, DEFAULT_NUM_SHARDS, arena);
+    }
+
+    /**
+     * Looks up vPageNum without pinning it. The page may be evicted as soon as this returns;
+     * use getPinned to use it.
+     *
+     * @return the page cached for vPageNum, or null if it is not resident
+     */
+    public Page get(long vPageNum) {
+        return unpinned(getPinned(vPageNum));
+    }
+
+    /**
+     * Looks up vPageNum and pins it before any other thread can evict it. The caller must
+     * unpin the page.
+     *
+     * @return the page cached for vPageNum, pinned, or null if it is not resident
+     */
+    public Page getPinned(long vPageNum) {
+        return shardFor(vPageNum).get(vPageNum, true);
+    }
+
+    /**
+     * Looks up vPageNum on behalf of a scan without pinning it; see getPinnedForScan.
+     *
+     * @return the page cached for vPageNum, or null if it is not resident
+     */
+    public Page getForScan(long vPageNum) {
+        return unpinned(getPinnedForScan(vPageNum));
+    }
+
+    /**
+     * Looks up and pins vPageNum on behalf of a scan. Unlike getPinned, finding the page does
+     * not set its reference bit, so pages that are only touched by scans are not kept over hot
+     * pages. The caller must unpin the page.
+     *
+     * @return the page cached for vPageNum, pinned, or null if it is not resident
+     */
+    public Page getPinnedForScan(long vPageNum) {
+        return shardFor(vPageNum).get(vPageNum, false);
+    }
+
+    /**
+     * Caches page under vPageNum like putPinned, without leaving the resident page pinned.
+     *
+     * @return the page that is resident for vPageNum after the call
+     */
+    public Page put(long vPageNum, Page page) {
+        return unpinned(putPinned(vPageNum, page));
+    }
+
+    /**
+     * Caches page under vPageNum, evicting an unpinned frame of the same shard if it is full.
+     * If another page is already resident for vPageNum (e.g. two threads missed at the same
+     * time), the resident page is kept and returned instead, and page is not cached. Either way
+     * the page returned is pinned, and the caller must unpin it.
+     *
+     * @return the page that is resident for vPageNum after the call, pinned
+     */
+    public Page putPinned(long vPageNum, Page page) {
+        List<Page> evicted = new ArrayList<>(1);
+        Page resident = shardFor(vPageNum).put(vPageNum, page, evicted);
+        // Write back victims outside the shard's monitor so I/O never blocks lookups.
+        for (Page p : evicted) {
+            p.evict();
+        }
+        return resident;
+    }
+
+    private static Page unpinned(Page page) {
+        if (page != null) {
+            page.unpin();
+        }
+        return page;
+    }
+
+    /**
+     * @param numPages the number of pages the ring holds before it evicts its oldest page
+     * @return a new, empty ring of frames for one sequential scan
+     */
+    public Ring newRing(int numPages) {
+        if (numPages < 1) {
+            throw new IllegalArgumentException("a ring must hold at least one page");
+        }
+        return new Ring(numPages);
+    }
+
+    /**
+     * Drops vPageNum from the pool without writing it back.
+     *
+     * @return the page that was resident for vPageNum, or null
+     */
+    public Page remove(long vPageNum) {
+        return shardFor(vPageNum).remove(vPageNum);
+    }
+
+    /**
+     * Drops every frame whose virtual page number matches predicate without writing it back.
+     *
+     * @return the pages that were removed
+     */
+    public List<Page> removeIf(LongPredicate predicate) {
+        List<Page> removed = new ArrayList<>();
+        for (Shard shard : shards) {
+            shard.removeIf(predicate, removed);
+        }
+        return removed;
+    }
+
+    /**
+     * Writes back and drops every frame in the pool.
+     */
+    public void clear() {
+        for (Page p : removeIf(vPageNum -> true)) {
+            p.flush();
+            p.release();
+        }
+    }
+
+    /**
+     * Drops every frame in the pool, e.g. because pool replaces it as the pool shared by all
+     * allocators. Pinned pages are still in use, so they move to pool with their buffers, and
+     * nobody loads a second copy of them; the other pages are written back and released.
+     */
+    public void transferTo(BufferPool pool) {
+        TreeMap<Long, Page> removed = new TreeMap<>();
+        for (Shard shard : shards) {
+            shard.removeAll(removed);
+        }
+        for (Map.Entry<Long, Page> e : removed.entrySet()) {
+            Page p = e.getValue();
+            if (p.isPinned()) {
+                pool.put(e.getKey(), p);
+            } else {
+                p.flush();
+                p.release();
+            }
+        }
+    }
+
+    /**
+     * @return a direct buffer of size bytes, from the arena if the pool has one, or else
+     * recycled from an evicted page if one is available
+     * @throws PageException if the arena has no room and every page holding a part of it is
+     * pinned
+     */
+    ByteBuffer allocateBuffer(int size) {
+        if (this.arena != null) {
+            return allocateFromArena(size);
+        }
+        ByteBuffer buffer = null;
+        synchronized (this.freeBuffers) {
+            Deque<ByteBuffer> free = this.freeBuffers.get(size);
+            if (free != null) {
+                buffer = free.poll();
+            }
+        }
+        if (buffer == null) {
+            this.numDirectAllocations.getAndIncrement();
+            return ByteBuffer.allocateDirect(size);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Takes a buffer of size bytes from the arena, evicting unpinned pages until it fits.
+     */
+    private ByteBuffer allocateFromArena(int size) {
+        while (true) {
+            ByteBuffer buffer = this.arena.allocate(size);
+            if (buffer != null) {
+                return buffer;
+            }
+            Page victim = evictOne();
+            if (victim == null) {
+                throw new PageException("memory budget of " + this.arena.getSize() +
+                                        " bytes is held by pinned pages");
+            }
+            victim.evict();
+        }
+    }
+
+    /**
+     * Drops the next victim of some shard, trying the shards in turn.
+     *
+     * @return the page dropped, or null if every resident page is pinned
+     */
+    private Page evictOne() {
+        int start;
+        synchronized (this) {
+            start = this.nextEvictionShard;
+            this.nextEvictionShard = (start + 1) % shards.length;
+        }
+        for (int i = 0; i < shards.length; i++) {
+            Page victim = shards[(start + i) % shards.length].evict();
+            if (victim != null) {
+                return victim;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a buffer obtained from allocateBuffer to the pool. At most capacity buffers of
+     * each size are kept for reuse; the rest are left to the garbage collector, as are buffers
+     * that another pool's arena handed out.
+     */
+    void releaseBuffer(ByteBuffer buffer) {
+        if (this.arena != null) {
+            this.arena.free(buffer);
+            return;
+        }
+        synchronized (this.freeBuffers) {
+            Deque<ByteBuffer> free = this.freeBuffers.computeIfAbsent(buffer.capacity(),
+                                     size -> new ArrayDeque<>());
+            if (free.size() < this.capacity) {
+                free.push(buffer);
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the resident dirty pages ordered by virtual page number, i.e. grouped
+     * by allocator and in page-number order within each file.
+     */
+    public List<Page> getDirtyPages() {
+        TreeMap<Long, Page> dirty = new TreeMap<>();
+        for (Shard shard : shards) {
+            shard.collectDirty(dirty);
+        }
+        return new ArrayList<>(dirty.values());
+    }
+
+    /**
+     * Writes back every resident dirty page in file order.
+     */
+    public void flushAll() {
+        for (Page p : getDirtyPages()) {
+            p.flush();
+        }
+    }
+
+    /**
+     * Starts a daemon thread that calls flushAll every intervalMillis milliseconds, so that
+     * dirty pages are usually clean by the time they are evicted. Does nothing if a flusher is
+     * already running.
+     *
+     * @param intervalMillis the time to sleep between write-back passes
+     */
+    public synchronized void startFlusher(long intervalMillis) {
+        if (this.flusher != null) {
+            return;
+        }
+        this.flusher = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    flushAll();
+                } catch (PageException e) {
+                    // The page's file was closed under us; its allocator has flushed it already.
+                }
+            }
+        }, "buffer-pool-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Stops the background flusher, if one is running, and waits for it to exit.
+     */
+    public synchronized void stopFlusher() {
+        if (this.flusher == null) {
+            return;
+        }
+        this.flusher.interrupt();
+        try {
+            this.flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.flusher = null;
+    }
+
+    /**
+     * @return the number of resident frames
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return the size in bytes of the pool's arena, or 0 if it has none
+     */
+    public long getMemoryBudget() {
+        return this.arena == null ? 0 : this.arena.getSize();
+    }
+
+    /**
+     * @return the number of bytes of the pool's arena held by resident pages
+     */
+    public long getMemoryUsed() {
+        return this.arena == null ? 0 : this.arena.getUsed();
+    }
+
+    /**
+     * @return the number of page buffers the pool has allocated outside of an arena, which is
+     * always 0 for a pool with a memory budget
+     */
+    public long getNumDirectAllocations() {
+        return this.numDirectAllocations.get();
+    }
+
+    /**
+     * @return the total number of frames in the pool
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    private Shard shardFor(long vPageNum) {
+        // Fibonacci hashing: the high bits of the product depend on every bit of the key, so
+        // consecutive page numbers of one file land on different shards.
+        long h = vPageNum * 0x9E3779B97F4A7C15L;
+        return shards[(int) (h >>> 32) & (shards.length - 1)];
+    }
+
+    /**
+     * The private frames of one large sequential scan. The pages put into a ring are resident in
+     * the pool like any other page until the ring evicts them, oldest first, to stay within its
+     * size. Pinned pages are skipped, so a ring whose pages are all pinned grows until they are
+     * unpinned.
+     */
+    public class Ring {
+        private final int numPages;
+        // The virtual page numbers of the ring's pages, oldest first.
+        private final Deque<Long> pages;
+
+        private Ring(int numPages) {
+            this.numPages = numPages;
+            this.pages = new ArrayDeque<>();
+        }
+
+        /**
+         * Caches page under vPageNum like putPinned, without leaving the resident page pinned.
+         *
+         * @return the page that is resident for vPageNum after the call
+         */
+        public Page put(long vPageNum, Page page) {
+            return unpinned(putPinned(vPageNum, page));
+        }
+
+        /**
+         * Caches page under vPageNum as a page of this ring, evicting the ring's oldest unpinned
+         * pages if it is full. If a page is already resident for vPageNum, in the main pool or in
+         * any ring, it is left where it is and returned instead. Either way the page returned is
+         * pinned, and the caller must unpin it.
+         *
+         * @return the page that is resident for vPageNum after the call, pinned
+         */
+        public Page putPinned(long vPageNum, Page page) {
+            List<Page> evicted = new ArrayList<>();
+            Page resident;
+            synchronized (this) {
+                resident = shardFor(vPageNum).putRing(vPageNum, page);
+                if (resident != page) {
+                    return resident;
+                }
+                this.pages.add(vPageNum);
+                for (int i = this.pages.size(); i > 0 && this.pages.size() > this.numPages; i--) {
+                    long oldest = this.pages.poll();
+                    if (!shardFor(oldest).removeRing(oldest, evicted)) {
+                        // Pinned; try again once the rest of the ring has been recycled.
+                        this.pages.add(oldest);
+                    }
+                }
+            }
+            for (Page p : evicted) {
+                p.evict();
+            }
+            return resident;
+        }
+
+        /**
+         * @return the number of pages of the ring that are resident
+         */
+        public synchronized int size() {
+            return this.pages.size();
+        }
+
+        /**
+         * @return whether this ring's pages are put into pool
+         */
+        public boolean isOf(BufferPool pool) {
+            return BufferPool.this == pool;
+        }
+    }
+
+    private static class Frame {
+        final int slot;
+        long vPageNum;
+        Page page;
+        boolean referenced;
+        // Whether the frame belongs to a ring rather than to the main pool.
+        boolean ring;
+
+        Frame(int slot) {
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * One partition of the frame table. All methods synchronize on the shard itself.
+     */
+    private static class Shard {
+        private final int capacity;
+        // Grows past capacity only while every frame is pinned; see put.
+        private final List<Frame> frames;
+        private final Map<Long, Frame> frameTable;
+        private final Deque<Integer> freeFrames;
+        // The number of resident frames that belong to rings; they don't count against capacity.
+        private int ringFrames;
+        private int hand;
+
+        Shard(int capacity) {
+            this.capacity = capacity;
+            this.frames = new ArrayList<>(capacity);
+            this.frameTable = new HashMap<>();
+            this.freeFrames = new ArrayDeque<>();
+            for (int i = 0; i < capacity; i++) {
+                this.frames.add(new Frame(i));
+                this.freeFrames.add(i);
+            }
+            this.hand = 0;
+        }
+
+        /**
+         * Returns the page resident for vPageNum, pinned, or null. Pinning under the shard's
+         * monitor keeps nextVictim from picking the page before the caller gets to use it.
+         */
+        synchronized Page get(long vPageNum, boolean reference) {
+            Frame frame = frameTable.get(vPageNum);
+            if (frame == null) {
+                return null;
+            }
+            if (reference) {
+                frame.referenced = true;
+            }
+            return frame.page.pin();
+        }
+
+        /**
+         * Caches page and returns the resident page, pinned, adding any evicted pages to
+         * evicted.
+         */
+        synchronized Page put(long vPageNum, Page page, List<Page> evicted) {
+            Frame frame = frameTable.get(vPageNum);
+            if (frame != null) {
+                frame.referenced = true;
+                return frame.page.pin();
+            }
+
+            // Make room for the new page. If every frame is pinned, the shard temporarily
+            // grows past its capacity rather than failing, and shrinks back on later inserts
+            // once the pinned pages are released.
+            while (frameTable.size() - ringFrames >= capacity) {
+                Frame victim = nextVictim();
+                if (victim == null) {
+                    break;
+                }
+                frameTable.remove(victim.vPageNum);
+                evicted.add(release(victim));
+            }
+            if (freeFrames.isEmpty()) {
+                frames.add(new Frame(frames.size()));
+                freeFrames.add(frames.size() - 1);
+            }
+
+            frame = frames.get(freeFrames.poll());
+            frame.vPageNum = vPageNum;
+            frame.page = page;
+            frame.referenced = true;
+            frameTable.put(vPageNum, frame);
+            return page.pin();
+        }
+
+        /**
+         * Caches page in a frame of a ring, without evicting anything, and returns the resident
+         * page, pinned.
+         */
+        synchronized Page putRing(long vPageNum, Page page) {
+            Frame frame = frameTable.get(vPageNum);
+            if (frame != null) {
+                return frame.page.pin();
+            }
+            if (freeFrames.isEmpty()) {
+                frames.add(new Frame(frames.size()));
+                freeFrames.add(frames.size() - 1);
+            }
+            frame = frames.get(freeFrames.poll());
+            frame.vPageNum = vPageNum;
+            frame.page = page;
+            frame.referenced = false;
+            frame.ring = true;
+            ringFrames++;
+            frameTable.put(vPageNum, frame);
+            return page.pin();
+        }
+
+        /**
+         * Drops the ring frame of vPageNum, adding its page to evicted, unless it is pinned. A
+         * page that has been removed from the pool since it was put into the ring, or replaced
+         * by a page of the main pool, is not the ring's anymore and is left alone.
+         *
+         * @return false if the frame is pinned and must stay in the ring
+         */
+        synchronized boolean removeRing(long vPageNum, List<Page> evicted) {
+            Frame frame = frameTable.get(vPageNum);
+            if (frame == null || !frame.ring) {
+                return true;
+            }
+            if (frame.page.isPinned()) {
+                return false;
+            }
+            frameTable.remove(vPageNum);
+            evicted.add(release(frame));
+            return true;
+        }
+
+        synchronized Page remove(long vPageNum) {
+            Frame frame = frameTable.remove(vPageNum);
+            if (frame == null) {
+                return null;
+            }
+            return release(frame);
+        }
+
+        synchronized void removeIf(LongPredicate predicate, List<Page> removed) {
+            for (Frame frame : frames) {
+                if (frame.page != null && predicate.test(frame.vPageNum)) {
+                    frameTable.remove(frame.vPageNum);
+                    removed.add(release(frame));
+                }
+            }
+        }
+
+        synchronized int size() {
+            return frameTable.size();
+        }
+
+        /**
+         * Drops every frame, adding its page to removed by virtual page number.
+         */
+        synchronized void removeAll(Map<Long, Page> removed) {
+            for (Frame frame : frames) {
+                if (frame.page != null) {
+                    frameTable.remove(frame.vPageNum);
+                    removed.put(frame.vPageNum, release(frame));
+                }
+            }
+        }
+
+        /**
+         * Drops the next victim of the clock, if there is one.
+         *
+         * @return the page dropped, which the caller evicts, or null if every page is pinned
+         */
+        synchronized Page evict() {
+            Frame victim = nextVictim();
+            if (victim == null) {
+                return null;
+            }
+            frameTable.remove(victim.vPageNum);
+            return release(victim);
+        }
+
+        synchronized void collectDirty(Map<Long, Page> dirty) {
+            for (Frame frame : frames) {
+                if (frame.page != null && frame.page.isDirty()) {
+                    dirty.put(frame.vPageNum, frame.page);
+                }
+            }
+        }
+
+        private Page release(Frame frame) {
+            Page page = frame.page;
+            if (frame.ring) {
+                frame.ring = false;
+                ringFrames--;
+            }
+            frame.page = null;
+            frame.referenced = false;
+            freeFrames.add(frame.slot);
+            return page;
+        }
+
+        /**
+         * Advances the clock hand until it finds an unpinned, unreferenced, clean frame. Two
+         * sweeps clear every reference bit, so if no clean victim has been found by then, the
+         * first unreferenced dirty frame seen is returned instead, or null if every resident
+         * page is pinned.
+         */
+        private Frame nextVictim() {
+            Frame dirtyVictim = null;
+            for (int i = 0; i < 2 * frames.size(); i++) {
+                Frame frame = frames.get(hand);
+                hand = (hand + 1) % frames.size();
+                if (frame.page == null || frame.ring || frame.page.isPinned()) {
+                    continue;
+                }
+                if (frame.referenced) {
+                    frame.referenced = false;
+                } else if (!frame.page.isDirty()) {
+                    return frame;
+                } else if (dirtyVictim == null) {
+                    dirtyVictim = frame;
+                }
+            }
+            return dirtyVictim;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package edu.berkeley.cs186.database.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A PageStore that copies pages in and out of direct buffers with positional FileChannel reads
+ * and writes. The buffers are pooled by the shared BufferPool.
+ */
+class ChannelPageStore implements PageStore {
+    private static final int zeroChunkSize = 1024 * 1024;
+
+    private final FileChannel fc;
+    private final int pageSize;
+
+    ChannelPageStore(FileChannel fc, int pageSize) {
+        this.fc = fc;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public int getPageSize() {
+        return this.pageSize;
+    }
+
+    @Override
+    public ByteBuffer load(int blockNum) {
+        ByteBuffer block = PageAllocator.getBufferPool().allocateBuffer(this.pageSize);
+        long position = (long) blockNum * this.pageSize;
+        try {
+            while (block.hasRemaining()) {
+                if (this.fc.read(block, position + block.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            PageAllocator.getBufferPool().releaseBuffer(block);
+            throw new PageException("Can't read block: " + blockNum + " ; " + e.getMessage());
+        }
+        // Blocks past the end of the file have never been written and read as zeros.
+        while (block.hasRemaining()) {
+            block.put((byte) 0);
+        }
+        block.clear();
+        return block;
+    }
+
+    @Override
+    public void write(int blockNum, ByteBuffer block) {
+        ByteBuffer src = block.duplicate();
+        src.clear();
+        long position = (long) blockNum * this.pageSize;
+        try {
+            while (src.hasRemaining()) {
+                this.fc.write(src, position + src.position());
+            }
+        } catch (IOException e) {
+            throw new PageException("Can't write block: " + blockNum + " ; " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void force(int blockNum) {
+        try {
+            this.fc.force(false);
+        } catch (IOException e) {
+            throw new PageException("Can't force block: " + blockNum + " ; " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void preallocate(int fromBlock, int toBlock) {
+        writeZeros(this.fc, (long) fromBlock * this.pageSize, (long) toBlock * this.pageSize);
+    }
+
+    /**
+     * Writes zeros over bytes [from, to) of fc.
+     */
+    static void writeZeros(FileChannel fc, long from, long to) {
+        ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(to - from, zeroChunkSize));
+        try {
+            for (long position = from; position < to; position += zeros.capacity()) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), to - position));
+                while (zeros.hasRemaining()) {
+                    fc.write(zeros, position + zeros.position());
+                }
+            }
+        } catch (IOException e) {
+            throw new PageException("Can't preallocate file: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean writesThrough() {
+        return false;
+    }
+
+    @Override
+    public void release(ByteBuffer block) {
+        PageAllocator.getBufferPool().releaseBuffer(block);
+    }
+
+    @Override
+    public void close() {}
+}
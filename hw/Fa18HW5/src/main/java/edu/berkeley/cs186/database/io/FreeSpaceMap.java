@@ -0,0 +1,275 @@
+package edu.berkeley.cs186.database.io;
+
+import java.util.BitSet;
+
+/**
+ * An in-memory mirror of the allocation state recorded in a PageAllocator's master and header
+ * pages. Each header page is mirrored as a bitset of 64-bit words (bit i of word w is set iff
+ * data page w * 64 + i of that header is allocated) together with a hint below which the header
+ * has no free slot, and a summary bitset records which headers still have room.
+ *
+ * Allocation takes the first free slot of the first non-full header, exactly like a scan of the
+ * header pages would, but finds it with a few word operations instead of reading and scanning
+ * the master page and a header page. The on-disk format is unchanged; PageAllocator keeps both
+ * in sync.
+ *
+ * Runs of contiguous free pages may also be reserved for an extent (see reserveRun). Reserved
+ * pages are not allocated, and so not recorded on disk, but allocate skips them until they are
+ * allocated with allocateReserved.
+ */
+class FreeSpaceMap {
+    private final int pagesPerHeader;
+    private final long[][] allocated;
+    private final long[][] reserved;
+    private final int[] counts;
+    private final int[] reservedCounts;
+    private final int[] nextFreeHint;
+    private final BitSet nonFullHeaders;
+
+    /**
+     * Create a map in which every page of every header is free.
+     *
+     * @param numHeaders the number of header pages
+     * @param pagesPerHeader the number of data pages tracked by each header page
+     */
+    FreeSpaceMap(int numHeaders, int pagesPerHeader) {
+        this.pagesPerHeader = pagesPerHeader;
+        this.allocated = new long[numHeaders][];
+        this.reserved = new long[numHeaders][];
+        this.counts = new int[numHeaders];
+        this.reservedCounts = new int[numHeaders];
+        this.nextFreeHint = new int[numHeaders];
+        this.nonFullHeaders = new BitSet(numHeaders);
+        this.nonFullHeaders.set(0, numHeaders);
+    }
+
+    /**
+     * Load the allocation state of header page headerIndex from its on-disk bytes, where a
+     * nonzero byte marks an allocated page.
+     */
+    void load(int headerIndex, byte[] headerBytes) {
+        long[] words = words(headerIndex);
+        int count = 0;
+        for (int i = 0; i < pagesPerHeader; i++) {
+            if (headerBytes[i] != 0) {
+                words[i >>> 6] |= 1L << (i & 63);
+                count++;
+            }
+        }
+        counts[headerIndex] = count;
+        nextFreeHint[headerIndex] = 0;
+        nonFullHeaders.set(headerIndex, count + reservedCounts[headerIndex] < pagesPerHeader);
+    }
+
+    /**
+     * Marks the first free page that is not reserved as allocated.
+     *
+     * @return the page number of the allocated page, or -1 if every page is in use
+     */
+    int allocate() {
+        int headerIndex = nonFullHeaders.nextSetBit(0);
+        if (headerIndex < 0 || headerIndex >= allocated.length) {
+            return -1;
+        }
+        long[] words = words(headerIndex);
+        long[] reservedWords = reservedWords(headerIndex);
+        for (int w = nextFreeHint[headerIndex] >>> 6; w < words.length; w++) {
+            long taken = words[w] | reservedWords[w];
+            if (taken != -1L) {
+                int index = (w << 6) + Long.numberOfTrailingZeros(~taken);
+                int pageNum = headerIndex * pagesPerHeader + index;
+                markAllocated(pageNum);
+                return pageNum;
+            }
+        }
+        throw new PageException("Header page should have free page but doesnt");
+    }
+
+    /**
+     * Reserves the first run of numPages contiguous pages that are neither allocated nor
+     * reserved. A run never spans two header pages, so its data pages are contiguous in the
+     * file.
+     *
+     * @return the page number of the first page of the run, or -1 if there is no such run
+     */
+    int reserveRun(int numPages) {
+        if (numPages <= 0 || numPages > pagesPerHeader) {
+            throw new IllegalArgumentException("a run must have between 1 and " + pagesPerHeader +
+                                               " pages");
+        }
+        for (int h = nonFullHeaders.nextSetBit(0); h >= 0 && h < allocated.length;
+                h = nonFullHeaders.nextSetBit(h + 1)) {
+            if (pagesPerHeader - counts[h] - reservedCounts[h] < numPages) {
+                continue;
+            }
+            long[] words = words(h);
+            long[] reservedWords = reservedWords(h);
+            int run = 0;
+            for (int i = 0; i < pagesPerHeader; i++) {
+                long taken = words[i >>> 6] | reservedWords[i >>> 6];
+                if ((i & 63) == 0 && taken == -1L) {
+                    // Skip a word of unavailable pages at once.
+                    run = 0;
+                    i += 63;
+                } else if ((taken & (1L << (i & 63))) != 0) {
+                    run = 0;
+                } else if (++run == numPages) {
+                    int start = i - numPages + 1;
+                    for (int j = start; j <= i; j++) {
+                        reservedWords[j >>> 6] |= 1L << (j & 63);
+                    }
+                    reservedCounts[h] += numPages;
+                    if (counts[h] + reservedCounts[h] == pagesPerHeader) {
+                        nonFullHeaders.clear(h);
+                    }
+                    return h * pagesPerHeader + start;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Marks pageNum, which must be reserved, as allocated.
+     *
+     * @return whether pageNum was reserved; if not, nothing is changed
+     */
+    boolean allocateReserved(int pageNum) {
+        int headerIndex = pageNum / pagesPerHeader;
+        int index = pageNum % pagesPerHeader;
+        long[] reservedWords = reservedWords(headerIndex);
+        long mask = 1L << (index & 63);
+        if ((reservedWords[index >>> 6] & mask) == 0) {
+            return false;
+        }
+        reservedWords[index >>> 6] &= ~mask;
+        reservedCounts[headerIndex]--;
+        markAllocated(pageNum);
+        return true;
+    }
+
+    /**
+     * Marks pageNum as allocated.
+     */
+    void markAllocated(int pageNum) {
+        int headerIndex = pageNum / pagesPerHeader;
+        int index = pageNum % pagesPerHeader;
+        long[] words = words(headerIndex);
+        long mask = 1L << (index & 63);
+        if ((words[index >>> 6] & mask) != 0) {
+            return;
+        }
+        words[index >>> 6] |= mask;
+        counts[headerIndex]++;
+        if (nextFreeHint[headerIndex] == index) {
+            nextFreeHint[headerIndex] = index + 1;
+        }
+        if (counts[headerIndex] + reservedCounts[headerIndex] == pagesPerHeader) {
+            nonFullHeaders.clear(headerIndex);
+        }
+    }
+
+    /**
+     * Marks pageNum as free.
+     */
+    void markFree(int pageNum) {
+        int headerIndex = pageNum / pagesPerHeader;
+        int index = pageNum % pagesPerHeader;
+        long[] words = words(headerIndex);
+        long mask = 1L << (index & 63);
+        if ((words[index >>> 6] & mask) == 0) {
+            return;
+        }
+        words[index >>> 6] &= ~mask;
+        counts[headerIndex]--;
+        nextFreeHint[headerIndex] = Math.min(nextFreeHint[headerIndex], index);
+        nonFullHeaders.set(headerIndex);
+    }
+
+    /**
+     * @return whether pageNum is allocated
+     */
+    boolean isAllocated(int pageNum) {
+        int headerIndex = pageNum / pagesPerHeader;
+        if (pageNum < 0 || headerIndex >= allocated.length || allocated[headerIndex] == null) {
+            return false;
+        }
+        int index = pageNum % pagesPerHeader;
+        return (allocated[headerIndex][index >>> 6] & (1L << (index & 63))) != 0;
+    }
+
+    /**
+     * Finds the first allocated page at or after pageNum. Headers without allocated pages are
+     * skipped without looking at their bits, and within a header whole words of free pages are
+     * skipped at a time.
+     *
+     * @return the page number of the first allocated page >= pageNum, or -1 if there is none
+     */
+    int nextAllocated(int pageNum) {
+        if (pageNum < 0) {
+            pageNum = 0;
+        }
+        for (int h = pageNum / pagesPerHeader; h < allocated.length; h++) {
+            int start = h == pageNum / pagesPerHeader ? pageNum % pagesPerHeader : 0;
+            if (counts[h] == 0 || start >= pagesPerHeader) {
+                continue;
+            }
+            long[] words = allocated[h];
+            int w = start >>> 6;
+            // Ignore the pages of the first word that come before start.
+            long word = words[w] & (-1L << (start & 63));
+            while (true) {
+                if (word != 0) {
+                    return h * pagesPerHeader + (w << 6) + Long.numberOfTrailingZeros(word);
+                }
+                if (++w == words.length) {
+                    break;
+                }
+                word = words[w];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the allocated page with the largest page number, looking at headers and words from
+     * the end like nextAllocated does from the start.
+     *
+     * @return the page number of the last allocated page, or -1 if there is none
+     */
+    int lastAllocated() {
+        for (int h = allocated.length - 1; h >= 0; h--) {
+            if (counts[h] == 0) {
+                continue;
+            }
+            long[] words = allocated[h];
+            for (int w = words.length - 1; w >= 0; w--) {
+                if (words[w] != 0) {
+                    return h * pagesPerHeader + (w << 6) + 63 - Long.numberOfLeadingZeros(words[w]);
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of allocated pages tracked by header page headerIndex
+     */
+    int getCount(int headerIndex) {
+        return counts[headerIndex];
+    }
+
+    private long[] words(int headerIndex) {
+        if (allocated[headerIndex] == null) {
+            allocated[headerIndex] = new long[(pagesPerHeader + 63) >>> 6];
+        }
+        return allocated[headerIndex];
+    }
+
+    private long[] reservedWords(int headerIndex) {
+        if (reserved[headerIndex] == null) {
+            reserved[headerIndex] = new long[(pagesPerHeader + 63) >>> 6];
+        }
+        return reserved[headerIndex];
+    }
+}
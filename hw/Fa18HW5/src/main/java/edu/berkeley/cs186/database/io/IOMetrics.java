@@ -0,0 +1,308 @@
+package edu.berkeley.cs186.database.io;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of the buffer pool and page I/O activity of one PageAllocator, and of the whole
+ * process. Every PageAllocator has its own metrics (see PageAllocator#getMetrics), and
+ * everything recorded there is also recorded in global().
+ *
+ *   - hits: fetches of a data page that was resident in the buffer pool.
+ *   - misses: pages loaded from the allocator's store, including header pages and
+ *     read-ahead. Each one reads a page's worth of bytes.
+ *   - evictions: pages the buffer pool dropped to make room for others.
+ *   - writeBacks: flushes of dirty pages to the file, either by writing them to a store that
+ *     does not write through or by forcing a memory-mapped page.
+ *   - forces: fsyncs of a page or of the whole file.
+ *   - bytesRead, bytesWritten: the bytes moved by misses, write-backs, and file preallocation.
+ *
+ * Fetch latencies are the time taken to load a page that missed; flush latencies are the time
+ * taken by a write-back, including its force if the page is durable. Counters are striped, so
+ * recording is cheap under contention, and reads are not atomic across counters.
+ */
+public class IOMetrics implements IOMetricsMXBean {
+    private static final String domain = "edu.berkeley.cs186.database";
+    private static final IOMetrics global = new IOMetrics(null);
+
+    static {
+        global.register("name=global");
+    }
+
+    // The metrics everything recorded here is also recorded in, or null.
+    private final IOMetrics parent;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder writeBacks = new LongAdder();
+    private final LongAdder forces = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LatencyHistogram fetchLatency = new LatencyHistogram();
+    private final LatencyHistogram flushLatency = new LatencyHistogram();
+    private ObjectName objectName;
+
+    /**
+     * @param parent the metrics to also record everything in, or null
+     */
+    IOMetrics(IOMetrics parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * @return the metrics of every PageAllocator in the process
+     */
+    public static IOMetrics global() {
+        return global;
+    }
+
+    void recordHit() {
+        for (IOMetrics m = this; m != null; m = m.parent) {
+            m.hits.increment();
+        }
+    }
+
+    void recordMiss(int numBytes, long nanos) {
+        for (IOMetrics m = this; m != null; m = m.parent) {
+            m.misses.increment();
+            m.bytesRead.add(numBytes);
+            m.fetchLatency.record(nanos);
+        }
+    }
+
+    void recordEviction() {
+        for (IOMetrics m = this; m != null; m = m.parent) {
+            m.evictions.increment();
+        }
+    }
+
+    void recordWriteBack(int numBytes, long nanos) {
+        for (IOMetrics m = this; m != null; m = m.parent) {
+            m.writeBacks.increment();
+            m.bytesWritten.add(numBytes);
+            m.flushLatency.record(nanos);
+        }
+    }
+
+    void recordForce() {
+        for (IOMetrics m = this; m != null; m = m.parent) {
+            m.forces.increment();
+        }
+    }
+
+    void recordWrite(long numBytes) {
+        for (IOMetrics m = this; m != null; m = m.parent) {
+            m.bytesWritten.add(numBytes);
+        }
+    }
+
+    @Override
+    public long getHits() {
+        return this.hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    @Override
+    public long getEvictions() {
+        return this.evictions.sum();
+    }
+
+    @Override
+    public long getWriteBacks() {
+        return this.writeBacks.sum();
+    }
+
+    @Override
+    public long getForces() {
+        return this.forces.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return this.bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return this.bytesWritten.sum();
+    }
+
+    public LatencyHistogram getFetchLatency() {
+        return this.fetchLatency;
+    }
+
+    public LatencyHistogram getFlushLatency() {
+        return this.flushLatency;
+    }
+
+    @Override
+    public long[] getFetchLatencyHistogram() {
+        return this.fetchLatency.getBuckets();
+    }
+
+    @Override
+    public long getFetchLatencyMedianNanos() {
+        return this.fetchLatency.getPercentile(0.5);
+    }
+
+    @Override
+    public long getFetchLatencyP99Nanos() {
+        return this.fetchLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public long[] getFlushLatencyHistogram() {
+        return this.flushLatency.getBuckets();
+    }
+
+    @Override
+    public long getFlushLatencyMedianNanos() {
+        return this.flushLatency.getPercentile(0.5);
+    }
+
+    @Override
+    public long getFlushLatencyP99Nanos() {
+        return this.flushLatency.getPercentile(0.99);
+    }
+
+    /**
+     * Sets every counter and histogram back to zero. The global metrics are not affected by
+     * resetting the metrics of one allocator.
+     */
+    @Override
+    public void reset() {
+        this.hits.reset();
+        this.misses.reset();
+        this.evictions.reset();
+        this.writeBacks.reset();
+        this.forces.reset();
+        this.bytesRead.reset();
+        this.bytesWritten.reset();
+        this.fetchLatency.reset();
+        this.flushLatency.reset();
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server as type=IOMetrics with the given
+     * additional key properties. Monitoring is best-effort: if the MBean can't be registered,
+     * the metrics are still recorded and can be queried directly.
+     */
+    synchronized void register(String keyProperties) {
+        try {
+            ObjectName name = new ObjectName(domain + ":type=IOMetrics," + keyProperties);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, name);
+            this.objectName = name;
+        } catch (JMException e) {
+            this.objectName = null;
+        }
+    }
+
+    /**
+     * Removes these metrics from the platform MBean server, if they were registered.
+     */
+    synchronized void unregister() {
+        if (this.objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+        } catch (JMException e) {
+            // Already gone.
+        }
+        this.objectName = null;
+    }
+
+    /**
+     * @return the name these metrics are registered under, or null if they are not registered
+     */
+    public synchronized ObjectName getObjectName() {
+        return this.objectName;
+    }
+
+    /**
+     * A histogram of latencies in nanoseconds with power-of-two buckets: bucket 0 counts
+     * latencies below 2ns, and bucket i > 0 counts latencies in [2^i, 2^(i+1)) ns.
+     */
+    public static class LatencyHistogram {
+        private static final int numBuckets = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(numBuckets);
+
+        void record(long nanos) {
+            int bucket = nanos < 2 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+            this.buckets.incrementAndGet(bucket);
+        }
+
+        void reset() {
+            for (int i = 0; i < numBuckets; i++) {
+                this.buckets.set(i, 0);
+            }
+        }
+
+        /**
+         * @return the number of latencies recorded
+         */
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < numBuckets; i++) {
+                count += this.buckets.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * @return a copy of the bucket counts
+         */
+        public long[] getBuckets() {
+            long[] counts = new long[numBuckets];
+            for (int i = 0; i < numBuckets; i++) {
+                counts[i] = this.buckets.get(i);
+            }
+            return counts;
+        }
+
+        /**
+         * @param p a fraction in [0, 1]
+         * @return an upper bound on the pth percentile latency, accurate to a factor of two,
+         * or 0 if nothing was recorded
+         */
+        public long getPercentile(double p) {
+            if (p < 0 || p > 1) {
+                throw new IllegalArgumentException("percentile must be in [0, 1]");
+            }
+            long[] counts = getBuckets();
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(p * total));
+            long seen = 0;
+            for (int i = 0; i < numBuckets; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return i == numBuckets - 1 ? Long.MAX_VALUE : 2L << i;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+}
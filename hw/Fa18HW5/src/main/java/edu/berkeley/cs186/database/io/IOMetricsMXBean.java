@@ -0,0 +1,42 @@
+package edu.berkeley.cs186.database.io;
+
+/**
+ * The management interface of IOMetrics, registered with the platform MBean server under
+ * edu.berkeley.cs186.database:type=IOMetrics for every open PageAllocator and once for the
+ * whole process (name=global). Latencies are in nanoseconds; see IOMetrics.LatencyHistogram
+ * for the layout of the histograms.
+ */
+public interface IOMetricsMXBean {
+    long getHits();
+
+    long getMisses();
+
+    double getHitRatio();
+
+    long getEvictions();
+
+    long getWriteBacks();
+
+    long getForces();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long[] getFetchLatencyHistogram();
+
+    long getFetchLatencyMedianNanos();
+
+    long getFetchLatencyP99Nanos();
+
+    long[] getFlushLatencyHistogram();
+
+    long getFlushLatencyMedianNanos();
+
+    long getFlushLatencyP99Nanos();
+
+    /**
+     * Sets every counter and histogram back to zero.
+     */
+    void reset();
+}
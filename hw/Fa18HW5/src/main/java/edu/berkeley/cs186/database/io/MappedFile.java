@@ -0,0 +1,147 @@
+package edu.berkeley.cs186.database.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A PageStore over a file that is memory-mapped in large fixed-size segments rather than one page at a time.
+ * Segments are mapped on demand, the first time one of their blocks is used, and every Page
+ * of the file is a slice of its segment's buffer. A page miss therefore costs no system call
+ * once its segment is mapped, and a file of n pages needs n / blocksPerSegment mappings
+ * instead of n.
+ *
+ * Mapping a segment extends the file to the end of the segment. To keep the on-disk size the
+ * same as if each page had been mapped individually, close truncates the file back to the end
+ * of the last block that was ever handed out or preallocated (but never below its size at
+ * open).
+ */
+class MappedFile implements PageStore {
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final FileChannel fc;
+    private final int pageSize;
+    private final int blocksPerSegment;
+    private final Map<Integer, MappedByteBuffer> segments;
+    private final long initialSize;
+    private int highestBlock;
+    private int preallocatedBlocks;
+
+    /**
+     * Map fc, a file of pageSize byte blocks, in segments of the default size.
+     */
+    MappedFile(FileChannel fc, int pageSize) {
+        this(fc, pageSize, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Map fc in segments of segmentSize bytes, which is rounded down to a whole number of pages.
+     *
+     * @param fc the file channel to map
+     * @param pageSize the size of each block of the file
+     * @param segmentSize the number of bytes in each mapping
+     */
+    MappedFile(FileChannel fc, int pageSize, int segmentSize) {
+        if (segmentSize < pageSize) {
+            throw new IllegalArgumentException("segment must hold at least one page");
+        }
+        this.fc = fc;
+        this.pageSize = pageSize;
+        this.blocksPerSegment = segmentSize / pageSize;
+        this.segments = new HashMap<>();
+        this.highestBlock = -1;
+        try {
+            this.initialSize = fc.size();
+        } catch (IOException e) {
+            throw new PageException("Could not stat file: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public int getPageSize() {
+        return this.pageSize;
+    }
+
+    @Override
+    public synchronized ByteBuffer load(int blockNum) {
+        MappedByteBuffer segment = segmentFor(blockNum);
+        int offset = (blockNum % blocksPerSegment) * pageSize;
+        ByteBuffer block = segment.duplicate();
+        block.position(offset);
+        block.limit(offset + pageSize);
+        this.highestBlock = Math.max(this.highestBlock, blockNum);
+        return block.slice();
+    }
+
+    @Override
+    public void write(int blockNum, ByteBuffer block) {}
+
+    /**
+     * Forces the segment that holds block blockNum to disk.
+     */
+    @Override
+    public void force(int blockNum) {
+        MappedByteBuffer segment;
+        synchronized (this) {
+            segment = segmentFor(blockNum);
+        }
+        segment.force();
+    }
+
+    /**
+     * Writes zeros over the blocks through the file channel. The blocks have never been
+     * written, so this cannot overwrite data held in a mapping. close does not trim
+     * preallocated blocks.
+     */
+    @Override
+    public synchronized void preallocate(int fromBlock, int toBlock) {
+        ChannelPageStore.writeZeros(this.fc, (long) fromBlock * pageSize,
+                                    (long) toBlock * pageSize);
+        this.preallocatedBlocks = Math.max(this.preallocatedBlocks, toBlock);
+    }
+
+    @Override
+    public boolean writesThrough() {
+        return true;
+    }
+
+    @Override
+    public void release(ByteBuffer block) {}
+
+    /**
+     * Trims the file back to the last block that was handed out or preallocated.
+     */
+    @Override
+    public synchronized void close() {
+        long size = Math.max(this.initialSize, (this.highestBlock + 1L) * pageSize);
+        size = Math.max(size, (long) this.preallocatedBlocks * pageSize);
+        try {
+            if (this.fc.size() > size) {
+                this.fc.truncate(size);
+            }
+        } catch (IOException e) {
+            throw new PageException("Could not trim file: " + e.getMessage());
+        }
+        this.segments.clear();
+    }
+
+    private MappedByteBuffer segmentFor(int blockNum) {
+        int segmentIndex = blockNum / blocksPerSegment;
+        MappedByteBuffer segment = this.segments.get(segmentIndex);
+        if (segment == null) {
+            // Only the segments that are actually used are mapped; the file stays sparse below.
+            long position = (long) segmentIndex * blocksPerSegment * pageSize;
+            try {
+                segment = this.fc.map(FileChannel.MapMode.READ_WRITE, position,
+                                      (long) blocksPerSegment * pageSize);
+            } catch (IOException e) {
+                throw new PageException("Can't mmap segment at: " + position + " ; " + e.getMessage());
+            }
+            this.segments.put(segmentIndex, segment);
+        }
+        return segment;
+    }
+}
@@ -0,0 +1,115 @@
+package edu.berkeley.cs186.database.io;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A PageStore that keeps the blocks of a file in heap buffers instead of in the file, for
+ * files whose contents need not outlive the allocator, such as temporary tables. Pages are
+ * views of the in-memory blocks, so loading one costs no I/O and writing one back costs
+ * nothing.
+ *
+ * Once the blocks would take more than spillBytes bytes, the store spills: it writes every
+ * block to the file and from then on behaves like PageStore.CHANNEL. Until then, the file is
+ * never written.
+ *
+ * Nothing is ever forced to disk, and blocks that have not been spilled are dropped when the
+ * store is closed, so the file must not be reopened.
+ */
+class MemoryPageStore implements PageStore {
+    private final FileChannel fc;
+    private final int pageSize;
+    private final long spillBytes;
+    private final Map<Integer, ByteBuffer> blocks;
+    // The store blocks are read from and written to once they have been spilled, or null.
+    private ChannelPageStore spilled;
+
+    MemoryPageStore(FileChannel fc, int pageSize, long spillBytes) {
+        this.fc = fc;
+        this.pageSize = pageSize;
+        this.spillBytes = spillBytes;
+        this.blocks = new HashMap<>();
+        this.spilled = null;
+    }
+
+    @Override
+    public int getPageSize() {
+        return this.pageSize;
+    }
+
+    @Override
+    public synchronized ByteBuffer load(int blockNum) {
+        if (this.spilled == null && !this.blocks.containsKey(blockNum)
+                && (long) (this.blocks.size() + 1) * this.pageSize > this.spillBytes) {
+            spill();
+        }
+        if (this.spilled != null) {
+            return this.spilled.load(blockNum);
+        }
+        ByteBuffer block = this.blocks.computeIfAbsent(blockNum,
+                           b -> ByteBuffer.allocate(this.pageSize));
+        // Every page gets its own position over the shared bytes.
+        return block.duplicate();
+    }
+
+    /**
+     * Writes every block to the file and hands the blocks over to a ChannelPageStore. Pages
+     * loaded before the spill keep using the in-memory bytes and are written to the file when
+     * they are written back.
+     */
+    private void spill() {
+        this.spilled = new ChannelPageStore(this.fc, this.pageSize);
+        for (Map.Entry<Integer, ByteBuffer> e : this.blocks.entrySet()) {
+            this.spilled.write(e.getKey(), e.getValue());
+        }
+        this.blocks.clear();
+    }
+
+    @Override
+    public synchronized void write(int blockNum, ByteBuffer block) {
+        // Before the spill, every loaded buffer shares its bytes with the block it was loaded from.
+        if (this.spilled != null) {
+            this.spilled.write(blockNum, block);
+        }
+    }
+
+    @Override
+    public void force(int blockNum) {}
+
+    @Override
+    public boolean writesThrough() {
+        return false;
+    }
+
+    @Override
+    public synchronized void preallocate(int fromBlock, int toBlock) {
+        if (this.spilled != null) {
+            this.spilled.preallocate(fromBlock, toBlock);
+        }
+    }
+
+    @Override
+    public synchronized void release(ByteBuffer block) {
+        // Heap buffers were loaded before the spill and are left to the garbage collector.
+        if (this.spilled != null && block.isDirect()) {
+            this.spilled.release(block);
+        }
+    }
+
+    /**
+     * @return whether the blocks have been written out to the file
+     */
+    synchronized boolean isSpilled() {
+        return this.spilled != null;
+    }
+
+    @Override
+    public synchronized void close() {
+        this.blocks.clear();
+        if (this.spilled != null) {
+            this.spilled.close();
+        }
+    }
+}
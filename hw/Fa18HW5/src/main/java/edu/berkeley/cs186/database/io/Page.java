@@ -6,20 +6,77 @@ import edu.berkeley.cs186.database.common.Buffer;
 import edu.berkeley.cs186.database.concurrency.*;
 import edu.berkeley.cs186.database.table.Table;
 
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * General-purpose wrapper for interacting with the memory-mapped bytes on a page.
+ *
+ * A page may be pinned while a caller is using it. The buffer pool never evicts a pinned page,
+ * so every pin() must be matched by an unpin() once the caller no longer holds the page:
+ *
+ *   Page page = allocator.pinPage(transaction, pageNum);
+ *   try {
+ *       // read or write page
+ *   } finally {
+ *       page.unpin();
+ *   }
+ *
+ * Callers that read or write several related bytes of a page, such as a record and its bit in
+ * the page's bitmap, also latch the page for the duration. Latches are short-term reader/writer
+ * locks that keep the page's bytes physically consistent while threads access it at the same
+ * time; they are unrelated to the transactional locks taken through the page's LockContext, and
+ * are not reentrant. Transactional locks must be acquired before the latch, never while holding
+ * it:
+ *
+ *   Buffer buf = page.getBuffer(transaction, LockType.X);
+ *   long stamp = page.latchExclusive();
+ *   try {
+ *       // read and write buf
+ *   } finally {
+ *       page.unlatch(stamp);
+ *   }
+ *
+ * Readers may also read optimistically, without blocking writers, by taking a stamp from
+ * optimisticLatch, copying the bytes they need, and checking with validateLatch that no writer
+ * latched the page in between.
  */
 public class Page {
+    // The default page size. Each PageAllocator file records its own page size; see
+    // PageAllocator#getPageSize.
     public static final int pageSize = 4096;
 
     private LockContext lockContext;
-    private MappedByteBuffer pageData;
+    // Null once the page has been released. Read it once into a local (see loadedData) rather
+    // than checking it and reading it again.
+    private volatile ByteBuffer pageData;
+    // The store this page was loaded from, or null if the page has its own mapping.
+    private PageStore store;
+    // Whether writes must be written back to the store, i.e. it does not write through.
+    private boolean writeBack;
+    private int blockNum;
+    // The size of this page in bytes; pageSize unless its file uses another page size.
+    private int size;
     private int pageNum;
     private boolean durable;
+    private AtomicInteger pinCount = new AtomicInteger(0);
+    private final StampedLock latch = new StampedLock();
+    // Where loads, write-backs, forces, and evictions of this page are counted.
+    private IOMetrics metrics = IOMetrics.global();
+    // Counts the writes to a durable page, or to any page of a store that does not write
+    // through; the page is dirty while numWrites is ahead of the count its last successful flush
+    // saw. Non-durable pages of a store that writes through are never flushed, so they are never
+    // dirty.
+    private final AtomicLong numWrites = new AtomicLong();
+    private volatile long numFlushedWrites = 0;
+    // Held while the page's bytes are written back or its buffer released, so that a flush
+    // never writes a buffer that has been handed back to the store.
+    private final Object ioLock = new Object();
 
     /**
      * Create a new page using fc with at offset blockNum with virtual page number pageNum
@@ -46,19 +103,93 @@ public class Page {
         this.lockContext = lockContext;
         this.pageNum = pageNum;
         this.durable = durable;
+        this.size = Page.pageSize;
         PageAllocator.incrementCacheMisses();
+        long start = System.nanoTime();
         try {
             this.pageData = fc.map(FileChannel.MapMode.READ_WRITE, blockNum * Page.pageSize, Page.pageSize);
         } catch (IOException e) {
             throw new PageException("Can't mmap page: " + pageNum + "at block: " + blockNum + " ; " +
                                     e.getMessage());
         }
+        this.metrics.recordMiss(this.size, System.nanoTime() - start);
+    }
+
+    /**
+     * Create a new page over block blockNum of the file behind store with virtual page number
+     * pageNum.
+     *
+     * @param lockContext the lock context
+     * @param store the store of the file for this Page
+     * @param blockNum the block in the file for this page
+     * @param pageNum the virtual page number
+     * @param durable whether writes to the page are forced on flush
+     * @param metrics where to count the page's I/O
+     */
+    Page(LockContext lockContext, PageStore store, int blockNum, int pageNum, boolean durable,
+         IOMetrics metrics) {
+        this.lockContext = lockContext;
+        this.metrics = metrics;
+        this.store = store;
+        this.writeBack = !store.writesThrough();
+        this.blockNum = blockNum;
+        this.pageNum = pageNum;
+        this.durable = durable;
+        this.size = store.getPageSize();
+        PageAllocator.incrementCacheMisses();
+        long start = System.nanoTime();
+        this.pageData = store.load(blockNum);
+        this.metrics.recordMiss(this.size, System.nanoTime() - start);
     }
 
     public Buffer getBuffer(BaseTransaction transaction) {
         return new PageBuffer(transaction);
     }
 
+    /**
+     * Get a buffer over the page for which the locks are acquired once, up front, instead of
+     * on every access. lockType must be S, to read the page, or X, to read and write it. Typed
+     * reads and writes on the returned buffer go straight to the page's bytes without copying.
+     * An S buffer acquires an X lock the first time it is written to.
+     *
+     * The buffer is only valid while the page is pinned and the locks are held, so it should
+     * be used for a single pass over the page and then discarded.
+     *
+     * @param transaction the transaction accessing the page
+     * @param lockType the lock to acquire on the page
+     */
+    public Buffer getBuffer(BaseTransaction transaction, LockType lockType) {
+        switch (lockType) {
+        case S: {
+            requestReadLock(transaction);
+            return new LockedPageBuffer(transaction, false, 0, 0);
+        }
+        case X: {
+            requestWriteLock(transaction);
+            return new LockedPageBuffer(transaction, true, 0, 0);
+        }
+        default: {
+            throw new IllegalArgumentException("page buffers are locked S or X, not " + lockType);
+        }
+        }
+    }
+
+    private void requestReadLock(BaseTransaction transaction) {
+        LockContext table = lockContext.parentContext();
+        if (!LockType.substitutable(lockContext.getGlobalLockType(transaction), LockType.S)) {
+            if ( table.capacity() >= 10 && table.saturation(transaction) >= 0.2) {
+                table.escalate(transaction);
+            }
+            LockUtil.requestLocks(transaction, lockContext, LockType.S);
+        }
+    }
+
+    private void requestWriteLock(BaseTransaction transaction) {
+        if (!LockType.substitutable(lockContext.getGlobalLockType(transaction), LockType.X)) {
+            LockUtil.requestLocks(transaction, lockContext, LockType.X);
+        }
+    }
+
     /**
      * Reads num bytes from offset position into buf.
      *
@@ -70,14 +201,16 @@ public class Page {
         if (position < 0 || num < 0) {
             throw new PageException("position or num can't be negative");
         }
-        if (Page.pageSize < position + num) {
+        if (this.size < position + num) {
             throw new PageException("readBytes is out of bounds");
         }
         if (buf.length < num) {
             throw new PageException("num bytes to read is longer than buffer");
         }
-        pageData.position(position);
-        pageData.get(buf, 0, num);
+        // Concurrent readers each need a position of their own.
+        ByteBuffer data = loadedData().duplicate();
+        data.position(position);
+        data.get(buf, 0, num);
     }
 
     /**
@@ -86,7 +219,7 @@ public class Page {
      * @return a new byte array with all the bytes in the file
      */
     public byte[] readBytes(BaseTransaction transaction) {
-        byte[] data = new byte[Page.pageSize];
+        byte[] data = new byte[this.size];
         getBuffer(transaction).get(data);
         return data;
     }
@@ -107,12 +240,16 @@ public class Page {
             throw new PageException("position or num can't be negative");
         }
 
-        if (Page.pageSize < num + position) {
+        if (this.size < num + position) {
             throw new PageException("writeBytes would go out of bounds");
         }
 
-        pageData.position(position);
-        pageData.put(buf, 0, num);
+        ByteBuffer data = loadedData().duplicate();
+        data.position(position);
+        data.put(buf, 0, num);
+        if (this.durable || this.writeBack) {
+            this.numWrites.incrementAndGet();
+        }
     }
 
     /**
@@ -126,20 +263,188 @@ public class Page {
      * Completely wipe (zero out) the page.
      */
     public void wipe(BaseTransaction transaction) {
-        byte[] zeros = new byte[Page.pageSize];
+        byte[] zeros = new byte[this.size];
         writeBytes(transaction, zeros);
     }
 
     /**
-     * Force the page to disk.
+     * Write the page back to its store and, if it is durable, force it to disk, if it has been
+     * modified since it was last flushed.
      */
     public void flush() {
-        if (this.durable) {
-            PageAllocator.incrementCacheMisses();
-            this.pageData.force();
+        synchronized (this.ioLock) {
+            // Note the writes before flushing, so that one made during the flush leaves the page
+            // dirty, and only mark them flushed once the flush has succeeded.
+            long writes = this.numWrites.get();
+            ByteBuffer data = this.pageData;
+            if (writes == this.numFlushedWrites || data == null) {
+                return;
+            }
+            long start = System.nanoTime();
+            if (this.store == null) {
+                PageAllocator.incrementCacheMisses();
+                ((MappedByteBuffer) data).force();
+                this.metrics.recordForce();
+            } else {
+                this.store.write(this.blockNum, data);
+                if (this.durable) {
+                    PageAllocator.incrementCacheMisses();
+                    this.store.force(this.blockNum);
+                    this.metrics.recordForce();
+                }
+            }
+            this.numFlushedWrites = writes;
+            this.metrics.recordWriteBack(this.size, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Write the page back to its store without forcing it, if the store does not write through.
+     * The caller is responsible for forcing the file afterwards.
+     */
+    void writeBack() {
+        if (!this.writeBack) {
+            return;
+        }
+        synchronized (this.ioLock) {
+            long writes = this.numWrites.get();
+            ByteBuffer data = this.pageData;
+            if (writes == this.numFlushedWrites || data == null) {
+                return;
+            }
+            long start = System.nanoTime();
+            this.store.write(this.blockNum, data);
+            this.numFlushedWrites = writes;
+            this.metrics.recordWriteBack(this.size, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Flush and release the page after the buffer pool has dropped it to make room for
+     * another.
+     */
+    void evict() {
+        this.metrics.recordEviction();
+        synchronized (this.ioLock) {
+            flush();
+            release();
+        }
+    }
+
+    /**
+     * Make sure the page's bytes are in memory, e.g. by faulting in a memory-mapped page, so
+     * that a later access does not block on I/O. Takes no locks.
+     */
+    void load() {
+        ByteBuffer data = this.pageData;
+        if (data == null) {
+            return;
+        }
+        data.get(0);
+    }
+
+    /**
+     * Return the page's buffer to its store once the page has been flushed and dropped from
+     * the buffer pool. Pages of a store that does not write through cannot be used afterwards.
+     */
+    void release() {
+        if (!this.writeBack) {
+            return;
+        }
+        synchronized (this.ioLock) {
+            ByteBuffer data = this.pageData;
+            if (data != null) {
+                this.pageData = null;
+                this.store.release(data);
+            }
+        }
+    }
+
+    /**
+     * @return whether the page has been modified since it was last forced to disk
+     */
+    public boolean isDirty() {
+        return this.numWrites.get() != this.numFlushedWrites;
+    }
+
+    /**
+     * Pin the page so that the buffer pool will not evict it. Pins nest: the page stays pinned
+     * until unpin has been called once for every call to pin.
+     *
+     * @return this page
+     */
+    public Page pin() {
+        this.pinCount.getAndIncrement();
+        return this;
+    }
+
+    /**
+     * Release one pin on the page.
+     */
+    public void unpin() {
+        if (this.pinCount.getAndDecrement() <= 0) {
+            this.pinCount.getAndIncrement();
+            throw new PageException("unpin of page " + pageNum + " that is not pinned");
         }
     }
 
+    /**
+     * @return whether the page is pinned by any caller
+     */
+    public boolean isPinned() {
+        return this.pinCount.get() > 0;
+    }
+
+    /**
+     * Latch the page in shared mode, waiting for any thread that holds it exclusively.
+     *
+     * @return the stamp to pass to unlatch
+     */
+    public long latchShared() {
+        return this.latch.readLock();
+    }
+
+    /**
+     * Latch the page in exclusive mode, waiting for all other threads to unlatch it.
+     *
+     * @return the stamp to pass to unlatch
+     */
+    public long latchExclusive() {
+        return this.latch.writeLock();
+    }
+
+    /**
+     * Release a latch taken with latchShared or latchExclusive.
+     */
+    public void unlatch(long stamp) {
+        this.latch.unlock(stamp);
+    }
+
+    /**
+     * Start an optimistic read of the page, which takes no latch and never waits.
+     *
+     * @return a stamp to pass to validateLatch once the read is done, or 0 if the page is
+     * latched exclusively, in which case the read will not validate
+     */
+    public long optimisticLatch() {
+        return this.latch.tryOptimisticRead();
+    }
+
+    /**
+     * @return whether no thread has latched the page exclusively since stamp was returned by
+     * optimisticLatch, i.e. whether the bytes read since then are consistent
+     */
+    public boolean validateLatch(long stamp) {
+        return this.latch.validate(stamp);
+    }
+
+    /**
+     * @return the size of this page in bytes
+     */
+    public int getPageSize() {
+        return this.size;
+    }
+
     /**
      * @return the virtual page number of this page
      */
@@ -147,6 +452,18 @@ public class Page {
         return this.pageNum;
     }
 
+    /**
+     * @return the page's bytes
+     * @throws PageException if the page has been released
+     */
+    private ByteBuffer loadedData() {
+        ByteBuffer data = this.pageData;
+        if (data == null) {
+            throw new PageException("page " + pageNum + " was evicted; pin pages while using them");
+        }
+        return data;
+    }
+
     private class PageBuffer extends AbstractBuffer {
         private int offset;
         private BaseTransaction transaction;
@@ -162,14 +479,7 @@ public class Page {
         }
 
         public Buffer get(byte[] dst, int offset, int length) {
-            LockContext table = lockContext.parentContext();
-            if (!LockType.substitutable(lockContext.getGlobalLockType(transaction), LockType.S)) {
-                if ( table.capacity() >= 10 && table.saturation(this.transaction) >= 0.2) {
-                    table.escalate(this.transaction);
-                }
-                LockUtil.requestLocks(this.transaction, lockContext, LockType.S);
-            }
-
+            requestReadLock(this.transaction);
 
             // TODO(hw5): locking code here
             Page.this.readBytes(this.offset + offset, length, dst);
@@ -177,9 +487,7 @@ public class Page {
         }
 
         public Buffer put(byte[] src, int offset, int length) {
-            if (!LockType.substitutable(lockContext.getGlobalLockType(transaction), LockType.X)) {
-                LockUtil.requestLocks(transaction, lockContext, LockType.X);
-            }
+            requestWriteLock(this.transaction);
 
             // TODO(hw5): locking code here
             Page.this.writeBytes(this.offset + offset, length, src);
@@ -195,4 +503,136 @@ public class Page {
             return pb;
         }
     }
+
+    /**
+     * A page buffer whose locks were acquired when it was created. Reads and writes use
+     * absolute indexing into the page's bytes and do not allocate.
+     */
+    private class LockedPageBuffer extends AbstractBuffer {
+        private int offset;
+        private BaseTransaction transaction;
+        private boolean writable;
+
+        LockedPageBuffer(BaseTransaction transaction, boolean writable, int offset, int position) {
+            super(position);
+            this.offset = offset;
+            this.transaction = transaction;
+            this.writable = writable;
+        }
+
+        /**
+         * @return the page's bytes, after checking that length bytes at index are on the page
+         */
+        private ByteBuffer data(int index, int length) {
+            if (index < 0 || this.offset + index + length > Page.this.size) {
+                throw new PageException("access of " + length + " bytes at " +
+                                        (this.offset + index) + " is out of bounds");
+            }
+            return loadedData();
+        }
+
+        private ByteBuffer dataForWrite(int index, int length) {
+            requireWritable();
+            return data(index, length);
+        }
+
+        private void requireWritable() {
+            if (!this.writable) {
+                requestWriteLock(this.transaction);
+                this.writable = true;
+            }
+        }
+
+        private Buffer written() {
+            if (Page.this.durable || Page.this.writeBack) {
+                Page.this.numWrites.incrementAndGet();
+            }
+            return this;
+        }
+
+        public Buffer get(byte[] dst, int offset, int length) {
+            Page.this.readBytes(this.offset + offset, length, dst);
+            return this;
+        }
+
+        public Buffer put(byte[] src, int offset, int length) {
+            requireWritable();
+            Page.this.writeBytes(this.offset + offset, length, src);
+            return this;
+        }
+
+        @Override
+        public byte get(int index) {
+            return data(index, 1).get(this.offset + index);
+        }
+
+        @Override
+        public double getDouble(int index) {
+            return data(index, 8).getDouble(this.offset + index);
+        }
+
+        @Override
+        public float getFloat(int index) {
+            return data(index, 4).getFloat(this.offset + index);
+        }
+
+        @Override
+        public int getInt(int index) {
+            return data(index, 4).getInt(this.offset + index);
+        }
+
+        @Override
+        public long getLong(int index) {
+            return data(index, 8).getLong(this.offset + index);
+        }
+
+        @Override
+        public short getShort(int index) {
+            return data(index, 2).getShort(this.offset + index);
+        }
+
+        @Override
+        public Buffer put(int index, byte b) {
+            dataForWrite(index, 1).put(this.offset + index, b);
+            return written();
+        }
+
+        @Override
+        public Buffer putDouble(int index, double value) {
+            dataForWrite(index, 8).putDouble(this.offset + index, value);
+            return written();
+        }
+
+        @Override
+        public Buffer putFloat(int index, float value) {
+            dataForWrite(index, 4).putFloat(this.offset + index, value);
+            return written();
+        }
+
+        @Override
+        public Buffer putInt(int index, int value) {
+            dataForWrite(index, 4).putInt(this.offset + index, value);
+            return written();
+        }
+
+        @Override
+        public Buffer putLong(int index, long value) {
+            dataForWrite(index, 8).putLong(this.offset + index, value);
+            return written();
+        }
+
+        @Override
+        public Buffer putShort(int index, short value) {
+            dataForWrite(index, 2).putShort(this.offset + index, value);
+            return written();
+        }
+
+        public Buffer slice() {
+            return new LockedPageBuffer(transaction, writable, offset + position(), 0);
+        }
+
+        public Buffer duplicate() {
+            return new LockedPageBuffer(transaction, writable, offset, position());
+        }
+    }
 }
@@ -15,9 +15,17 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.io.Closeable;
+import javax.management.ObjectName;
 
 import edu.berkeley.cs186.database.BaseTransaction;
 import edu.berkeley.cs186.database.common.BacktrackingIterator;
@@ -26,27 +34,81 @@ import edu.berkeley.cs186.database.concurrency.DummyLockContext;
 import edu.berkeley.cs186.database.concurrency.LockContext;
 
 /**
- * A PageAllocation system for an OS paging system. Provides memory-mapped paging from the OS, an
- * interface to individual pages with the Page objects, an LRU cache for pages, 16GB worth of paging,
- * and virtual page translation.
+ * A PageAllocation system for an OS paging system. Provides memory-mapped paging from the OS (the
+ * file is mapped in large segments, see MappedFile), an interface to individual pages with the
+ * Page objects, a shared buffer pool for pages, 16GB worth of paging (with the default page
+ * size), and virtual page translation.
  *
+ * Every file has its own page size, a multiple of Page.pageSize chosen when the file is created
+ * (wiped). The master page holds the page count of each header page followed, in its last four
+ * bytes of the first Page.pageSize, by the page size of the file, or 0 for the default.
  */
 public class PageAllocator implements Closeable {
-    private static final int numHeaderPages = 1024;
-    private static final int cacheSize = 1024;
+    // The last int of the master page records the page size, so it tracks one header less.
+    private static final int numHeaderPages = 1023;
+    private static final int pageSizeOffset = 4 * numHeaderPages;
+    private static final int cacheSize = BufferPool.DEFAULT_CAPACITY;
+    private static final long groupSyncIntervalMillis = 100;
+    // The number of threads that serve read-ahead and asynchronous fetches for all allocators.
+    private static final int numIOThreads = 4;
+    // Extents start at minExtentPages pages and double in size up to maxExtentPages.
+    private static final int minExtentPages = 8;
+    private static final int maxExtentPages = 64;
+    // A scan of a file of more than 1 / scanRingFraction of the buffer pool's capacity loads its
+    // pages into a ring of scanRingPages pages plus its read-ahead distance.
+    private static final int scanRingFraction = 4;
+    private static final int scanRingPages = 16;
+
+    /**
+     * How a PageAllocator makes allocations and frees durable.
+     */
+    public enum Durability {
+        // Nothing is ever forced to disk.
+        NONE,
+        // The master and header pages are forced on every allocPage and freePage.
+        SYNC,
+        // Forces are coalesced: allocPage and freePage only mark the file as needing a sync,
+        // and the whole file is forced once at the next sync point, i.e. a call to sync, close,
+        // or the first allocation or free after groupSyncIntervalMillis have passed.
+        GROUP
+    }
 
     private static AtomicInteger pACounter = new AtomicInteger(0);
-    private static LRUCache<Long, Page> pageLRU = new LRUCache<>(cacheSize);
+    private static volatile BufferPool bufferPool = new BufferPool(cacheSize);
     private static AtomicLong numIOs = new AtomicLong(0);
     private static AtomicLong cacheMisses = new AtomicLong(0);
+    private static volatile int readAheadPages = 8;
+    private static final ExecutorService ioPool = Executors.newFixedThreadPool(
+    numIOThreads, r -> {
+        Thread t = new Thread(r, "page-io");
+        t.setDaemon(true);
+        return t;
+    });
 
     private LockContext lockContext;
     private Page masterPage;
+    // Header pages are mapped once, on first use, and stay resident until close.
+    private Page[] headerPages;
     private FileChannel fc;
+    private PageStore store;
+    private int pageSize;
     private int numPages;
     private int numUsedHeaderPages;
+    private FreeSpaceMap freeSpace;
     private int allocID;
     private boolean durable;
+    private Durability durability;
+    private boolean syncPending;
+    private long lastSyncMillis;
+    // The file grows preallocationPages blocks at a time; blocks below preallocatedBlocks have
+    // been preallocated or were part of the file when it was opened.
+    private int preallocationPages;
+    private int preallocatedBlocks;
+    private final IOMetrics metrics;
+    // The reads of data pages in flight, by page number, so that a page that several threads
+    // miss at once (e.g. a scan and its own read-ahead) is read from the store only once.
+    private final ConcurrentMap<Integer, CompletableFuture<Page>> pendingLoads =
+        new ConcurrentHashMap<>();
     /**
      * Create a new PageAllocator that writes its bytes into a file named fName. If wipe is true, the
      * data in the page is completely removed.
@@ -70,16 +132,79 @@ public class PageAllocator implements Closeable {
 
     public PageAllocator(LockContext lockContext, String fName, boolean wipe, boolean durable,
                          BaseTransaction transaction) {
+        this(lockContext, fName, wipe, durable ? Durability.SYNC : Durability.NONE, transaction);
+    }
+
+    public PageAllocator(String fName, boolean wipe, Durability durability,
+                         BaseTransaction transaction) {
+        this(new DummyLockContext(), fName, wipe, durability, transaction);
+    }
+
+    public PageAllocator(LockContext lockContext, String fName, boolean wipe, Durability durability,
+                         BaseTransaction transaction) {
+        this(lockContext, fName, wipe, durability, PageStore.MMAP, transaction);
+    }
+
+    public PageAllocator(LockContext lockContext, String fName, boolean wipe, PageStore.Factory pageStore,
+                         BaseTransaction transaction) {
+        this(lockContext, fName, wipe, Page.pageSize, pageStore, transaction);
+    }
+
+    public PageAllocator(LockContext lockContext, String fName, boolean wipe, int pageSize,
+                         PageStore.Factory pageStore, BaseTransaction transaction) {
+        this(lockContext, fName, wipe, Durability.SYNC, pageSize, pageStore, transaction);
+    }
+
+    public PageAllocator(LockContext lockContext, String fName, boolean wipe, Durability durability,
+                         PageStore.Factory pageStore, BaseTransaction transaction) {
+        this(lockContext, fName, wipe, durability, Page.pageSize, pageStore, transaction);
+    }
+
+    /**
+     * Create a new PageAllocator that writes its bytes into a file named fName through
+     * pageStore, making allocations and frees durable according to durability. The file uses
+     * pages of pageSize bytes if it is new or wiped, and keeps the page size it was created
+     * with otherwise.
+     *
+     * @param lockContext the lock context
+     * @param fName the name of the file for this PageAllocator
+     * @param wipe a boolean specifying whether to wipe the file
+     * @param durability when to force metadata changes to disk
+     * @param pageSize the page size of a new file, a multiple of Page.pageSize
+     * @param pageStore the I/O backend used to read and write pages
+     */
+    public PageAllocator(LockContext lockContext, String fName, boolean wipe, Durability durability,
+                         int pageSize, PageStore.Factory pageStore, BaseTransaction transaction) {
+        if (pageSize < Page.pageSize || pageSize % Page.pageSize != 0) {
+            throw new IllegalArgumentException("page size must be a multiple of " + Page.pageSize);
+        }
         this.lockContext = lockContext;
-        this.durable = durable;
+        this.metrics = new IOMetrics(IOMetrics.global());
+        this.durability = durability;
+        this.durable = durability != Durability.NONE;
+        this.syncPending = false;
+        this.lastSyncMillis = System.currentTimeMillis();
         try {
             this.fc = new RandomAccessFile(fName, "rw").getChannel();
         } catch (IOException e) {
             throw new PageException("Could not open File: " + e.getMessage());
         }
 
-        this.masterPage = new Page(this.lockContext.childContext(-1), this.fc, 0, -1);
+        this.pageSize = openPageSize(wipe, pageSize);
+        this.preallocationPages = 0;
+        try {
+            // The master page is always kept, even if it has not been written yet.
+            long fileBlocks = (this.fc.size() + this.pageSize - 1) / this.pageSize;
+            this.preallocatedBlocks = (int) Math.max(1, fileBlocks);
+        } catch (IOException e) {
+            throw new PageException("Could not stat file: " + e.getMessage());
+        }
+        this.store = pageStore.open(this.fc, this.pageSize);
+        this.masterPage = new Page(this.lockContext.childContext(-1), this.store, 0, -1, true,
+                                   this.metrics);
+        this.headerPages = new Page[numHeaderPages];
         this.allocID = pACounter.getAndIncrement();
+        this.metrics.register("file=" + ObjectName.quote(fName) + ",id=" + this.allocID);
 
         if (wipe) {
             // Nukes masterPage and headerPages
@@ -105,12 +230,23 @@ public class PageAllocator implements Closeable {
         int[] pageCounts = new int[ib.capacity()];
         ib.get(pageCounts);
 
+        int storedPageSize = this.pageSize == Page.pageSize ? 0 : this.pageSize;
+        if (pageCounts[pageSizeOffset / 4] != storedPageSize) {
+            this.masterPage.getBuffer(transaction).putInt(pageSizeOffset, storedPageSize);
+        }
+
         this.numPages = 0;
         this.numUsedHeaderPages = 0;
+        this.freeSpace = new FreeSpaceMap(numHeaderPages, this.pageSize);
         for (int i = 0; i < numHeaderPages; i++) {
             this.numPages += pageCounts[i];
             if (pageCounts[i] != 0) {
                 this.numUsedHeaderPages += 1;
+                this.freeSpace.load(i, getHeadPage(i).readBytes(transaction));
+                if (this.freeSpace.getCount(i) != pageCounts[i]) {
+                    throw new PageException("header page " + i + " does not match its count in the " +
+                                            "master page");
+                }
             }
         }
 
@@ -118,59 +254,106 @@ public class PageAllocator implements Closeable {
         this.lockContext.capacity(this.numPages + this.numUsedHeaderPages);
     }
 
+    /**
+     * Determines the page size of the file: the one recorded in its master page, unless the
+     * file is new or about to be wiped. A file that is wiped to a different page size is
+     * truncated first, since none of its blocks line up with the new size.
+     */
+    private int openPageSize(boolean wipe, int requestedPageSize) {
+        int storedPageSize;
+        try {
+            if (this.fc.size() < Page.pageSize) {
+                return requestedPageSize;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(4);
+            this.fc.read(buf, pageSizeOffset);
+            storedPageSize = buf.getInt(0) == 0 ? Page.pageSize : buf.getInt(0);
+            if (!wipe) {
+                return storedPageSize;
+            }
+            if (storedPageSize != requestedPageSize) {
+                this.fc.truncate(0);
+            }
+        } catch (IOException e) {
+            throw new PageException("Could not read page size: " + e.getMessage());
+        }
+        return requestedPageSize;
+    }
+
     /**
      * Allocates a new page in the file.
      *
      * @return the virtual page number of the page
      */
     public synchronized int allocPage(BaseTransaction transaction) {
-        byte[] masterBytes = this.masterPage.readBytes(transaction);
-        IntBuffer ib = ByteBuffer.wrap(masterBytes).asIntBuffer();
-        int[] pageCounts = new int[ib.capacity()];
-        ib.get(pageCounts);
+        // The free space map finds the same page a scan of the master and header pages would.
+        int pageNum = this.freeSpace.allocate();
+        if (pageNum == -1) {
+            throw new PageException("No free Pages Available");
+        }
+        return recordAllocation(transaction, pageNum);
+    }
 
-        Page headerPage = null;
-        int headerIndex = -1;
-        for (int i = 0; i < numHeaderPages; i++) {
-            if (pageCounts[i] < Page.pageSize) {
-                // Found header page with space
-                headerPage = getHeadPage(i);
-                headerIndex = i;
-                break;
+    /**
+     * Allocates a new page in the file from extent, reserving a new run of contiguous pages for
+     * the extent once its current run is used up. If there is no run of free pages long enough,
+     * the page is allocated as by allocPage(transaction).
+     *
+     * @return the virtual page number of the page
+     */
+    public synchronized int allocPage(BaseTransaction transaction, Extent extent) {
+        if (extent.allocator() != this) {
+            throw new IllegalArgumentException("extent belongs to another page allocator");
+        }
+        int pageNum = extent.take();
+        if (pageNum == -1) {
+            int start = this.freeSpace.reserveRun(extent.size);
+            if (start != -1) {
+                extent.next = start;
+                extent.end = start + extent.size;
+                extent.size = Math.min(2 * extent.size, maxExtentPages);
+                pageNum = extent.take();
+            } else {
+                pageNum = this.freeSpace.allocate();
             }
         }
-
-        if (headerPage == null) {
+        if (pageNum == -1) {
             throw new PageException("No free Pages Available");
         }
+        return recordAllocation(transaction, pageNum);
+    }
 
-        byte[] headerBytes = headerPage.readBytes(transaction);
-        int pageIndex = -1;
-
-        for (int i = 0; i < Page.pageSize; i++) {
-            if (headerBytes[i] == 0) {
-                pageIndex = i;
-                break;
-            }
-        }
+    /**
+     * @return a new, empty extent of this allocator
+     */
+    public Extent newExtent() {
+        return new Extent();
+    }
 
-        if (pageIndex == -1) {
-            throw new PageException("Header page should have free page but doesnt");
-        }
+    /**
+     * Records the allocation of pageNum, which has been marked allocated in the free space map,
+     * in the master and header pages and wipes the page.
+     */
+    private int recordAllocation(BaseTransaction transaction, int pageNum) {
+        int headerIndex = pageNum / this.pageSize;
+        int pageIndex = pageNum % this.pageSize;
+        int newCount = this.freeSpace.getCount(headerIndex);
+        Page headerPage = getHeadPage(headerIndex);
+        preallocate(2 + headerIndex * (this.pageSize + 1) + pageIndex);
 
-        int newCount = pageCounts[headerIndex] + 1;
         this.masterPage.getBuffer(transaction).putInt(headerIndex * 4, newCount);
         headerPage.getBuffer(transaction).put(pageIndex, (byte) 1);
 
-        if (this.durable) {
-            this.masterPage.flush();
-            headerPage.flush();
-        }
+        flushMetadata(this.masterPage, headerPage);
 
-        int pageNum = headerIndex * Page.pageSize + pageIndex;
-        fetchPage(transaction, pageNum).wipe(transaction);
+        Page page = pinPage(transaction, pageNum);
+        try {
+            page.wipe(transaction);
+        } finally {
+            page.unpin();
+        }
         this.numPages += 1;
-        if (pageCounts[headerIndex] == 0) {
+        if (newCount == 1) {
             this.numUsedHeaderPages += 1;
         }
 
@@ -181,55 +364,276 @@ public class PageAllocator implements Closeable {
     }
 
     /**
-     * Fetches the page corresponding to virtual page number pageNum.
+     * Fetches the page corresponding to virtual page number pageNum. The page is not pinned, so
+     * it may be evicted at any time; callers that read or write the page use pinPage instead.
      *
      * @param pageNum the virtual page number
      * @return a Page object wrapping the page corresponding to pageNum
      */
-    public synchronized Page fetchPage(BaseTransaction transaction, int pageNum) {
+    public Page fetchPage(BaseTransaction transaction, int pageNum) {
+        Page page = pinPage(transaction, pageNum);
+        page.unpin();
+        return page;
+    }
+
+    /**
+     * Fetches the page corresponding to virtual page number pageNum and pins it. The page is
+     * pinned by the buffer pool before it can be evicted, and the caller must unpin it.
+     *
+     * @param pageNum the virtual page number
+     * @return the pinned page corresponding to pageNum
+     */
+    public Page pinPage(BaseTransaction transaction, int pageNum) {
+        return fetchPage(transaction, pageNum, null);
+    }
+
+    /**
+     * Fetches and pins pageNum on behalf of a sequential scan that loads the pages it misses
+     * into ring, or like pinPage(transaction, pageNum) if ring is null.
+     */
+    private Page fetchPage(BaseTransaction transaction, int pageNum, BufferPool.Ring ring) {
         if (pageNum < 0) {
             throw new PageException("invalid page number -- out of bounds");
         }
 
         numIOs.getAndIncrement();
 
-        synchronized(PageAllocator.class) {
-            if (pageLRU.containsKey(translatePageNum(pageNum))) {
-                return pageLRU.get(translatePageNum(pageNum));
-            }
+        // Cache hits only take the lock of the buffer pool shard that holds the page.
+        long vPageNum = translatePageNum(pageNum);
+        Page page = getPinned(vPageNum, ring);
+        if (page != null) {
+            this.metrics.recordHit();
+            return page;
         }
+        return loadPage(transaction, pageNum, ring);
+    }
 
-        int headPageIndex = pageNum / Page.pageSize;
+    /**
+     * Fetches the page corresponding to virtual page number pageNum without blocking the
+     * caller. A page that is resident is returned at once; otherwise it is loaded into the buffer
+     * pool, and its bytes into memory, on one of a fixed number of I/O threads shared by all
+     * allocators.
+     *
+     * The page is pinned before it is returned so that it cannot be evicted before the caller
+     * gets to it, and the caller must unpin it. If the page can't be fetched, e.g. because it is
+     * not allocated, the future completes exceptionally with the PageException.
+     *
+     * @param pageNum the virtual page number
+     * @return a future of the pinned page corresponding to pageNum
+     */
+    public CompletableFuture<Page> fetchPageAsync(BaseTransaction transaction, int pageNum) {
+        if (pageNum < 0) {
+            CompletableFuture<Page> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new PageException("invalid page number -- out of bounds"));
+            return failed;
+        }
+        Page page = bufferPool.getPinned(translatePageNum(pageNum));
+        if (page != null) {
+            numIOs.getAndIncrement();
+            this.metrics.recordHit();
+            return CompletableFuture.completedFuture(page);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            Page p = fetchPage(transaction, pageNum, null);
+            try {
+                p.load();
+            } catch (RuntimeException e) {
+                p.unpin();
+                throw e;
+            }
+            return p;
+        }, ioPool);
+    }
 
-        if (headPageIndex >= numHeaderPages) {
-            throw new PageException("invalid page number -- out of bounds");
+    /**
+     * Fetches many pages at once, as with fetchPageAsync, so that their reads overlap. The
+     * pages are returned pinned and in the order of pageNums, and the caller must unpin each of
+     * them. If any page can't be fetched, the future completes exceptionally and the pages that
+     * were fetched are unpinned again.
+     *
+     * @param pageNums the virtual page numbers
+     * @return a future of the pinned pages corresponding to pageNums
+     */
+    public CompletableFuture<List<Page>> fetchPages(BaseTransaction transaction, int[] pageNums) {
+        List<CompletableFuture<Page>> futures = new ArrayList<>(pageNums.length);
+        for (int pageNum : pageNums) {
+            futures.add(fetchPageAsync(transaction, pageNum));
         }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+        .handle((ignored, e) -> {
+            if (e != null) {
+                for (CompletableFuture<Page> f : futures) {
+                    if (!f.isCompletedExceptionally()) {
+                        f.join().unpin();
+                    }
+                }
+                throw e instanceof CompletionException ? (CompletionException) e
+                : new CompletionException(e);
+            }
+            List<Page> pages = new ArrayList<>(futures.size());
+            for (CompletableFuture<Page> f : futures) {
+                pages.add(f.join());
+            }
+            return pages;
+        });
+    }
 
-        int headCount = this.masterPage.getBuffer(transaction).getInt(headPageIndex * 4);
+    /**
+     * Brings pageNum into the buffer pool after a miss. If another thread is already reading
+     * the page, waits for that read instead of reading the page again.
+     *
+     * @return the page resident for pageNum, pinned
+     */
+    private Page loadPage(BaseTransaction transaction, int pageNum, BufferPool.Ring ring) {
+        if (Thread.holdsLock(this)) {
+            // The thread reading the page needs our monitor to finish; don't wait for it.
+            return readPage(pageNum, ring);
+        }
+        while (true) {
+            CompletableFuture<Page> load = new CompletableFuture<>();
+            CompletableFuture<Page> pending = this.pendingLoads.putIfAbsent(pageNum, load);
+            if (pending == null) {
+                try {
+                    Page page = readPage(pageNum, ring);
+                    load.complete(page);
+                    return page;
+                } catch (RuntimeException e) {
+                    load.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    this.pendingLoads.remove(pageNum, load);
+                }
+            }
+            try {
+                pending.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof PageException ? (PageException) e.getCause() : e;
+            }
+            Page page = getPinned(translatePageNum(pageNum), ring);
+            if (page != null) {
+                this.metrics.recordHit();
+                return page;
+            }
+            // Evicted again before we got to it.
+        }
+    }
 
-        if (headCount < 1) {
-            throw new PageException("invalid page number -- page not allocated");
+    /**
+     * Validates pageNum against the allocation state and reads it into the buffer pool, unless
+     * it has become resident since the caller missed it. The free space map mirrors the master
+     * and header pages, so no metadata page is touched. The read itself happens outside the
+     * allocator's monitor, so that reads of different pages overlap.
+     *
+     * @return the page resident for pageNum, pinned
+     */
+    private Page readPage(int pageNum, BufferPool.Ring ring) {
+        long vPageNum = translatePageNum(pageNum);
+        Page resident = getPinned(vPageNum, ring);
+        if (resident != null) {
+            this.metrics.recordHit();
+            return resident;
         }
 
-        Page headPage = getHeadPage(headPageIndex);
+        int dataBlockID;
+        LockContext pageContext;
+        PageStore pageStore;
+        boolean pageDurable;
+        synchronized (this) {
+            checkAllocated(pageNum);
+            int headPageIndex = pageNum / this.pageSize;
+            int dataPageIndex = pageNum % this.pageSize;
+            dataBlockID = 2 + headPageIndex * (this.pageSize + 1) + dataPageIndex;
+            pageContext = this.lockContext.childContext(pageNum);
+            pageStore = this.store;
+            pageDurable = this.durable;
+        }
 
-        int dataPageIndex = pageNum % Page.pageSize;
+        Page dataPage = new Page(pageContext, pageStore, dataBlockID, pageNum, pageDurable,
+                                 this.metrics);
 
-        byte validByte = headPage.getBuffer(transaction).get(dataPageIndex);
+        synchronized (this) {
+            // The page may have been freed, or the allocator closed, while it was read.
+            try {
+                checkAllocated(pageNum);
+            } catch (PageException e) {
+                dataPage.release();
+                throw e;
+            }
+            if (ring != null && ring.isOf(bufferPool)) {
+                resident = ring.putPinned(vPageNum, dataPage);
+            } else {
+                resident = bufferPool.putPinned(vPageNum, dataPage);
+            }
+        }
+        if (resident != dataPage) {
+            // Another thread read the page too, and its copy was cached first.
+            dataPage.release();
+        }
+        return resident;
+    }
 
-        if (validByte == 0) {
+    private void checkAllocated(int pageNum) {
+        if (this.masterPage == null) {
+            throw new PageException("page allocator is closed");
+        }
+        if (pageNum / this.pageSize >= numHeaderPages) {
+            throw new PageException("invalid page number -- out of bounds");
+        }
+        if (!this.freeSpace.isAllocated(pageNum)) {
             throw new PageException("invalid page number -- page not allocated");
         }
+    }
 
-        int dataBlockID = 2 + headPageIndex * (Page.pageSize + 1) + dataPageIndex;
-        Page dataPage = new Page(this.lockContext.childContext(pageNum), this.fc, dataBlockID, pageNum,
-                                 this.durable);
+    /**
+     * @return the page resident for vPageNum, pinned, looked up as by a scan if ring is not
+     * null, or null if it is not resident
+     */
+    private static Page getPinned(long vPageNum, BufferPool.Ring ring) {
+        return ring == null ? bufferPool.getPinned(vPageNum) : bufferPool.getPinnedForScan(vPageNum);
+    }
 
-        synchronized(PageAllocator.class) {
-            pageLRU.put(translatePageNum(pageNum), dataPage);
-        }
+    /**
+     * Brings pageNum into the buffer pool and its bytes into memory on an I/O thread, if
+     * it is allocated and not resident already.
+     *
+     * @param ring the ring of the scan the page is read ahead for, or null
+     * @return the pending read-ahead
+     */
+    private Future<?> readAhead(int pageNum, BufferPool.Ring ring) {
+        return ioPool.submit(() -> {
+            try {
+                Page page = bufferPool.getPinnedForScan(translatePageNum(pageNum));
+                if (page == null) {
+                    page = loadPage(null, pageNum, ring);
+                }
+                try {
+                    page.load();
+                } finally {
+                    page.unpin();
+                }
+            } catch (PageException e) {
+                // The page was freed or the allocator closed; the scan will find out itself.
+            }
+        });
+    }
 
-        return dataPage;
+    /**
+     * Finds the next allocated page from the in-memory allocation map, without reading any
+     * page.
+     *
+     * @return the first allocated page number >= pageNum, or -1 if there is none
+     */
+    public synchronized int nextAllocatedPage(int pageNum) {
+        return this.freeSpace.nextAllocated(pageNum);
+    }
+
+    /**
+     * Finds the last allocated page from the in-memory allocation map, without reading any page.
+     *
+     * @return the largest allocated page number, or -1 if no page is allocated
+     */
+    public synchronized int lastAllocatedPage() {
+        return this.freeSpace.lastAllocated();
     }
 
     /**
@@ -240,12 +644,12 @@ public class PageAllocator implements Closeable {
      * @return whether or not the page was freed
      */
     public synchronized boolean freePage(BaseTransaction transaction, Page p) {
-        if (this.durable) {
+        if (this.durability == Durability.SYNC) {
             p.flush();
         }
         int pageNum = p.getPageNum();
-        int headPageIndex = pageNum / Page.pageSize;
-        int dataPageIndex = pageNum % Page.pageSize;
+        int headPageIndex = pageNum / this.pageSize;
+        int dataPageIndex = pageNum % this.pageSize;
 
         Page headPage = getHeadPage(headPageIndex);
         Buffer headPageBuffer = headPage.getBuffer(transaction);
@@ -255,21 +659,16 @@ public class PageAllocator implements Closeable {
         }
 
         headPageBuffer.put(dataPageIndex, (byte) 0);
-        if (this.durable) {
-            headPage.flush();
-        }
+        this.freeSpace.markFree(pageNum);
 
         Buffer masterPageBuffer = masterPage.getBuffer(transaction);
         int count = masterPageBuffer.getInt(4 * headPageIndex);
         masterPageBuffer.putInt(4 * headPageIndex, count - 1);
-        if (this.durable) {
-            masterPage.flush();
-        }
+        flushMetadata(headPage, masterPage);
 
-        synchronized(PageAllocator.class) {
-            if (pageLRU.containsKey(translatePageNum(pageNum))) {
-                pageLRU.remove(translatePageNum(pageNum));
-            }
+        Page removed = bufferPool.remove(translatePageNum(pageNum));
+        if (removed != null) {
+            removed.release();
         }
 
         this.numPages -= 1;
@@ -307,53 +706,144 @@ public class PageAllocator implements Closeable {
         if (this.masterPage == null) {
             return;
         }
-        if (this.durable) {
-            this.masterPage.flush();
+        sync();
+        // Pages that have nothing to write back are not dirty, so flushing them is free.
+        List<Page> toFlush = bufferPool.removeIf(l -> translateAllocator(l) == this.allocID);
+        toFlush.add(this.masterPage);
+        for (Page p : this.headerPages) {
+            if (p != null) {
+                toFlush.add(p);
+            }
+        }
+        for (Page p : toFlush) {
+            p.flush();
+            p.release();
         }
-        List<Long> toRemove = new ArrayList<Long>();
-        Set<Long> vPageNums = null;
-        List<Page> toFlush = new ArrayList<Page>();
-
-        synchronized(PageAllocator.class) {
-            vPageNums = pageLRU.keySet();
+        this.masterPage = null;
+        this.headerPages = null;
+        this.metrics.unregister();
+        try {
+            this.store.close();
+            this.fc.close();
+        } catch (IOException e) {
+            throw new PageException("Could not close Page Alloc " + e.getMessage());
         }
+    }
 
-        for (Long l : vPageNums) {
-            if (translateAllocator(l) == this.allocID) {
-                toRemove.add(l);
+    /**
+     * Forces every allocation and free made since the last sync point to disk with a single
+     * force of the file. Does nothing unless this allocator uses Durability.GROUP and has
+     * unsynced changes.
+     */
+    public synchronized void sync() {
+        if (!this.syncPending) {
+            return;
+        }
+        this.masterPage.writeBack();
+        for (Page p : this.headerPages) {
+            if (p != null) {
+                p.writeBack();
             }
         }
+        try {
+            this.fc.force(false);
+        } catch (IOException e) {
+            throw new PageException("Could not sync Page Alloc " + e.getMessage());
+        }
+        incrementCacheMisses();
+        this.metrics.recordForce();
+        this.syncPending = false;
+        this.lastSyncMillis = System.currentTimeMillis();
+    }
 
-        synchronized(PageAllocator.class) {
-            for (Long vPageNum : toRemove) {
-                if (pageLRU.containsKey(vPageNum)) {
-                    toFlush.add(pageLRU.get(vPageNum));
-                    pageLRU.remove(vPageNum);
-                }
+    /**
+     * Makes a change to the given metadata pages durable according to the durability mode.
+     */
+    private void flushMetadata(Page... pages) {
+        switch (this.durability) {
+        case SYNC: {
+            for (Page p : pages) {
+                p.flush();
             }
+            break;
         }
-        if (this.durable) {
-            for (Page p : toFlush) {
-                p.flush();
+        case GROUP: {
+            this.syncPending = true;
+            if (System.currentTimeMillis() - this.lastSyncMillis >= groupSyncIntervalMillis) {
+                sync();
             }
+            break;
         }
-        this.masterPage = null;
-        try {
-            this.fc.close();
-        } catch (IOException e) {
-            throw new PageException("Could not close Page Alloc " + e.getMessage());
+        default: {
+            break;
+        }
+        }
+    }
+
+    /**
+     * Grows the file by preallocationPages blocks if block lies beyond the preallocated part of
+     * the file.
+     */
+    private void preallocate(int block) {
+        if (this.preallocationPages > 0 && block >= this.preallocatedBlocks) {
+            int end = block + this.preallocationPages;
+            this.store.preallocate(this.preallocatedBlocks, end);
+            this.metrics.recordWrite((long) (end - this.preallocatedBlocks) * this.pageSize);
+            this.preallocatedBlocks = end;
+        }
+    }
+
+    /**
+     * Makes the file grow in chunks of numPages pages: whenever a page is allocated beyond the
+     * end of the preallocated part of the file, the next numPages blocks are allocated on disk
+     * at once, so that the filesystem lays them out contiguously.
+     *
+     * @param numPages the number of pages to preallocate at a time, or 0 to grow the file one
+     * page at a time
+     */
+    public synchronized void setPreallocationPages(int numPages) {
+        if (numPages < 0) {
+            throw new IllegalArgumentException("preallocation can't be negative");
         }
+        this.preallocationPages = numPages;
+    }
+
+    public synchronized int getPreallocationPages() {
+        return this.preallocationPages;
     }
 
     private synchronized Page getHeadPage(int headIndex) {
-        int headBlockID = 1 + headIndex * (Page.pageSize + 1);
-        return new Page(this.lockContext.childContext(-1), this.fc, headBlockID, -1);
+        if (this.headerPages[headIndex] == null) {
+            int headBlockID = 1 + headIndex * (this.pageSize + 1);
+            this.headerPages[headIndex] = new Page(this.lockContext.childContext(-1),
+                                                   this.store, headBlockID, -1, true, this.metrics);
+        }
+        return this.headerPages[headIndex];
     }
 
     public synchronized int getNumPages() {
         return this.numPages;
     }
 
+    /**
+     * @return the size in bytes of every page of this allocator's file
+     */
+    public int getPageSize() {
+        return this.pageSize;
+    }
+
+    /**
+     * @return the buffer pool and I/O counters of this allocator, which are also registered
+     * as an MBean while the allocator is open
+     */
+    public IOMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * @return the number of page fetches, whether or not they hit the buffer pool; see
+     * getMetrics and IOMetrics.global for the I/O actually done
+     */
     public synchronized static long getNumIOs() {
         return PageAllocator.numIOs.get();
     }
@@ -370,11 +860,45 @@ public class PageAllocator implements Closeable {
         return PageAllocator.cacheMisses.get();
     }
 
-    private synchronized long translatePageNum(int pageNum) {
+    /**
+     * Replaces the buffer pool shared by all PageAllocators, e.g. to change its capacity. Pages
+     * resident in the previous pool are written back and dropped, except for pinned pages, which
+     * move to the new pool (see BufferPool#transferTo).
+     *
+     * @param pool the new buffer pool
+     */
+    public static synchronized void setBufferPool(BufferPool pool) {
+        BufferPool old = PageAllocator.bufferPool;
+        PageAllocator.bufferPool = pool;
+        old.transferTo(pool);
+    }
+
+    public static BufferPool getBufferPool() {
+        return PageAllocator.bufferPool;
+    }
+
+    /**
+     * Sets how many pages ahead of a sequential scan new PageIterators prefetch by default.
+     *
+     * @param numPages the read-ahead distance in pages, or 0 to disable read-ahead
+     */
+    public static void setReadAheadPages(int numPages) {
+        if (numPages < 0) {
+            throw new IllegalArgumentException("read-ahead distance can't be negative");
+        }
+        PageAllocator.readAheadPages = numPages;
+    }
+
+    public static int getReadAheadPages() {
+        return PageAllocator.readAheadPages;
+    }
+
+    // allocID never changes after construction, so translation needs no locking.
+    private long translatePageNum(int pageNum) {
         return (((long) this.allocID) << 32) | (((long) pageNum) & 0xFFFFFFFFL);
     }
 
-    static synchronized private int translateAllocator(long vPageNum) {
+    static private int translateAllocator(long vPageNum) {
         return (int) ((vPageNum & 0xFFFFFFFF00000000L) >> 32);
     }
 
@@ -382,40 +906,166 @@ public class PageAllocator implements Closeable {
      * @return an iterator of the valid pages managed by this PageAllocator.
      */
     public PageIterator iterator(BaseTransaction transaction) {
-        return new PageIterator(transaction);
+        return new PageIterator(transaction, readAheadPages, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param readAhead the number of pages to prefetch ahead of a sequential scan, or 0
+     * @return an iterator of the valid pages managed by this PageAllocator.
+     */
+    public PageIterator iterator(BaseTransaction transaction, int readAhead) {
+        return new PageIterator(transaction, readAhead, 0, Integer.MAX_VALUE);
     }
 
+    /**
+     * @return an iterator of the valid pages numbered [start, end) managed by this
+     * PageAllocator, which scans them like iterator(transaction) does the whole file.
+     */
+    public PageIterator iterator(BaseTransaction transaction, int start, int end) {
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException("invalid page range [" + start + ", " + end + ")");
+        }
+        return new PageIterator(transaction, readAheadPages, start, end);
+    }
+
+    /**
+     * A run of contiguous pages reserved for one user of the allocator, such as a table, so that
+     * the pages it allocates one at a time end up next to each other in the file rather than
+     * interleaved with the pages of other users. Reserved pages are not allocated: they are not
+     * recorded on disk, and a reservation that is never used is forgotten when the allocator is
+     * closed. Extents start at minExtentPages pages and double with every run reserved, up to
+     * maxExtentPages.
+     */
+    public class Extent {
+        // The next page of the run to hand out, and one past the last page of the run.
+        private int next;
+        private int end;
+        // The number of pages to reserve for the next run.
+        private int size;
+
+        private Extent() {
+            this.next = 0;
+            this.end = 0;
+            this.size = minExtentPages;
+        }
+
+        /**
+         * Allocates the next page of the run that is still reserved. Pages of the run that were
+         * freed after being allocated are skipped.
+         *
+         * @return the page number, or -1 if the run is used up
+         */
+        private int take() {
+            while (this.next < this.end) {
+                int pageNum = this.next++;
+                if (PageAllocator.this.freeSpace.allocateReserved(pageNum)) {
+                    return pageNum;
+                }
+            }
+            return -1;
+        }
+
+        private PageAllocator allocator() {
+            return PageAllocator.this;
+        }
+    }
+
+    /**
+     * Iterates over the allocated pages in page number order. Once the iterator has returned
+     * two pages in a row without a reset, it treats the scan as sequential and keeps the next
+     * readAhead pages loading in the background, so that next rarely waits for I/O. Read-ahead
+     * stops at the last allocated page and restarts from scratch after a reset.
+     *
+     * A scan of a file with more pages than a quarter of the buffer pool loads the pages it
+     * misses into a small ring of its own (see BufferPool.Ring) rather than into the
+     * main pool, so that it does not evict everybody else's pages. Pages returned by such a scan
+     * are evicted soon after the scan moves on, so callers that use a page's bytes get it from
+     * nextPinned, which pins it before it can be evicted.
+     *
+     * An iterator over a range of page numbers only returns, and reads ahead, the allocated
+     * pages of its range, so that several of them can scan disjoint parts of one file at once.
+     */
     public class PageIterator implements BacktrackingIterator<Page> {
+        // Read-ahead starts after this many consecutive calls to next.
+        private static final int sequentialThreshold = 2;
+
         private int pageNum;
         private int cursor;
+        // One past the last page number of the range, or Integer.MAX_VALUE for the whole file.
+        private int end;
         private int markedPageNum;
         private int markedCursor;
         private BaseTransaction transaction;
-
-        PageIterator(BaseTransaction transaction) {
+        private int readAhead;
+        private int sequentialRun;
+        // The next page number to consider for read-ahead, and the number of allocated pages
+        // in [cursor, readAheadCursor) that have been handed to the I/O pool.
+        private int readAheadCursor;
+        private int numReadAhead;
+        private List<Future<?>> pendingReadAheads;
+        // The ring that the scan of a large file loads its pages into, created on first use.
+        private BufferPool.Ring ring;
+
+        PageIterator(BaseTransaction transaction, int readAhead, int start, int end) {
             this.pageNum = 0;
-            this.cursor = 0;
+            this.cursor = start;
+            this.end = end;
             this.markedPageNum = 0;
-            this.markedCursor = 0;
+            this.markedCursor = start;
             this.transaction = transaction;
+            this.readAhead = readAhead;
+            this.sequentialRun = 0;
+            this.readAheadCursor = 0;
+            this.numReadAhead = 0;
+            this.pendingReadAheads = new ArrayList<>();
+            this.ring = null;
         }
 
         public boolean hasNext() {
-            return this.pageNum < PageAllocator.this.numPages;
+            if (this.end == Integer.MAX_VALUE) {
+                return this.pageNum < PageAllocator.this.numPages;
+            }
+            int next = PageAllocator.this.nextAllocatedPage(this.cursor);
+            return next >= 0 && next < this.end;
         }
 
+        /**
+         * Returns the next page without pinning it; see nextPinned.
+         */
         public Page next() {
+            Page p = nextPinned();
+            p.unpin();
+            return p;
+        }
+
+        /**
+         * Returns the next page pinned, like PageAllocator#pinPage. The caller must unpin it.
+         */
+        public Page nextPinned() {
             if (this.hasNext()) {
                 while (true) {
+                    // Jump straight to the next allocated page instead of probing every page
+                    // number in between.
+                    int next = PageAllocator.this.nextAllocatedPage(cursor);
+                    if (next < 0 || next >= end) {
+                        break;
+                    }
                     Page p;
                     try {
-                        p = PageAllocator.this.fetchPage(transaction, cursor);
-                        cursor++;
-                        pageNum++;
-                        return p;
+                        p = PageAllocator.this.fetchPage(transaction, next, scanRing());
                     } catch (PageException e) {
-                        cursor++;
+                        // Freed since we looked it up.
+                        cursor = next + 1;
+                        continue;
+                    }
+                    if (next < readAheadCursor) {
+                        numReadAhead--;
                     }
+                    cursor = next + 1;
+                    pageNum++;
+                    sequentialRun++;
+                    readAhead();
+                    return p;
                 }
             }
             throw new NoSuchElementException();
@@ -425,6 +1075,46 @@ public class PageAllocator implements Closeable {
             throw new UnsupportedOperationException();
         }
 
+        /**
+         * @return the ring to load missed pages into, or null if the file is small enough for
+         * the scan to go through the main pool
+         */
+        private BufferPool.Ring scanRing() {
+            BufferPool pool = bufferPool;
+            if (PageAllocator.this.numPages <= pool.getCapacity() / scanRingFraction) {
+                return null;
+            }
+            if (ring == null || !ring.isOf(pool)) {
+                ring = pool.newRing(scanRingPages + readAhead);
+            }
+            return ring;
+        }
+
+        /**
+         * Hands the allocated pages among the next readAhead page numbers to the I/O
+         * pool, stopping once every remaining allocated page has been handed over.
+         */
+        private void readAhead() {
+            if (readAhead <= 0 || sequentialRun < sequentialThreshold) {
+                return;
+            }
+            if (readAheadCursor < cursor) {
+                readAheadCursor = cursor;
+                numReadAhead = 0;
+            }
+            pendingReadAheads.removeIf(Future::isDone);
+            int remaining = PageAllocator.this.numPages - pageNum;
+            while (numReadAhead < remaining) {
+                int next = PageAllocator.this.nextAllocatedPage(readAheadCursor);
+                if (next < 0 || next >= end || next >= cursor + readAhead) {
+                    break;
+                }
+                pendingReadAheads.add(PageAllocator.this.readAhead(next, scanRing()));
+                numReadAhead++;
+                readAheadCursor = next + 1;
+            }
+        }
+
         /**
          * Marks a page to come back to later.
          *
@@ -432,7 +1122,7 @@ public class PageAllocator implements Closeable {
          * the initial mark. This may only be called after next().
          */
         public void mark() {
-            if (this.cursor == 0) {
+            if (this.pageNum == 0) {
                 throw new UnsupportedOperationException("cannot mark() before next()");
             }
             this.markedPageNum = this.pageNum;
@@ -454,6 +1144,14 @@ public class PageAllocator implements Closeable {
         public void reset() {
             this.pageNum = this.markedPageNum - 1;
             this.cursor = this.markedCursor - 1;
+
+            for (Future<?> f : this.pendingReadAheads) {
+                f.cancel(false);
+            }
+            this.pendingReadAheads.clear();
+            this.sequentialRun = 0;
+            this.readAheadCursor = 0;
+            this.numReadAhead = 0;
         }
     }
 }
@@ -0,0 +1,93 @@
+package edu.berkeley.cs186.database.io;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The I/O backend that a PageAllocator uses to move the bytes of its pages between its file
+ * and memory. A PageStore is opened over the allocator's file by a Factory and closed by the
+ * allocator before the file itself is closed.
+ *
+ * Three backends are provided:
+ *
+ *   - PageStore.MMAP memory-maps the file (see MappedFile). Pages are views of the OS page
+ *     cache, so writes reach the file as soon as they are made and the OS decides when they
+ *     reach the disk.
+ *   - PageStore.CHANNEL reads each page into a direct buffer taken from the buffer pool with
+ *     positional FileChannel reads, and writes it back when the page is flushed or evicted.
+ *     There are no page faults, and nothing reaches the file before the buffer pool writes
+ *     it back.
+ *   - PageStore.memory(spillBytes) keeps the pages in memory and only writes them to the file
+ *     once they outgrow spillBytes (see MemoryPageStore). Nothing is durable, so it is meant
+ *     for files that are thrown away when their allocator is closed, like temporary tables.
+ *
+ * With a store that does not write through, a page that is not pinned may be evicted and its
+ * buffer recycled at any time, so callers must pin pages for as long as they use them.
+ */
+public interface PageStore {
+    /**
+     * Opens a PageStore over a file of pages (blocks) of pageSize bytes.
+     */
+    @FunctionalInterface
+    interface Factory {
+        PageStore open(FileChannel fc, int pageSize);
+    }
+
+    Factory MMAP = MappedFile::new;
+    Factory CHANNEL = ChannelPageStore::new;
+
+    /**
+     * @param spillBytes the memory the pages of a file may take before they are spilled to it
+     * @return a factory of stores that keep their pages in memory until they are spilled
+     */
+    static Factory memory(long spillBytes) {
+        if (spillBytes < 0) {
+            throw new IllegalArgumentException("spill threshold can't be negative");
+        }
+        return (fc, pageSize) -> new MemoryPageStore(fc, pageSize, spillBytes);
+    }
+
+    /**
+     * @return the size of every block of the file in bytes
+     */
+    int getPageSize();
+
+    /**
+     * @return a page-sized buffer holding the contents of block blockNum of the file
+     */
+    ByteBuffer load(int blockNum);
+
+    /**
+     * Writes block, a buffer returned by load(blockNum), back to the file. Does nothing if the
+     * store writes through.
+     */
+    void write(int blockNum, ByteBuffer block);
+
+    /**
+     * Forces everything written to block blockNum to disk.
+     */
+    void force(int blockNum);
+
+    /**
+     * @return whether writes to a buffer returned by load reach the file without a call to
+     * write
+     */
+    boolean writesThrough();
+
+    /**
+     * Allocates disk space for blocks [fromBlock, toBlock) of the file by writing zeros over
+     * them, so that the file grows in one large, contiguous chunk instead of a page at a time.
+     * The blocks must never have been written.
+     */
+    void preallocate(int fromBlock, int toBlock);
+
+    /**
+     * Returns block, a buffer returned by load, to the store once no page uses it anymore.
+     */
+    void release(ByteBuffer block);
+
+    /**
+     * Releases any resources of the store. The file channel is closed by the caller.
+     */
+    void close();
+}
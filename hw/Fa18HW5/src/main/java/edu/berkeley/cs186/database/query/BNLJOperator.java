@@ -48,11 +48,16 @@ public class BNLJOperator extends JoinOperator {
         int usableBuffers = numBuffers -
                             2; //Common mistake have to first calculate the number of usable buffers
 
-        int numLeftPages = getLeftSource().getStats().getNumPages();
+        TableStats leftStats = getLeftSource().getStats();
+        int numLeftPages = leftStats.getNumPages();
 
         int numRightPages = getRightSource().getStats().getNumPages();
 
-        return ((int) Math.ceil((double) numLeftPages / (double) usableBuffers)) * numRightPages +
+        // Buffers are default-sized pages, so a block holds fewer pages of a table with larger
+        // pages (but always at least one).
+        int blockSize = Math.max(1, usableBuffers * Page.pageSize / leftStats.getPageSize());
+
+        return ((int) Math.ceil((double) numLeftPages / (double) blockSize)) * numRightPages +
                numLeftPages;
 
     }
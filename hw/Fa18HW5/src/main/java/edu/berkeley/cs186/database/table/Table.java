@@ -2,6 +2,15 @@ package edu.berkeley.cs186.database.table;
 
 import java.io.Closeable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import edu.berkeley.cs186.database.BaseTransaction;
 import edu.berkeley.cs186.database.DatabaseException;
@@ -9,12 +18,16 @@ import edu.berkeley.cs186.database.common.ArrayBacktrackingIterator;
 import edu.berkeley.cs186.database.common.BacktrackingIterator;
 import edu.berkeley.cs186.database.common.Bits;
 import edu.berkeley.cs186.database.common.Buffer;
+import edu.berkeley.cs186.database.common.ByteBuffer;
 import edu.berkeley.cs186.database.concurrency.LockContext;
 import edu.berkeley.cs186.database.concurrency.LockType;
 import edu.berkeley.cs186.database.concurrency.LockUtil;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.io.IOMetrics;
 import edu.berkeley.cs186.database.io.Page;
 import edu.berkeley.cs186.database.io.PageAllocator;
+import edu.berkeley.cs186.database.io.PageException;
+import edu.berkeley.cs186.database.io.PageStore;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
 /**
@@ -52,11 +65,18 @@ import edu.berkeley.cs186.database.table.stats.TableStats;
  *   // Don't forget to close the table.
  *   t.close();
  *
+ * Closing a table also records its metadata (the number of records and which
+ * pages have room for more) in its header page, so that loading it again does
+ * not need to read its data pages. If a table was not closed, for example
+ * because the process crashed, the metadata is rebuilt from the data pages in
+ * the background when the table is loaded, and operations that need it wait
+ * for the rebuild to finish.
+ *
  * # Storage Format
  * Now, we discuss how tables serialize their data into files.
  *
  *   1. Each file begins with a header page into which tables serialize their
- *      schema.
+ *      schema, followed by their metadata (see writeMetadata).
  *   2. All remaining pages are data pages. Every data page begins with an
  *      n-byte bitmap followed by m records. The bitmap indicates which records
  *      in the page are valid. The values of n and m are set to maximize the
@@ -93,11 +113,36 @@ import edu.berkeley.cs186.database.table.stats.TableStats;
  *
  *  When we add a record to a table, we add it to the very first free slot in
  *  the table. See addRecord for more information.
+ *
+ * # Concurrency
+ * Records on different pages can be read and written at the same time. Each
+ * access to a data page latches the page (see Page#latchShared) for as long as
+ * it touches the page's bytes, and only the table-wide bookkeeping (stats,
+ * freePageNums, and numRecords) is updated under the table's monitor. A thread
+ * holding a page latch may enter the monitor, but never the other way around.
+ *
+ * A whole table can also be read by many threads at once with stream (see
+ * PageRangeSpliterator), which gives each thread its own range of pages.
  */
 public class Table implements Closeable {
     public static final String FILENAME_PREFIX = "db";
     public static final String FILENAME_EXTENSION = ".table";
 
+    // Marks the metadata in a header page as present.
+    private static final int metadataMagic = 0x7AB1E186;
+    // The magic number, the clean flag, the number of records, and the number
+    // of pages covered by the free page bitmap.
+    private static final int metadataHeaderSize = 4 + 1 + 8 + 4;
+    private static final int numRebuildThreads = 2;
+    // compact only empties pages at most this full.
+    private static final double sparsePageFillFactor = 0.5;
+    private static final ExecutorService rebuildPool = Executors.newFixedThreadPool(
+    numRebuildThreads, r -> {
+        Thread t = new Thread(r, "table-rebuild");
+        t.setDaemon(true);
+        return t;
+    });
+
     // The name of the database.
     private String name;
 
@@ -110,6 +155,9 @@ public class Table implements Closeable {
     // The allocator used to persist the database.
     private PageAllocator allocator;
 
+    // The run of contiguous pages from which new data pages are allocated.
+    private PageAllocator.Extent extent;
+
     // The size (in bytes) of the bitmap found at the beginning of each data page.
     private int bitmapSizeInBytes;
 
@@ -123,7 +171,17 @@ public class Table implements Closeable {
     private TreeSet<Integer> freePageNums;
 
     // The number of records in the table.
-    private long numRecords;
+    private volatile long numRecords;
+
+    // The occupancy of every data page that has been read or written, by page number.
+    private Map<Integer, PageOccupancy> occupancy;
+
+    // The offset of the metadata in the header page, just past the schema.
+    private int metadataOffset;
+
+    // The rebuild of stats, freePageNums, and numRecords from the data pages,
+    // or null if they were read from the header page.
+    private Future<?> metadataRebuild;
 
     // The lock context.
     private LockContext lockContext;
@@ -135,15 +193,39 @@ public class Table implements Closeable {
      */
     public Table(String name, Schema schema, String filename, LockContext lockContext,
                  BaseTransaction transaction) {
+        this(name, schema, filename, lockContext, PageStore.MMAP, transaction);
+    }
+
+    /**
+     * Construct a brand new table named `name` with schema `schema` persisted in
+     * file `filename`, whose pages are read and written through `pageStore`.
+     */
+    public Table(String name, Schema schema, String filename, LockContext lockContext,
+                 PageStore.Factory pageStore, BaseTransaction transaction) {
+        this(name, schema, filename, lockContext, Page.pageSize, pageStore, transaction);
+    }
+
+    /**
+     * Construct a brand new table named `name` with schema `schema` persisted in
+     * file `filename` in pages of `pageSize` bytes, which are read and written
+     * through `pageStore`. Larger pages suit tables that are mostly scanned.
+     */
+    public Table(String name, Schema schema, String filename, LockContext lockContext,
+                 int pageSize, PageStore.Factory pageStore, BaseTransaction transaction) {
         this.name = name;
         this.filename = filename;
         this.schema = schema;
-        this.allocator = new PageAllocator(lockContext, filename, true, transaction);
-        this.bitmapSizeInBytes = computeBitmapSizeInBytes(Page.pageSize, schema);
-        numRecordsPerPage = computeNumRecordsPerPage(Page.pageSize, schema);
-        this.stats = new TableStats(this.schema);
+        this.allocator = new PageAllocator(lockContext, filename, true, pageSize, pageStore,
+                                           transaction);
+        this.extent = this.allocator.newExtent();
+        this.bitmapSizeInBytes = computeBitmapSizeInBytes(pageSize, schema);
+        numRecordsPerPage = computeNumRecordsPerPage(pageSize, schema);
+        this.stats = new TableStats(this.schema, pageSize);
         this.freePageNums = new TreeSet<Integer>();
         this.numRecords = 0;
+        this.occupancy = new ConcurrentHashMap<>();
+        this.metadataOffset = schema.toBytes().length;
+        this.metadataRebuild = null;
         this.lockContext = lockContext;
 
         // TODO(hw5): any initialization of lock context (or none)
@@ -157,38 +239,38 @@ public class Table implements Closeable {
      */
     public Table(String name, String filename, LockContext lockContext,
                  BaseTransaction transaction) throws DatabaseException {
+        this(name, filename, lockContext, PageStore.MMAP, transaction);
+    }
+
+    /**
+     * Load a table named `name` from the file `filename`, reading and writing
+     * its pages through `pageStore`.
+     */
+    public Table(String name, String filename, LockContext lockContext,
+                 PageStore.Factory pageStore, BaseTransaction transaction) throws DatabaseException {
         this.name = name;
         this.filename = filename;
-        this.allocator = new PageAllocator(lockContext, filename, false, transaction);
+        this.allocator = new PageAllocator(lockContext, filename, false, pageStore, transaction);
+        this.extent = this.allocator.newExtent();
         this.schema = readSchemaFromHeaderPage(transaction, this.allocator);
-        this.bitmapSizeInBytes = computeBitmapSizeInBytes(Page.pageSize, this.schema);
-        this.numRecordsPerPage = computeNumRecordsPerPage(Page.pageSize, this.schema);
-
-        // We compute the stats, free pages, and number of records naively. We
-        // iterate through every single data page of the file, and for each data
-        // data page, we use the bitmap to read every single record.
-        this.stats = new TableStats(this.schema);
+        this.metadataOffset = schema.toBytes().length;
+        int pageSize = this.allocator.getPageSize();
+        this.bitmapSizeInBytes = computeBitmapSizeInBytes(pageSize, this.schema);
+        this.numRecordsPerPage = computeNumRecordsPerPage(pageSize, this.schema);
         this.freePageNums = new TreeSet<Integer>();
         this.numRecords = 0;
-
-        Iterator<Page> iter = this.allocator.iterator(transaction);
-        iter.next(); // Skip the header page.
-        while(iter.hasNext()) {
-            Page page = iter.next();
-            byte[] bitmap = getBitMap(transaction, page);
-
-            for (short i = 0; i < numRecordsPerPage; ++i) {
-                if (Bits.getBit(bitmap, i) == Bits.Bit.ONE) {
-                    Record r = getRecord(transaction, new RecordId(page.getPageNum(), i));
-                    stats.addRecord(r);
-                    numRecords++;
-                }
-            }
-
-            if (numRecordsOnPage(transaction, page) != numRecordsPerPage) {
-                freePageNums.add(page.getPageNum());
-            }
+        this.occupancy = new ConcurrentHashMap<>();
+        this.metadataRebuild = null;
+
+        // Read the metadata if the table was closed cleanly, and rebuild it
+        // from the data pages otherwise. Either way, the table is not clean
+        // again until it is closed, and this must be on disk before any data
+        // page is written.
+        if (!readMetadata()) {
+            this.stats = new TableStats(this.schema, pageSize);
+            this.metadataRebuild = rebuildPool.submit(this::rebuildMetadata);
         }
+        writeMetadata(false);
 
         this.lockContext = lockContext;
 
@@ -221,10 +303,12 @@ public class Table implements Closeable {
     }
 
     public TableStats getStats() {
+        awaitMetadata();
         return stats;
     }
 
     public long getNumRecords() {
+        awaitMetadata();
         return numRecords;
     }
 
@@ -233,13 +317,30 @@ public class Table implements Closeable {
         return allocator.getNumPages() - 1;
     }
 
+    public IOMetrics getMetrics() {
+        return allocator.getMetrics();
+    }
+
     // TODO(mwhittaker): This should not be public. Right now, other code
     // elsewhere reads the bitmap of tables, so we're forced to make it public.
     // We should refactor to avoid this.
     public byte[] getBitMap(BaseTransaction transaction, Page page) {
-        byte[] bytes = new byte[bitmapSizeInBytes];
-        page.getBuffer(transaction).get(bytes);
-        return bytes;
+        // The caller's page may have been evicted since it was fetched, so
+        // fetch it again, pinned.
+        page = allocator.pinPage(transaction, page.getPageNum());
+        try {
+            byte[] bytes = new byte[bitmapSizeInBytes];
+            Buffer buf = page.getBuffer(transaction, LockType.S);
+            long stamp = page.latchShared();
+            try {
+                buf.get(bytes);
+            } finally {
+                page.unlatch(stamp);
+            }
+            return bytes;
+        } finally {
+            page.unpin();
+        }
     }
 
     public static int computeBitmapSizeInBytes(int pageSize, Schema schema) {
@@ -260,15 +361,16 @@ public class Table implements Closeable {
      * it multiple times refreshes the statistics
      */
     public TableStats buildStatistics(BaseTransaction transaction, int buckets) {
+        awaitMetadata();
         this.stats.refreshHistograms(transaction, buckets, this);
         return this.stats;
     }
 
     // Modifiers /////////////////////////////////////////////////////////////////
-    private synchronized void insertRecord(BaseTransaction transaction, Page page, int entryNum,
-                                           Record record) {
+    private void insertRecord(Buffer buf, int entryNum, byte[] bytes) {
         int offset = bitmapSizeInBytes + (entryNum * schema.getSizeInBytes());
-        page.getBuffer(transaction).position(offset).put(record.toBytes(schema));
+        // Leave buf's position at the bitmap, which Bits indexes from.
+        buf.duplicate().position(offset).put(bytes);
     }
 
     private void requestXLock(BaseTransaction transaction, Page page) {
@@ -289,62 +391,185 @@ public class Table implements Closeable {
      * first free page has bitmap 0b11101000, then the record is inserted into
      * the page with index 3 and the bitmap is updated to 0b11111000.
      */
-    public synchronized RecordId addRecord(BaseTransaction transaction,
-                                           List<DataBox> values) throws DatabaseException {
+    public RecordId addRecord(BaseTransaction transaction,
+                              List<DataBox> values) throws DatabaseException {
         // TODO(hw5): modify for smarter locking
+        awaitMetadata();
         Record record = schema.verify(values);
+        byte[] bytes = record.toBytes(schema);
+
+        while (true) {
+            // Get a free page, allocating a new one if necessary.
+            int pageNum;
+            synchronized (this) {
+                if (freePageNums.isEmpty()) {
+                    freePageNums.add(allocator.allocPage(transaction, extent));
+                }
+                pageNum = freePageNums.first();
+            }
 
-        // Get a free page, allocating a new one if necessary.
-        if (freePageNums.isEmpty()) {
-            freePageNums.add(allocator.allocPage(transaction));
-        }
-        Page page = allocator.fetchPage(transaction, freePageNums.first());
-        requestXLock(transaction, page);
-
-        // Find the first empty slot in the bitmap.
-        // entry number of the first free slot and store it in entryNum; and (2) we
-        // count the total number of entries on this page.
-        byte[] bitmap = getBitMap(transaction, page);
-        int entryNum = 0;
-        for (; entryNum < numRecordsPerPage; ++entryNum) {
-            if (Bits.getBit(bitmap, entryNum) == Bits.Bit.ZERO) {
-                break;
+            Page page = allocator.pinPage(transaction, pageNum);
+            try {
+                requestXLock(transaction, page);
+                Buffer buf = page.getBuffer(transaction, LockType.X);
+                long stamp = page.latchExclusive();
+                try {
+                    // Find the first empty slot in the bitmap. There is none
+                    // below the page's hint.
+                    PageOccupancy o = getOccupancy(page, buf);
+                    int entryNum = Bits.nextClearBit(buf, o.nextFreeHint, numRecordsPerPage);
+                    if (entryNum < 0) {
+                        // Another thread filled the page after we picked it.
+                        synchronized (this) {
+                            freePageNums.remove(pageNum);
+                        }
+                        continue;
+                    }
+
+                    // Insert the record and update the bitmap.
+                    insertRecord(buf, entryNum, bytes);
+                    Bits.setBit(buf, entryNum, Bits.Bit.ONE);
+
+                    // Update the metadata.
+                    o.numRecords++;
+                    o.nextFreeHint = entryNum + 1;
+                    boolean full = o.numRecords == numRecordsPerPage;
+                    synchronized (this) {
+                        stats.addRecord(record);
+                        if (full) {
+                            freePageNums.remove(pageNum);
+                        }
+                        numRecords++;
+                    }
+
+                    return new RecordId(pageNum, (short) entryNum);
+                } finally {
+                    page.unlatch(stamp);
+                }
+            } finally {
+                page.unpin();
             }
         }
-        assert(entryNum < numRecordsPerPage);
+    }
 
-        // Insert the record and update the bitmap.
-        insertRecord(transaction, page, entryNum, record);
-        Bits.setBit(page.getBuffer(transaction), entryNum, Bits.Bit.ONE);
+    /**
+     * bulkAddRecords adds every record of rows to this table, in order, and
+     * returns the number of records added. Unlike addRecord, it does not look
+     * for free slots on existing pages: it fills new pages one after the other,
+     * writing each page's records and then its whole bitmap under a single
+     * latch. The table is locked X up front rather than page by page, and
+     * stats is updated once, at the end.
+     *
+     * added, if not null, is called with every record added and its record id,
+     * in order. It is called while the record's page is latched, so it must
+     * not access the table. If a row does not match the schema, the rows
+     * before it stay added and a DatabaseException is thrown.
+     */
+    public long bulkAddRecords(BaseTransaction transaction, Iterator<List<DataBox>> rows,
+                               BiConsumer<Record, RecordId> added) throws DatabaseException {
+        if (!LockType.substitutable(lockContext.getGlobalLockType(transaction), LockType.X)) {
+            LockUtil.requestLocks(transaction, lockContext, LockType.X);
+        }
+        awaitMetadata();
 
-        // Update the metadata.
-        stats.addRecord(record);
-        if (numRecordsOnPage(transaction, page) == numRecordsPerPage) {
-            freePageNums.pollFirst();
+        long count = 0;
+        try {
+            while (rows.hasNext()) {
+                count += fillPage(transaction, rows, added);
+            }
+        } finally {
+            synchronized (this) {
+                stats.addRecords((int) count);
+            }
         }
-        numRecords++;
+        return count;
+    }
 
-        return new RecordId(page.getPageNum(), (short) entryNum);
+    /**
+     * Allocates a new data page and adds records from rows to it until either
+     * the page is full or rows is exhausted.
+     *
+     * @return the number of records added
+     */
+    private int fillPage(BaseTransaction transaction, Iterator<List<DataBox>> rows,
+                         BiConsumer<Record, RecordId> added) throws DatabaseException {
+        int pageNum = allocator.allocPage(transaction, extent);
+        Page page = allocator.pinPage(transaction, pageNum);
+        int numAdded = 0;
+        try {
+            Buffer buf = page.getBuffer(transaction, LockType.X);
+            long stamp = page.latchExclusive();
+            try {
+                int recordSize = schema.getSizeInBytes();
+                Buffer records = buf.duplicate().position(bitmapSizeInBytes);
+                while (numAdded < numRecordsPerPage && rows.hasNext()) {
+                    Record record = schema.verify(rows.next());
+                    records.put(record.toBytes(schema));
+                    numAdded++;
+                    if (added != null) {
+                        added.accept(record, new RecordId(pageNum, (short) (numAdded - 1)));
+                    }
+                }
+            } finally {
+                // Slots [0, numAdded) are taken. The page may have been used
+                // before, so the whole bitmap is written.
+                byte[] bitmap = new byte[bitmapSizeInBytes];
+                Arrays.fill(bitmap, 0, numAdded / 8, (byte) 0xFF);
+                if (numAdded % 8 != 0) {
+                    bitmap[numAdded / 8] = (byte) (0xFF << (8 - numAdded % 8));
+                }
+                buf.duplicate().put(bitmap);
+
+                PageOccupancy o = new PageOccupancy(numAdded);
+                o.nextFreeHint = numAdded;
+                occupancy.put(pageNum, o);
+                synchronized (this) {
+                    if (numAdded < numRecordsPerPage) {
+                        freePageNums.add(pageNum);
+                    }
+                    numRecords += numAdded;
+                }
+                page.unlatch(stamp);
+            }
+        } finally {
+            page.unpin();
+        }
+        return numAdded;
     }
 
     /**
      * Retrieves a record from the table, throwing an exception if no such record
      * exists.
      */
-    public synchronized Record getRecord(BaseTransaction transaction,
-                                         RecordId rid) throws DatabaseException {
+    public Record getRecord(BaseTransaction transaction,
+                            RecordId rid) throws DatabaseException {
         validateRecordId(rid);
-        Page page = allocator.fetchPage(transaction, rid.getPageNum());
-        byte[] bitmap = getBitMap(transaction, page);
-        if (Bits.getBit(bitmap, rid.getEntryNum()) == Bits.Bit.ZERO) {
-            String msg = String.format("Record %s does not exist.", rid);
-            throw new DatabaseException(msg);
-        }
+        Page page = allocator.pinPage(transaction, rid.getPageNum());
+        try {
+            Buffer buf = page.getBuffer(transaction, LockType.S);
+
+            // Copy the record without latching, and again under a latch if a
+            // writer got in the way.
+            byte[] bytes = new byte[schema.getSizeInBytes()];
+            long stamp = page.optimisticLatch();
+            boolean exists = copyRecord(buf, rid.getEntryNum(), bytes);
+            if (!page.validateLatch(stamp)) {
+                stamp = page.latchShared();
+                try {
+                    exists = copyRecord(buf, rid.getEntryNum(), bytes);
+                } finally {
+                    page.unlatch(stamp);
+                }
+            }
 
-        int offset = bitmapSizeInBytes + (rid.getEntryNum() * schema.getSizeInBytes());
-        Buffer buf = page.getBuffer(transaction);
-        buf.position(offset);
-        return Record.fromBytes(buf, schema);
+            if (!exists) {
+                String msg = String.format("Record %s does not exist.", rid);
+                throw new DatabaseException(msg);
+            }
+            return Record.fromBytes(ByteBuffer.wrap(bytes), schema);
+        } finally {
+            page.unpin();
+        }
     }
 
     /**
@@ -352,20 +577,35 @@ public class Table implements Closeable {
      * record. stats is updated accordingly. An exception is thrown if rid does
      * not correspond to an existing record in the table.
      */
-    public synchronized Record updateRecord(BaseTransaction transaction, List<DataBox> values,
-                                            RecordId rid) throws DatabaseException {
+    public Record updateRecord(BaseTransaction transaction, List<DataBox> values,
+                               RecordId rid) throws DatabaseException {
         // TODO(hw5): modify for smarter locking
+        awaitMetadata();
         validateRecordId(rid);
         Record newRecord = schema.verify(values);
 
-        Page page = allocator.fetchPage(transaction, rid.getPageNum());
-        requestXLock(transaction, page);
+        Page page = allocator.pinPage(transaction, rid.getPageNum());
+        try {
+            requestXLock(transaction, page);
+            Buffer buf = page.getBuffer(transaction, LockType.X);
+
+            Record oldRecord;
+            long stamp = page.latchExclusive();
+            try {
+                oldRecord = readRecord(buf, rid);
+                insertRecord(buf, rid.getEntryNum(), newRecord.toBytes(schema));
+            } finally {
+                page.unlatch(stamp);
+            }
 
-        Record oldRecord = getRecord(transaction, rid);
-        insertRecord(transaction, page, rid.getEntryNum(), newRecord);
-        this.stats.removeRecord(oldRecord);
-        this.stats.addRecord(newRecord);
-        return oldRecord;
+            synchronized (this) {
+                this.stats.removeRecord(oldRecord);
+                this.stats.addRecord(newRecord);
+            }
+            return oldRecord;
+        } finally {
+            page.unpin();
+        }
     }
 
     /**
@@ -373,29 +613,227 @@ public class Table implements Closeable {
      * stats, freePageNums, and numRecords as necessary. An exception is thrown
      * if rid does not correspond to an existing record in the table.
      */
-    public synchronized Record deleteRecord(BaseTransaction transaction,
-                                            RecordId rid) throws DatabaseException {
+    public Record deleteRecord(BaseTransaction transaction,
+                               RecordId rid) throws DatabaseException {
         // TODO(hw5): modify for smarter locking
+        awaitMetadata();
         validateRecordId(rid);
-        Page page = allocator.fetchPage(transaction, rid.getPageNum());
-        requestXLock(transaction, page);
+        Page page = allocator.pinPage(transaction, rid.getPageNum());
+        try {
+            requestXLock(transaction, page);
+            Buffer buf = page.getBuffer(transaction, LockType.X);
+
+            long stamp = page.latchExclusive();
+            try {
+                Record record = readRecord(buf, rid);
+                PageOccupancy o = getOccupancy(page, buf);
+                Bits.setBit(buf, rid.getEntryNum(), Bits.Bit.ZERO);
+                boolean wasFull = o.numRecords == numRecordsPerPage;
+                o.numRecords--;
+                o.nextFreeHint = Math.min(o.nextFreeHint, rid.getEntryNum());
+
+                // The page must be back in freePageNums before another thread
+                // can see the slot free, so this happens under the latch.
+                synchronized (this) {
+                    stats.removeRecord(record);
+                    if (wasFull) {
+                        freePageNums.add(page.getPageNum());
+                    }
+                    numRecords--;
+                }
+
+                return record;
+            } finally {
+                page.unlatch(stamp);
+            }
+        } finally {
+            page.unpin();
+        }
+    }
 
-        Record record = getRecord(transaction, rid);
-        Bits.setBit(page.getBuffer(transaction), rid.getEntryNum(), Bits.Bit.ZERO);
+    /**
+     * compact moves the records of the sparsest data pages (those at most half
+     * full) into the densest pages that have room, and frees the pages it
+     * empties. At most maxPages pages are emptied, so a large table can be
+     * compacted in batches, each in its own transaction; pages are emptied
+     * only as long as the other pages have room for all of their records.
+     *
+     * Every page read or written is locked X, like deleteRecord and addRecord
+     * do. moved, if not null, is called with every record moved, its old
+     * record id, and its new one. It is called once the record's old page
+     * has been emptied, without holding any latch, so it may update indices.
+     * numRecords and stats are unchanged.
+     *
+     * @return the number of pages freed
+     */
+    public int compact(BaseTransaction transaction, int maxPages,
+                       RelocationListener moved) throws DatabaseException {
+        awaitMetadata();
+
+        // Pages with free slots, sparsest first. The counts are only hints:
+        // pages are read again once they are locked, and a page that turns out
+        // to have too few free slots just ends the batch early.
+        List<Integer> pageNums;
+        synchronized (this) {
+            pageNums = new ArrayList<>(freePageNums);
+        }
+        Map<Integer, Integer> counts = new HashMap<>();
+        long room = 0;
+        for (int pageNum : pageNums) {
+            int count = countRecords(pageNum);
+            counts.put(pageNum, count);
+            room += numRecordsPerPage - count;
+        }
+        pageNums.sort(Comparator.comparing(counts::get));
+
+        int numFreed = 0;
+        int first = 0;
+        int last = pageNums.size() - 1;
+        while (numFreed < maxPages && first < last) {
+            int sourceNum = pageNums.get(first++);
+            int count = counts.get(sourceNum);
+            room -= numRecordsPerPage - count;
+            if (count > numRecordsPerPage * sparsePageFillFactor || count > room) {
+                break;
+            }
+
+            // Keep addRecord away from the page while it is emptied.
+            synchronized (this) {
+                freePageNums.remove(sourceNum);
+            }
+            Page source = allocator.pinPage(transaction, sourceNum);
+            List<Record> records = new ArrayList<>();
+            List<RecordId> from = new ArrayList<>();
+            List<RecordId> to = new ArrayList<>();
+            try {
+                requestXLock(transaction, source);
+                Buffer buf = source.getBuffer(transaction, LockType.X);
+                long stamp = source.latchShared();
+                try {
+                    for (int e = Bits.nextSetBit(buf, 0, numRecordsPerPage); e >= 0;
+                            e = Bits.nextSetBit(buf, e + 1, numRecordsPerPage)) {
+                        RecordId rid = new RecordId(sourceNum, (short) e);
+                        from.add(rid);
+                        records.add(readRecord(buf, rid));
+                    }
+                } finally {
+                    source.unlatch(stamp);
+                }
+
+                // Fill the densest pages first, one latch at a time.
+                while (to.size() < records.size() && first <= last) {
+                    List<Record> rest = records.subList(to.size(), records.size());
+                    if (moveRecords(transaction, pageNums.get(last), rest, to)) {
+                        last--;
+                    }
+                }
+                room -= to.size();
+
+                stamp = source.latchExclusive();
+                try {
+                    for (int i = 0; i < to.size(); i++) {
+                        Bits.setBit(buf, from.get(i).getEntryNum(), Bits.Bit.ZERO);
+                    }
+                    PageOccupancy o = getOccupancy(source, buf);
+                    o.numRecords -= to.size();
+                    o.nextFreeHint = 0;
+                } finally {
+                    source.unlatch(stamp);
+                }
+            } finally {
+                source.unpin();
+            }
+
+            boolean emptied = to.size() == records.size();
+            if (emptied) {
+                allocator.freePage(transaction, sourceNum);
+                occupancy.remove(sourceNum);
+                numFreed++;
+            } else {
+                // Another transaction took the room we counted on.
+                synchronized (this) {
+                    freePageNums.add(sourceNum);
+                }
+            }
+            if (moved != null) {
+                for (int i = 0; i < to.size(); i++) {
+                    moved.relocated(records.get(i), from.get(i), to.get(i));
+                }
+            }
+            if (!emptied) {
+                break;
+            }
+        }
+        return numFreed;
+    }
 
-        stats.removeRecord(record);
-        if(numRecordsOnPage(transaction, page) == numRecordsPerPage - 1) {
-            freePageNums.add(page.getPageNum());
+    /**
+     * Adds records to the free slots of data page pageNum, in order, until
+     * either the page is full or every record has been added, and appends
+     * the new record id of every record added to rids.
+     *
+     * @return whether the page is full
+     */
+    private boolean moveRecords(BaseTransaction transaction, int pageNum, List<Record> records,
+                                List<RecordId> rids) {
+        Page page = allocator.pinPage(transaction, pageNum);
+        try {
+            requestXLock(transaction, page);
+            Buffer buf = page.getBuffer(transaction, LockType.X);
+            long stamp = page.latchExclusive();
+            try {
+                PageOccupancy o = getOccupancy(page, buf);
+                boolean full = false;
+                for (Record record : records) {
+                    int entryNum = Bits.nextClearBit(buf, o.nextFreeHint, numRecordsPerPage);
+                    if (entryNum < 0) {
+                        full = true;
+                        break;
+                    }
+                    insertRecord(buf, entryNum, record.toBytes(schema));
+                    Bits.setBit(buf, entryNum, Bits.Bit.ONE);
+                    o.numRecords++;
+                    o.nextFreeHint = entryNum + 1;
+                    rids.add(new RecordId(pageNum, (short) entryNum));
+                }
+                full = full || o.numRecords == numRecordsPerPage;
+                if (full) {
+                    synchronized (this) {
+                        freePageNums.remove(pageNum);
+                    }
+                }
+                return full;
+            } finally {
+                page.unlatch(stamp);
+            }
+        } finally {
+            page.unpin();
         }
-        numRecords--;
+    }
 
-        return record;
+    /**
+     * Counts the records on data page pageNum without locking it.
+     */
+    private int countRecords(int pageNum) {
+        Page page = allocator.pinPage(null, pageNum);
+        try {
+            Buffer buf = page.getBuffer(null, LockType.S);
+            long stamp = page.latchShared();
+            try {
+                return Bits.countBits(buf, numRecordsPerPage);
+            } finally {
+                page.unlatch(stamp);
+            }
+        } finally {
+            page.unpin();
+        }
     }
 
     /**
-     * Frees all empty pages used by the table.
+     * Frees all empty pages used by the table. Pages that still hold records
+     * are left alone; see compact.
      */
-    public synchronized void cleanup(BaseTransaction transaction) throws DatabaseException {
+    public void cleanup(BaseTransaction transaction) throws DatabaseException {
         // TODO(hw5): modify for smarter locking
         if (!LockType.substitutable(lockContext.getGlobalLockType(transaction), LockType.X)) {
             if (lockContext.saturation(transaction) >= 0.2 && lockContext.capacity() >= 10) {
@@ -404,29 +842,181 @@ public class Table implements Closeable {
             LockUtil.requestLocks(transaction, lockContext, LockType.X);
         }
 
-        for (Integer pageNum : freePageNums) {
-            allocator.freePage(transaction, pageNum);
+        awaitMetadata();
+        // Pages are counted outside of the monitor; see Concurrency above.
+        List<Integer> pageNums;
+        synchronized (this) {
+            pageNums = new ArrayList<>(freePageNums);
+        }
+        for (int pageNum : pageNums) {
+            if (countRecords(pageNum) == 0) {
+                synchronized (this) {
+                    freePageNums.remove(pageNum);
+                }
+                allocator.freePage(transaction, pageNum);
+                occupancy.remove(pageNum);
+            }
         }
-        freePageNums.clear();
     }
 
+    /**
+     * Closes the table, recording its metadata in the header page first.
+     */
     public void close() {
-        allocator.close();
+        try {
+            awaitMetadata();
+            writeMetadata(true);
+        } finally {
+            allocator.close();
+        }
     }
 
     // Helpers ///////////////////////////////////////////////////////////////////
     private static Schema readSchemaFromHeaderPage(BaseTransaction transaction,
             PageAllocator allocator) {
-        Page headerPage = allocator.fetchPage(transaction, 0);
-        Buffer buf = headerPage.getBuffer(transaction);
-        return Schema.fromBytes(buf);
+        Page headerPage = allocator.pinPage(transaction, 0);
+        try {
+            Buffer buf = headerPage.getBuffer(transaction);
+            return Schema.fromBytes(buf);
+        } finally {
+            headerPage.unpin();
+        }
     }
 
     private static void writeSchemaToHeaderPage(BaseTransaction transaction, PageAllocator allocator,
             Schema schema) {
-        Page headerPage = allocator.fetchPage(transaction, allocator.allocPage(transaction));
-        assert(0 == headerPage.getPageNum());
-        headerPage.getBuffer(transaction).put(schema.toBytes());
+        Page headerPage = allocator.pinPage(transaction, allocator.allocPage(transaction));
+        try {
+            assert(0 == headerPage.getPageNum());
+            headerPage.getBuffer(transaction).put(schema.toBytes());
+        } finally {
+            headerPage.unpin();
+        }
+    }
+
+    /**
+     * Reads the metadata that follows the schema in the header page, if the
+     * table was closed cleanly. Pages past the end of the free page bitmap are
+     * all assumed to have room; addRecord finds out otherwise the first time
+     * it tries one.
+     *
+     * @return whether the metadata was read
+     */
+    private boolean readMetadata() {
+        // The metadata belongs to the table rather than to any transaction,
+        // so it is read and written without locks.
+        Page headerPage = allocator.pinPage(null, 0);
+        int numCovered;
+        try {
+            Buffer buf = headerPage.getBuffer(null);
+            if (metadataOffset + metadataHeaderSize > allocator.getPageSize()
+                    || buf.getInt(metadataOffset) != metadataMagic
+                    || buf.get(metadataOffset + 4) != 1) {
+                return false;
+            }
+            numRecords = buf.getLong(metadataOffset + 5);
+            numCovered = buf.getInt(metadataOffset + 13);
+            buf.position(metadataOffset + metadataHeaderSize);
+            for (int p = Bits.nextSetBit(buf, 0, numCovered); p >= 0;
+                    p = Bits.nextSetBit(buf, p + 1, numCovered)) {
+                freePageNums.add(p);
+            }
+        } finally {
+            headerPage.unpin();
+        }
+        for (int p = allocator.nextAllocatedPage(numCovered); p >= 0;
+                p = allocator.nextAllocatedPage(p + 1)) {
+            freePageNums.add(p);
+        }
+        stats = new TableStats(schema, allocator.getPageSize(), (int) numRecords);
+        return true;
+    }
+
+    /**
+     * Writes the table's metadata into the header page, right after the
+     * schema:
+     *
+     *   - a 4-byte magic number, marking the metadata as present;
+     *   - a 1-byte flag, which is 1 iff the table was closed cleanly;
+     *   - the 8-byte number of records in the table;
+     *   - the 4-byte number n of pages covered by the free page bitmap;
+     *   - and an n-bit bitmap whose bit p is set iff page p has room for a
+     *     record, which fills the rest of the page.
+     *
+     * If the table is not clean, only the magic number and flag are written,
+     * and they are flushed to disk at once. Nothing is written if the schema
+     * leaves no room for the metadata.
+     */
+    private void writeMetadata(boolean clean) {
+        int pageSize = allocator.getPageSize();
+        if (metadataOffset + metadataHeaderSize > pageSize) {
+            return;
+        }
+        Page headerPage = allocator.pinPage(null, 0);
+        try {
+            Buffer buf = headerPage.getBuffer(null);
+            if (clean) {
+                byte[] bitmap = new byte[pageSize - metadataOffset - metadataHeaderSize];
+                Buffer bitmapBuf = ByteBuffer.wrap(bitmap);
+                int numCovered = bitmap.length * 8;
+                for (int p : freePageNums.headSet(numCovered)) {
+                    Bits.setBit(bitmapBuf, p, Bits.Bit.ONE);
+                }
+                buf.putLong(metadataOffset + 5, numRecords);
+                buf.putInt(metadataOffset + 13, numCovered);
+                buf.position(metadataOffset + metadataHeaderSize).put(bitmap);
+            }
+            buf.putInt(metadataOffset, metadataMagic);
+            buf.put(metadataOffset + 4, (byte) (clean ? 1 : 0));
+            if (!clean) {
+                headerPage.flush();
+            }
+        } finally {
+            headerPage.unpin();
+        }
+    }
+
+    /**
+     * Rebuilds stats, freePageNums, and numRecords by counting the records on
+     * every data page. This runs in the background, after the constructor has
+     * returned and released its locks, so the pages are read without locks;
+     * nothing else changes the table until it is done (see awaitMetadata).
+     */
+    private void rebuildMetadata() {
+        Iterator<Page> iter = allocator.iterator(null);
+        iter.next(); // Skip the header page.
+        long count = 0;
+        while (iter.hasNext()) {
+            Page page = iter.next();
+            Buffer bitmap = ByteBuffer.wrap(getBitMap(null, page));
+            int numOnPage = Bits.countBits(bitmap, numRecordsPerPage);
+            occupancy.put(page.getPageNum(), new PageOccupancy(numOnPage));
+            if (numOnPage != numRecordsPerPage) {
+                freePageNums.add(page.getPageNum());
+            }
+            count += numOnPage;
+        }
+        numRecords = count;
+        stats = new TableStats(schema, allocator.getPageSize(), (int) count);
+    }
+
+    /**
+     * Waits for the rebuild of the table's metadata to finish, if one is
+     * running.
+     */
+    private void awaitMetadata() {
+        Future<?> rebuild = metadataRebuild;
+        if (rebuild == null) {
+            return;
+        }
+        try {
+            rebuild.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while loading table " + name, e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("could not load table " + name, e.getCause());
+        }
     }
 
     /**
@@ -455,15 +1045,66 @@ public class Table implements Closeable {
         return pageSizeInBits / recordOverheadInBits;
     }
 
-    private int numRecordsOnPage(BaseTransaction transaction, Page page) {
-        byte[] bitmap = getBitMap(transaction, page);
-        int numRecords = 0;
-        for (int i = 0; i < numRecordsPerPage; ++i) {
-            if (Bits.getBit(bitmap, i) == Bits.Bit.ONE) {
-                numRecords++;
+    /**
+     * Returns the occupancy of page, counting the records in its bitmap if it
+     * has not been read or written yet. The caller must hold the page's
+     * exclusive latch, and buf must be a buffer over the page.
+     */
+    private PageOccupancy getOccupancy(Page page, Buffer buf) {
+        return occupancy.computeIfAbsent(page.getPageNum(), p ->
+                                         new PageOccupancy(Bits.countBits(buf, numRecordsPerPage)));
+    }
+
+    /**
+     * Copies the bytes of record entryNum of the page behind buf into bytes.
+     *
+     * @return whether the record exists
+     */
+    private boolean copyRecord(Buffer buf, int entryNum, byte[] bytes) {
+        if (Bits.getBit(buf, entryNum) == Bits.Bit.ZERO) {
+            return false;
+        }
+        buf.duplicate().position(bitmapSizeInBytes + (entryNum * schema.getSizeInBytes())).get(bytes);
+        return true;
+    }
+
+    /**
+     * Decodes record rid from buf, a buffer over its page, which the caller has
+     * latched.
+     */
+    private Record readRecord(Buffer buf, RecordId rid) throws DatabaseException {
+        if (Bits.getBit(buf, rid.getEntryNum()) == Bits.Bit.ZERO) {
+            String msg = String.format("Record %s does not exist.", rid);
+            throw new DatabaseException(msg);
+        }
+        int offset = bitmapSizeInBytes + (rid.getEntryNum() * schema.getSizeInBytes());
+        return Record.fromBytes(buf.duplicate().position(offset), schema);
+    }
+
+    /**
+     * Decodes every live record of a data page, in slot order, and unpins the
+     * page, which the caller has pinned.
+     */
+    private Record[] readPage(BaseTransaction transaction, Page page) {
+        try {
+            Buffer buf = page.getBuffer(transaction, LockType.S);
+            long stamp = page.latchShared();
+            try {
+                Record[] records = new Record[Bits.countBits(buf, numRecordsPerPage)];
+                int recordSize = schema.getSizeInBytes();
+                int i = 0;
+                for (int e = Bits.nextSetBit(buf, 0, numRecordsPerPage); e >= 0;
+                        e = Bits.nextSetBit(buf, e + 1, numRecordsPerPage)) {
+                    Buffer record = buf.duplicate().position(bitmapSizeInBytes + e * recordSize);
+                    records[i++] = Record.fromBytes(record, schema);
+                }
+                return records;
+            } finally {
+                page.unlatch(stamp);
             }
+        } finally {
+            page.unpin();
         }
-        return numRecords;
     }
 
     private void validateRecordId(RecordId rid) throws DatabaseException {
@@ -487,6 +1128,29 @@ public class Table implements Closeable {
         }
     }
 
+    /**
+     * The number of records on a data page, and a slot below which every slot
+     * of the page is taken. Together they let addRecord and deleteRecord keep
+     * freePageNums up to date without counting the bits of the page's bitmap.
+     * Both are only read and written under the page's exclusive latch.
+     */
+    private static class PageOccupancy {
+        int numRecords;
+        int nextFreeHint;
+
+        PageOccupancy(int numRecords) {
+            this.numRecords = numRecords;
+            this.nextFreeHint = 0;
+        }
+    }
+
+    /**
+     * Called by compact for every record it moves to a new record id.
+     */
+    public interface RelocationListener {
+        void relocated(Record record, RecordId from, RecordId to) throws DatabaseException;
+    }
+
     // Iterators /////////////////////////////////////////////////////////////////
     public TableIterator ridIterator(BaseTransaction transaction) {
         // TODO(hw5): reduce locking overhead for table scans
@@ -498,17 +1162,53 @@ public class Table implements Closeable {
     }
 
     public RecordIterator iterator(BaseTransaction transaction) {
-        List<RecordId> rids = getAllRecordIds(transaction);
-        BacktrackingIterator<RecordId> iter = new ArrayBacktrackingIterator<RecordId>(rids.toArray(
-                    new RecordId[rids.size()]));
-        // Placeholder to call ridIterator anyways (since the normal version includes a call to ridIterator)
-        try {
-            ridIterator(transaction);
-        } catch (UnsupportedOperationException e) {}
-        return new RecordIterator(transaction, this, iter);
-        /*
-        return new RecordIterator(transaction, this, ridIterator(transaction));
-        */
+        if (!LockType.substitutable(lockContext.getGlobalLockType(transaction), LockType.S)) {
+            LockUtil.requestLocks(transaction, lockContext, LockType.S);
+        }
+
+        return new PageScanIterator(transaction);
+    }
+
+    /**
+     * Returns a Spliterator over every record of the table, in the same order
+     * as iterator. The table is locked S here, once, on the calling thread, so
+     * the spliterator and the pieces it splits into can be traversed on any
+     * thread without going through the lock manager.
+     */
+    public PageRangeSpliterator spliterator(BaseTransaction transaction) {
+        if (!LockType.substitutable(lockContext.getGlobalLockType(transaction), LockType.S)) {
+            LockUtil.requestLocks(transaction, lockContext, LockType.S);
+        }
+        awaitMetadata();
+
+        // Page 0 is the header page.
+        int end = allocator.lastAllocatedPage() + 1;
+        double recordsPerPageNum = end <= 1 ? 0.0 : (double) numRecords / (end - 1);
+        return new PageRangeSpliterator(1, end, recordsPerPageNum);
+    }
+
+    /**
+     * Returns a Spliterator over the records of the data pages numbered
+     * [start, end), locking the table like spliterator(transaction).
+     */
+    public PageRangeSpliterator spliterator(BaseTransaction transaction, int start, int end) {
+        if (!LockType.substitutable(lockContext.getGlobalLockType(transaction), LockType.S)) {
+            LockUtil.requestLocks(transaction, lockContext, LockType.S);
+        }
+        awaitMetadata();
+
+        int numPages = allocator.lastAllocatedPage();
+        double recordsPerPageNum = numPages <= 0 ? 0.0 : (double) numRecords / numPages;
+        return new PageRangeSpliterator(Math.max(start, 1), end, recordsPerPageNum);
+    }
+
+    /**
+     * Returns a stream of every record of the table (see spliterator). A
+     * parallel stream runs on the common fork-join pool, with every worker
+     * reading its own range of pages.
+     */
+    public Stream<Record> stream(BaseTransaction transaction, boolean parallel) {
+        return StreamSupport.stream(spliterator(transaction), parallel);
     }
 
     public BacktrackingIterator<Record> blockIterator(BaseTransaction transaction, Page[] block) {
@@ -738,22 +1438,196 @@ public class Table implements Closeable {
     }
 
     /**
-     * A helper method that returns every record id (and assumes no deletes have happened).
+     * PageScanIterator is a RecordIterator over every record of the table that
+     * reads the table a page at a time. Pages come from the allocator's
+     * PageIterator, so a scan of a large table gets read-ahead and does not
+     * flush the buffer pool. The bitmap of each page is read once, and all of
+     * the page's records are decoded together under one latch, rather than
+     * fetching the page again for every record.
+     *
+     * At most three pages' worth of records are held at a time: the page being
+     * read, the page of the last record returned, and the marked page.
      */
-    private List<RecordId> getAllRecordIds(BaseTransaction transaction) {
-        Iterator<Page> pageIterator = Table.this.allocator.iterator(transaction);
-        List<RecordId> res = new ArrayList<>();
+    public class PageScanIterator extends RecordIterator {
+        private BaseTransaction transaction;
+        private PageAllocator.PageIterator pages;
+
+        // The records of the page being read, and the index of the next one.
+        private Record[] records = new Record[0];
+        private int index = 0;
+
+        // The last record returned, as an index into its page's records, or
+        // null if there is none since the iterator was created or reset.
+        private Record[] lastRecords = null;
+        private int lastIndex = 0;
+        // Whether the page of the last record returned is the last page the
+        // page iterator returned.
+        private boolean lastOnCurrentPage = false;
+        // Whether the page iterator has been reset to the page after the one
+        // being read, and has not returned it yet.
+        private boolean pagesBehind = false;
+
+        private Record[] markedRecords = null;
+        private int markedIndex = 0;
+        private boolean markedOnCurrentPage = false;
+
+        PageScanIterator(BaseTransaction transaction) {
+            super(transaction, Table.this, Collections.<RecordId>emptyIterator());
+            this.transaction = transaction;
+            this.pages = Table.this.allocator.iterator(transaction);
+        }
 
-        pageIterator.next();
-        while (pageIterator.hasNext()) {
-            Page page = pageIterator.next();
-            for (short entryNum = 0; entryNum < Table.this.numRecordsPerPage &&
-                    res.size() < numRecords; ++entryNum) {
-                res.add(new RecordId(page.getPageNum(), entryNum));
+        @Override
+        public boolean hasNext() {
+            while (this.index == this.records.length) {
+                if (!this.pages.hasNext()) {
+                    return false;
+                }
+                Page page = this.pages.nextPinned();
+                this.lastOnCurrentPage = false;
+                this.pagesBehind = false;
+                // Skip the header page.
+                if (page.getPageNum() == 0) {
+                    page.unpin();
+                    this.records = new Record[0];
+                } else {
+                    this.records = readPage(this.transaction, page);
+                }
+                this.index = 0;
             }
+            return true;
         }
 
-        return res;
+        @Override
+        public Record next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            this.lastRecords = this.records;
+            this.lastIndex = this.index;
+            this.lastOnCurrentPage = true;
+            return this.records[this.index++];
+        }
+
+        @Override
+        public void mark() {
+            if (this.lastRecords == null) {
+                return;
+            }
+            this.markedRecords = this.lastRecords;
+            this.markedIndex = this.lastIndex;
+            if (this.pagesBehind) {
+                // The page iterator is still marked at the page after this one.
+                this.markedOnCurrentPage = false;
+            } else {
+                this.markedOnCurrentPage = this.lastOnCurrentPage;
+                this.pages.mark();
+            }
+        }
+
+        @Override
+        public void reset() {
+            if (this.markedRecords == null) {
+                return;
+            }
+            // The page iterator goes back to the page it was on when we marked.
+            // If that is the marked record's page, we already have its records.
+            this.pages.reset();
+            if (this.markedOnCurrentPage) {
+                this.pages.next();
+            }
+            this.records = this.markedRecords;
+            this.index = this.markedIndex;
+            this.lastRecords = null;
+            this.lastOnCurrentPage = false;
+            this.pagesBehind = !this.markedOnCurrentPage;
+        }
     }
-}
 
+    /**
+     * PageRangeSpliterator is a Spliterator over the records of the data pages
+     * numbered [next, end). It splits by handing the first half of its page
+     * numbers, and the records it has already read, to a new spliterator, so
+     * the records of the pieces stay in page order.
+     *
+     * Like PageScanIterator, it reads a whole page at a time, from an
+     * allocator iterator over its range of pages, so each piece scans through
+     * a ring and reads ahead like a sequential scan. It does not lock anything
+     * (see Table#spliterator), and pages freed while it runs are skipped.
+     */
+    public class PageRangeSpliterator implements Spliterator<Record> {
+        private int next;
+        private int end;
+        // The estimated number of records per page number, for estimateSize.
+        private double recordsPerPageNum;
+        // The pages of [next, end), created on the first read after a split.
+        private PageAllocator.PageIterator pages = null;
+
+        // The records of the page being read, and the index of the next one.
+        private Record[] records = new Record[0];
+        private int index = 0;
+
+        PageRangeSpliterator(int next, int end, double recordsPerPageNum) {
+            this.next = next;
+            this.end = end;
+            this.recordsPerPageNum = recordsPerPageNum;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Record> action) {
+            while (this.index == this.records.length) {
+                if (this.next >= this.end) {
+                    return false;
+                }
+                if (this.pages == null) {
+                    this.pages = allocator.iterator(null, this.next, this.end);
+                }
+                Page page;
+                try {
+                    page = this.pages.nextPinned();
+                } catch (NoSuchElementException e) {
+                    this.next = this.end;
+                    return false;
+                }
+                this.next = page.getPageNum() + 1;
+                try {
+                    this.records = readPage(null, page);
+                } catch (PageException e) {
+                    // Freed since the iterator fetched it.
+                    this.records = new Record[0];
+                }
+                this.index = 0;
+            }
+            action.accept(this.records[this.index++]);
+            return true;
+        }
+
+        @Override
+        public PageRangeSpliterator trySplit() {
+            if (this.end - this.next < 2) {
+                return null;
+            }
+            int mid = this.next + (this.end - this.next) / 2;
+            PageRangeSpliterator prefix = new PageRangeSpliterator(this.next, mid,
+                    this.recordsPerPageNum);
+            prefix.records = this.records;
+            prefix.index = this.index;
+            this.records = new Record[0];
+            this.index = 0;
+            this.next = mid;
+            this.pages = null;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return (this.records.length - this.index)
+                   + (long) Math.ceil(this.recordsPerPageNum * (this.end - this.next));
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+    }
+}
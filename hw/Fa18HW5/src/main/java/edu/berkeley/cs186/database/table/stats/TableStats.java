@@ -48,12 +48,22 @@ import edu.berkeley.cs186.database.table.Table;
  */
 public class TableStats {
     private Schema tableSchema;
+    private int pageSize;
     private int numRecords;
     private List<Histogram> histograms;
 
     /** Construct a TableStats for an empty table with schema `tableSchema`. */
     public TableStats(Schema tableSchema) {
+        this(tableSchema, Page.pageSize);
+    }
+
+    /**
+     * Construct a TableStats for an empty table with schema `tableSchema` stored
+     * in pages of `pageSize` bytes.
+     */
+    public TableStats(Schema tableSchema, int pageSize) {
         this.tableSchema = tableSchema;
+        this.pageSize = pageSize;
         this.numRecords = 0;
         this.histograms = new ArrayList<Histogram>();
         for (Type t : tableSchema.getFieldTypes()) {
@@ -62,8 +72,20 @@ public class TableStats {
         }
     }
 
-    private TableStats(Schema tableSchema, int numRecords, List<Histogram> histograms) {
+    /**
+     * Construct a TableStats for a table with schema `tableSchema` stored in
+     * pages of `pageSize` bytes that holds `numRecords` records, and for which
+     * no histograms have been built yet.
+     */
+    public TableStats(Schema tableSchema, int pageSize, int numRecords) {
+        this(tableSchema, pageSize);
+        this.numRecords = numRecords;
+    }
+
+    private TableStats(Schema tableSchema, int pageSize, int numRecords,
+                       List<Histogram> histograms) {
         this.tableSchema = tableSchema;
+        this.pageSize = pageSize;
         this.numRecords = numRecords;
         this.histograms = histograms;
     }
@@ -73,6 +95,11 @@ public class TableStats {
         numRecords++;
     }
 
+    /** Records that `count` records were added at once, e.g. by a bulk insert. */
+    public void addRecords(int count) {
+        numRecords += count;
+    }
+
     public void refreshHistograms(BaseTransaction transaction, int buckets, Table tab) {
         this.histograms.clear();
         int count = 0;
@@ -101,12 +128,16 @@ public class TableStats {
         return numRecords;
     }
 
+    public int getPageSize() {
+        return pageSize;
+    }
+
     /**
      * Calculates the number of data pages required to store `numRecords` records
      * assuming that all records are stored as densely as possible in the pages.
      */
     public int getNumPages() {
-        int numRecordsPerPage = Table.computeNumRecordsPerPage(Page.pageSize, tableSchema);
+        int numRecordsPerPage = Table.computeNumRecordsPerPage(pageSize, tableSchema);
         if (numRecords % numRecordsPerPage == 0) {
             return numRecords / numRecordsPerPage;
         } else {
@@ -173,7 +204,7 @@ public class TableStats {
 
         Histogram qhistogram = histograms.get(column);
         int numRecords = qhistogram.getCount();
-        return new TableStats(this.tableSchema, numRecords, copyHistograms);
+        return new TableStats(this.tableSchema, this.pageSize, numRecords, copyHistograms);
     }
 
     /**
@@ -247,6 +278,7 @@ public class TableStats {
 
         int outputSize = (int)(reductionFactor * inputSize);
 
-        return new TableStats(joinedSchema, outputSize, copyHistograms);
+        // Join outputs are materialized in temporary tables, which use the default page size.
+        return new TableStats(joinedSchema, Page.pageSize, outputSize, copyHistograms);
     }
 }
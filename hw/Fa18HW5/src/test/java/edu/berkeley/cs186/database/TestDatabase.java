@@ -1,5 +1,14 @@
 package edu.berkeley.cs186.database;
 
+import edu.berkeley.cs186.database.concurrency.DummyLockManager;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.index.BPlusTree;
+import edu.berkeley.cs186.database.io.BufferPool;
+import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.io.PageAllocator;
+import edu.berkeley.cs186.database.io.PageStore;
 import edu.berkeley.cs186.database.table.*;
 
 import org.junit.After;
@@ -11,6 +20,15 @@ import org.junit.rules.TemporaryFolder;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
 
 public class TestDatabase {
     public static final String TestDir = "testDatabase";
@@ -131,4 +149,575 @@ public class TestDatabase {
         t1.end();
     }
 
+    @Test
+    public void testTableMetadataAfterCleanClose() throws DatabaseException {
+        Schema s = TestUtils.createSchemaWithAllTypes();
+        Record input = TestUtils.createRecordWithAllTypes();
+        String tableName = "testTable1";
+
+        Database.Transaction t1 = db.beginTransaction();
+        t1.createTable(s, tableName);
+        int recordsPerPage = t1.getNumEntriesPerPage(tableName);
+        for (int i = 0; i < 20 * recordsPerPage; i++) {
+            t1.addRecord(tableName, input.getValues());
+        }
+        t1.deleteRecord(tableName, new RecordId(5, (short) 2));
+        t1.end();
+
+        db.close();
+
+        // Loading the table reads its header page but none of its data pages.
+        db = new Database(this.filename);
+        Table table = db.getTable(tableName);
+        assertTrue(table.getMetrics().getMisses() < 5);
+        t1 = db.beginTransaction();
+        assertEquals(20 * recordsPerPage - 1, t1.getNumRecords(tableName));
+        assertEquals(20 * recordsPerPage - 1, table.getStats().getNumRecords());
+        assertEquals(new RecordId(5, (short) 2), t1.addRecord(tableName, input.getValues()));
+        assertEquals(new RecordId(21, (short) 0), t1.addRecord(tableName, input.getValues()));
+        t1.end();
+    }
+
+    @Test
+    public void testTableMetadataRebuiltAfterCrash() throws DatabaseException {
+        Schema s = TestUtils.createSchemaWithAllTypes();
+        Record input = TestUtils.createRecordWithAllTypes();
+        String tableName = "testTable1";
+
+        Database.Transaction t1 = db.beginTransaction();
+        t1.createTable(s, tableName);
+        int recordsPerPage = t1.getNumEntriesPerPage(tableName);
+        for (int i = 0; i < 3 * recordsPerPage; i++) {
+            t1.addRecord(tableName, input.getValues());
+        }
+        t1.deleteRecord(tableName, new RecordId(2, (short) 4));
+        t1.end();
+
+        // Load the database again without closing it, as if it had crashed.
+        Database crashed = db;
+        try {
+            db = new Database(this.filename);
+            t1 = db.beginTransaction();
+            assertEquals(3 * recordsPerPage - 1, t1.getNumRecords(tableName));
+            assertEquals(new RecordId(2, (short) 4), t1.addRecord(tableName, input.getValues()));
+            t1.end();
+            assertTrue(db.getTable(tableName).getMetrics().getMisses() >= 3);
+
+            // The table is not clean again until it is closed.
+            Database crashedAgain = new Database(this.filename);
+            t1 = crashedAgain.beginTransaction();
+            assertEquals(3 * recordsPerPage, t1.getNumRecords(tableName));
+            t1.end();
+            crashedAgain.close();
+        } finally {
+            crashed.close();
+        }
+    }
+
+    @Test
+    public void testDatabaseDurablityChannelStore() throws DatabaseException {
+        db.close();
+        db = new Database(this.filename, 5, new DummyLockManager(), PageStore.CHANNEL);
+
+        Schema s = TestUtils.createSchemaWithAllTypes();
+        Record input = TestUtils.createRecordWithAllTypes();
+
+        String tableName = "testTable1";
+
+        Database.Transaction t1 = db.beginTransaction();
+        t1.createTable(s, tableName);
+        RecordId rid = null;
+        for (int i = 0; i < 500; i++) {
+            rid = t1.addRecord(tableName, input.getValues());
+        }
+        assertEquals(input, t1.getRecord(tableName, rid));
+        t1.end();
+
+        db.close();
+
+        db = new Database(this.filename, 5, new DummyLockManager(), PageStore.CHANNEL);
+        t1 = db.beginTransaction();
+        assertEquals(input, t1.getRecord(tableName, rid));
+        assertEquals(500, t1.getNumRecords(tableName));
+        t1.end();
+    }
+
+    @Test
+    public void testDatabaseMemoryBudget() throws DatabaseException {
+        BufferPool old = PageAllocator.getBufferPool();
+        try {
+            db.close();
+            long budget = 16 * Page.pageSize;
+            db = new Database(this.filename, 5, new DummyLockManager(), budget);
+            BufferPool pool = PageAllocator.getBufferPool();
+            assertEquals(budget, pool.getMemoryBudget());
+
+            Schema s = TestUtils.createSchemaWithAllTypes();
+            Record input = TestUtils.createRecordWithAllTypes();
+            String tableName = "testTable1";
+
+            Database.Transaction t1 = db.beginTransaction();
+            t1.createTable(s, tableName);
+            RecordId rid = null;
+            for (int i = 0; i < 5000; i++) {
+                rid = t1.addRecord(tableName, input.getValues());
+            }
+            assertEquals(input, t1.getRecord(tableName, rid));
+
+            // More pages than fit in the pool went through it, all within the arena.
+            assertTrue(t1.getNumDataPages(tableName) > 16);
+            assertTrue(pool.getMemoryUsed() > 0);
+            assertEquals(0, pool.getNumDirectAllocations());
+            t1.end();
+            db.close();
+
+            db = new Database(this.filename, 5, new DummyLockManager(), budget);
+            t1 = db.beginTransaction();
+            assertEquals(input, t1.getRecord(tableName, rid));
+            assertEquals(5000, t1.getNumRecords(tableName));
+            t1.end();
+        } finally {
+            PageAllocator.setBufferPool(old);
+        }
+    }
+
+    @Test
+    public void testTablePageSize() throws DatabaseException {
+        Schema s = TestUtils.createSchemaWithAllTypes();
+        Record input = TestUtils.createRecordWithAllTypes();
+
+        String tableName = "testTable1";
+
+        Database.Transaction t1 = db.beginTransaction();
+        t1.createTable(s, "defaultPages");
+        t1.createTable(s, tableName, 4 * Page.pageSize);
+        int recordsPerPage = t1.getNumEntriesPerPage(tableName);
+        assertTrue(recordsPerPage > 3 * t1.getNumEntriesPerPage("defaultPages"));
+        RecordId rid = null;
+        for (int i = 0; i < 2 * recordsPerPage; i++) {
+            rid = t1.addRecord(tableName, input.getValues());
+        }
+        assertEquals(2, t1.getNumDataPages(tableName));
+        t1.end();
+
+        db.close();
+
+        db = new Database(this.filename);
+        t1 = db.beginTransaction();
+        assertEquals(recordsPerPage, t1.getNumEntriesPerPage(tableName));
+        assertEquals(input, t1.getRecord(tableName, rid));
+        assertEquals(2 * recordsPerPage, t1.getNumRecords(tableName));
+        t1.end();
+    }
+
+    @Test
+    public void testDeletedSlotsAreReused() throws DatabaseException {
+        Schema s = TestUtils.createSchemaWithAllTypes();
+        Record input = TestUtils.createRecordWithAllTypes();
+        String tableName = "testTable1";
+
+        Database.Transaction t1 = db.beginTransaction();
+        t1.createTable(s, tableName);
+        int recordsPerPage = t1.getNumEntriesPerPage(tableName);
+        for (int i = 0; i < 2 * recordsPerPage; i++) {
+            t1.addRecord(tableName, input.getValues());
+        }
+
+        // Free slots are filled lowest first, on the first page with room.
+        t1.deleteRecord(tableName, new RecordId(2, (short) 3));
+        t1.deleteRecord(tableName, new RecordId(1, (short) 7));
+        t1.deleteRecord(tableName, new RecordId(1, (short) 2));
+        assertEquals(new RecordId(1, (short) 2), t1.addRecord(tableName, input.getValues()));
+        assertEquals(new RecordId(1, (short) 7), t1.addRecord(tableName, input.getValues()));
+        assertEquals(new RecordId(2, (short) 3), t1.addRecord(tableName, input.getValues()));
+        assertEquals(new RecordId(3, (short) 0), t1.addRecord(tableName, input.getValues()));
+        t1.deleteRecord(tableName, new RecordId(2, (short) 5));
+        t1.end();
+
+        db.close();
+
+        // The free slot is found again after reopening the table.
+        db = new Database(this.filename);
+        t1 = db.beginTransaction();
+        assertEquals(2 * recordsPerPage, t1.getNumRecords(tableName));
+        assertEquals(new RecordId(2, (short) 5), t1.addRecord(tableName, input.getValues()));
+        assertEquals(new RecordId(3, (short) 1), t1.addRecord(tableName, input.getValues()));
+        t1.end();
+    }
+
+    @Test
+    public void testRecordIterator() throws DatabaseException {
+        Schema s = TestUtils.createSchemaWithAllTypes();
+        String tableName = "testTable1";
+
+        Database.Transaction t1 = db.beginTransaction();
+        t1.createTable(s, tableName);
+        int recordsPerPage = t1.getNumEntriesPerPage(tableName);
+        List<RecordId> rids = new ArrayList<>();
+        for (int i = 0; i < 4 * recordsPerPage; i++) {
+            Record r = TestUtils.createRecordWithAllTypesWithValue(i);
+            rids.add(t1.addRecord(tableName, r.getValues()));
+        }
+
+        // Empty the second page and leave holes in the others.
+        List<Record> expected = new ArrayList<>();
+        for (int i = 0; i < rids.size(); i++) {
+            if (i / recordsPerPage == 1 || i % 3 == 1) {
+                t1.deleteRecord(tableName, rids.get(i));
+            } else {
+                expected.add(TestUtils.createRecordWithAllTypesWithValue(i));
+            }
+        }
+
+        List<Record> actual = new ArrayList<>();
+        RecordIterator iter = t1.getRecordIterator(tableName);
+        while (iter.hasNext()) {
+            actual.add(iter.next());
+        }
+        assertEquals(expected, actual);
+
+        // Mark every record in turn, including the last of each page, and
+        // reset after reading past it.
+        for (int i = 0; i < expected.size(); i++) {
+            iter = t1.getRecordIterator(tableName);
+            for (int j = 0; j <= i; j++) {
+                iter.next();
+            }
+            iter.hasNext();
+            iter.mark();
+            for (int j = i + 1; j < expected.size() && j < i + recordsPerPage; j++) {
+                iter.next();
+            }
+            for (int k = 0; k < 2; k++) {
+                iter.reset();
+                assertEquals(expected.get(i), iter.next());
+                if (i + 1 < expected.size()) {
+                    assertEquals(expected.get(i + 1), iter.next());
+                }
+            }
+
+            // Mark again right after resetting, then read to the end.
+            iter.reset();
+            iter.next();
+            iter.mark();
+            actual.clear();
+            while (iter.hasNext()) {
+                actual.add(iter.next());
+            }
+            assertEquals(expected.subList(i + 1, expected.size()), actual);
+            iter.reset();
+            assertEquals(expected.get(i), iter.next());
+        }
+        t1.end();
+    }
+
+    @Test
+    public void testTableStream() throws DatabaseException {
+        Schema s = TestUtils.createSchemaWithAllTypes();
+        String tableName = "testTable1";
+
+        Database.Transaction t1 = db.beginTransaction();
+        t1.createTable(s, tableName);
+        int recordsPerPage = t1.getNumEntriesPerPage(tableName);
+        List<RecordId> rids = new ArrayList<>();
+        for (int i = 0; i < 10 * recordsPerPage; i++) {
+            Record r = TestUtils.createRecordWithAllTypesWithValue(i);
+            rids.add(t1.addRecord(tableName, r.getValues()));
+        }
+
+        // Empty the third page and leave holes in the others.
+        List<Record> expected = new ArrayList<>();
+        int sum = 0;
+        for (int i = 0; i < rids.size(); i++) {
+            if (i / recordsPerPage == 2 || i % 5 == 3) {
+                t1.deleteRecord(tableName, rids.get(i));
+            } else {
+                expected.add(TestUtils.createRecordWithAllTypesWithValue(i));
+                sum += i;
+            }
+        }
+        Table table = db.getTable(tableName);
+
+        assertEquals(expected, table.stream(t1, false).collect(Collectors.toList()));
+        assertEquals(expected, table.stream(t1, true).collect(Collectors.toList()));
+        assertEquals(sum, table.stream(t1, true)
+                     .mapToInt(r -> r.getValues().get(1).getInt()).sum());
+
+        // Splitting hands out the first half of the pages, and the records
+        // already read, so the pieces stay in order.
+        Spliterator<Record> second = table.spliterator(t1);
+        assertTrue(second.tryAdvance(r -> assertEquals(expected.get(0), r)));
+        Spliterator<Record> first = second.trySplit();
+        assertNotNull(first);
+        assertTrue(first.hasCharacteristics(Spliterator.ORDERED));
+        List<Record> actual = new ArrayList<>();
+        first.forEachRemaining(actual::add);
+        second.forEachRemaining(actual::add);
+        assertEquals(expected.subList(1, expected.size()), actual);
+        t1.end();
+    }
+
+    @Test
+    public void testBulkInsert() throws DatabaseException {
+        Schema s = TestUtils.createSchemaWithAllTypes();
+        String tableName = "testTable1";
+
+        Database.Transaction t1 = db.beginTransaction();
+        t1.createTableWithIndices(s, tableName, Arrays.asList("int", "string"));
+        int recordsPerPage = t1.getNumEntriesPerPage(tableName);
+        int numRecords = 3 * recordsPerPage + recordsPerPage / 2;
+
+        // Insert the rows in descending order of key, so the indices must sort them.
+        List<Record> expected = new ArrayList<>();
+        for (int i = numRecords - 1; i >= 0; i--) {
+            expected.add(TestUtils.createRecordWithAllTypesWithValue(i));
+        }
+        Iterator<List<DataBox>> rows = expected.stream().map(Record::getValues).iterator();
+        assertEquals(numRecords, t1.bulkInsert(tableName, rows));
+        assertEquals(numRecords, t1.getNumRecords(tableName));
+        assertEquals(numRecords, t1.getStats(tableName).getNumRecords());
+        assertEquals(4, t1.getNumDataPages(tableName));
+
+        List<Record> actual = new ArrayList<>();
+        Iterator<Record> iter = t1.getRecordIterator(tableName);
+        while (iter.hasNext()) {
+            actual.add(iter.next());
+        }
+        assertEquals(expected, actual);
+
+        Collections.reverse(expected);
+        actual.clear();
+        iter = t1.sortedScan(tableName, "int");
+        while (iter.hasNext()) {
+            actual.add(iter.next());
+        }
+        assertEquals(expected, actual);
+        Record r = TestUtils.createRecordWithAllTypesWithValue(17);
+        assertEquals(r, t1.lookupKey(tableName, "string", r.getValues().get(2)).next());
+
+        // The last page has room for single inserts, and a nonempty index takes
+        // more bulk inserted entries.
+        Record single = TestUtils.createRecordWithAllTypesWithValue(numRecords);
+        RecordId rid = t1.addRecord(tableName, single.getValues());
+        assertEquals(new RecordId(4, (short) (recordsPerPage / 2)), rid);
+        List<List<DataBox>> more = new ArrayList<>();
+        for (int i = numRecords + 1; i < numRecords + 10; i++) {
+            more.add(TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+        }
+        assertEquals(9, t1.bulkInsert(tableName, more.iterator()));
+        Record last = TestUtils.createRecordWithAllTypesWithValue(numRecords + 9);
+        assertEquals(last, t1.lookupKey(tableName, "int", last.getValues().get(1)).next());
+        assertEquals(numRecords + 10, t1.getNumRecords(tableName));
+
+        // Duplicate keys are rejected by the index, and the rows added before
+        // the duplicate are deleted again along with their index entries.
+        Record fresh = TestUtils.createRecordWithAllTypesWithValue(numRecords + 10);
+        List<List<DataBox>> duplicates = Arrays.asList(fresh.getValues(), r.getValues());
+        try {
+            t1.bulkInsert(tableName, duplicates.iterator());
+            fail();
+        } catch (DatabaseException e) {
+            // Expected.
+        }
+        assertEquals(numRecords + 10, t1.getNumRecords(tableName));
+        assertFalse(t1.contains(tableName, "int", fresh.getValues().get(1)));
+        assertEquals(r, t1.lookupKey(tableName, "int", r.getValues().get(1)).next());
+        t1.end();
+    }
+
+    @Test
+    public void testBulkInsertBatches() throws DatabaseException {
+        Schema s = TestUtils.createSchemaWithAllTypes();
+        String tableName = "testTable1";
+
+        db.setBulkInsertBatchPages(1);
+        Database.Transaction t1 = db.beginTransaction();
+        t1.createTableWithIndices(s, tableName, Arrays.asList("int"));
+        int recordsPerPage = t1.getNumEntriesPerPage(tableName);
+        // Enough entries for the leaves of a bulk loaded index to fill two and
+        // spill into a third, where leaves that fill up split would take two.
+        int d = BPlusTree.maxOrder(Page.pageSize, Type.intType());
+        int leafSize = (int) Math.ceil(2 * d * Database.BULK_INSERT_INDEX_FILL_FACTOR);
+        int numRecords = 2 * leafSize + 1;
+        int numPages = (numRecords + recordsPerPage - 1) / recordsPerPage;
+        assertTrue(numPages > 1 && numPages <= 4);
+
+        // Keys of later batches interleave with those of earlier ones.
+        List<List<DataBox>> rows = new ArrayList<>();
+        for (int i = 0; i < numRecords; i++) {
+            int key = (i % recordsPerPage) * 4 + i / recordsPerPage;
+            rows.add(TestUtils.createRecordWithAllTypesWithValue(key).getValues());
+        }
+        assertEquals(numRecords, t1.bulkInsert(tableName, rows.iterator()));
+        assertEquals(numPages, t1.getNumDataPages(tableName));
+
+        Iterator<Record> iter = t1.sortedScan(tableName, "int");
+        int prev = -1;
+        int count = 0;
+        while (iter.hasNext()) {
+            int key = iter.next().getValues().get(1).getInt();
+            assertTrue(key > prev);
+            prev = key;
+            count++;
+        }
+        assertEquals(numRecords, count);
+        for (List<DataBox> row : rows) {
+            assertTrue(t1.contains(tableName, "int", row.get(1)));
+        }
+
+        // The index was bulk loaded once from the merged batches, so its
+        // leaves are filled to the fill factor: there is a header page, three
+        // leaves, and a root.
+        assertEquals(5, t1.getNumIndexPages(tableName, "int"));
+
+        // A bad row in a later batch undoes the batches before it too.
+        List<List<DataBox>> more = new ArrayList<>();
+        for (int i = 0; i < 2 * recordsPerPage; i++) {
+            more.add(TestUtils.createRecordWithAllTypesWithValue(4 * recordsPerPage + i).getValues());
+        }
+        more.add(Arrays.asList(new IntDataBox(1)));
+        try {
+            t1.bulkInsert(tableName, more.iterator());
+            fail();
+        } catch (DatabaseException e) {
+            // Expected.
+        }
+        assertEquals(numRecords, t1.getNumRecords(tableName));
+        assertEquals(numRecords, t1.getStats(tableName).getNumRecords());
+        assertFalse(t1.contains(tableName, "int", new IntDataBox(4 * recordsPerPage)));
+
+        // Several batches of keys between those of a nonempty index are merged
+        // into its leaves.
+        List<List<DataBox>> between = new ArrayList<>();
+        for (int i = 1; i < recordsPerPage; i++) {
+            between.add(TestUtils.createRecordWithAllTypesWithValue(4 * i + 3).getValues());
+        }
+        for (int i = 0; i < recordsPerPage; i++) {
+            between.add(TestUtils.createRecordWithAllTypesWithValue(4 * recordsPerPage + i).getValues());
+        }
+        assertEquals(between.size(), t1.bulkInsert(tableName, between.iterator()));
+        for (List<DataBox> row : between) {
+            assertTrue(t1.contains(tableName, "int", row.get(1)));
+        }
+        iter = t1.sortedScan(tableName, "int");
+        prev = -1;
+        count = 0;
+        while (iter.hasNext()) {
+            int key = iter.next().getValues().get(1).getInt();
+            assertTrue(key > prev);
+            prev = key;
+            count++;
+        }
+        assertEquals(numRecords + between.size(), count);
+        t1.end();
+    }
+
+    @Test
+    public void testCompactTable() throws DatabaseException {
+        Schema s = TestUtils.createSchemaWithAllTypes();
+        String tableName = "testTable1";
+
+        Database.Transaction t1 = db.beginTransaction();
+        t1.createTableWithIndices(s, tableName, Arrays.asList("int"));
+        int recordsPerPage = t1.getNumEntriesPerPage(tableName);
+        List<RecordId> rids = new ArrayList<>();
+        for (int i = 0; i < 6 * recordsPerPage; i++) {
+            Record r = TestUtils.createRecordWithAllTypesWithValue(i);
+            rids.add(t1.addRecord(tableName, r.getValues()));
+        }
+
+        // Leave the first page three quarters full, and the others a fifth full.
+        Set<Record> expected = new HashSet<>();
+        for (int i = 0; i < rids.size(); i++) {
+            boolean keep = i < recordsPerPage ? i % 4 != 0 : i % 5 == 0;
+            if (keep) {
+                expected.add(TestUtils.createRecordWithAllTypesWithValue(i));
+            } else {
+                t1.deleteRecord(tableName, rids.get(i));
+            }
+        }
+        t1.end();
+
+        // One page per batch...
+        Database.Transaction t2 = db.beginTransaction();
+        assertEquals(1, t2.compactTable(tableName, 1));
+        assertEquals(5, t2.getNumDataPages(tableName));
+        t2.end();
+
+        // ...until the sparse pages are gone.
+        Database.Transaction t3 = db.beginTransaction();
+        int numFreed = t3.compactTable(tableName, 100);
+        assertTrue(numFreed >= 3);
+        assertEquals(5 - numFreed, t3.getNumDataPages(tableName));
+        assertEquals(0, t3.compactTable(tableName, 100));
+        assertEquals(expected.size(), t3.getNumRecords(tableName));
+
+        Set<Record> actual = new HashSet<>();
+        Iterator<Record> iter = t3.getRecordIterator(tableName);
+        while (iter.hasNext()) {
+            actual.add(iter.next());
+        }
+        assertEquals(expected, actual);
+
+        // The index points at the moved records.
+        for (Record r : expected) {
+            assertEquals(r, t3.lookupKey(tableName, "int", r.getValues().get(1)).next());
+        }
+        t3.end();
+    }
+
+    @Test
+    public void testConcurrentRecordAccess() throws Exception {
+        Schema s = TestUtils.createSchemaWithAllTypes();
+        String tableName = "testTable1";
+        int numThreads = 4;
+        int numRecords = 500;
+
+        Database.Transaction t1 = db.beginTransaction();
+        t1.createTable(s, tableName);
+        t1.end();
+
+        // Each thread adds its own records and reads them back, mostly on pages
+        // that the other threads are writing too.
+        List<List<RecordId>> rids = new ArrayList<>();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            int id = i;
+            List<RecordId> threadRids = new ArrayList<>();
+            rids.add(threadRids);
+            threads[i] = new Thread(() -> {
+                try {
+                    Database.Transaction t = db.beginTransaction();
+                    for (int j = 0; j < numRecords; j++) {
+                        Record r = TestUtils.createRecordWithAllTypesWithValue(id * numRecords + j);
+                        RecordId rid = t.addRecord(tableName, r.getValues());
+                        assertEquals(r, t.getRecord(tableName, rid));
+                        threadRids.add(rid);
+                    }
+                    t.end();
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+
+        t1 = db.beginTransaction();
+        assertEquals(numThreads * numRecords, t1.getNumRecords(tableName));
+        Set<RecordId> seen = new HashSet<>();
+        for (int i = 0; i < numThreads; i++) {
+            for (int j = 0; j < numRecords; j++) {
+                RecordId rid = rids.get(i).get(j);
+                assertTrue(seen.add(rid));
+                assertEquals(TestUtils.createRecordWithAllTypesWithValue(i * numRecords + j),
+                             t1.getRecord(tableName, rid));
+            }
+        }
+        t1.end();
+    }
 }
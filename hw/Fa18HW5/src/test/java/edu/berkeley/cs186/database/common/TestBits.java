@@ -3,6 +3,8 @@ package edu.berkeley.cs186.database.common;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import java.util.Arrays;
+
 import org.junit.Test;
 
 public class TestBits {
@@ -42,6 +44,17 @@ public class TestBits {
         assertEquals(Bits.Bit.ONE, Bits.getBit(bytes, 15));
     }
 
+    @Test
+    public void testGetBitOnBuffer() {
+        byte[] bytes = {0b00000000, 0b01101011, 0b01001101};
+        Buffer buf = ByteBuffer.wrap(bytes).position(1);
+        byte[] expected = {0b01101011, 0b01001101};
+        for (int i = 0; i < 16; ++i) {
+            assertEquals(Bits.getBit(expected, i), Bits.getBit(buf, i));
+        }
+        assertEquals(1, buf.position());
+    }
+
     @Test
     public void testSetBitOnByte() {
         assertEquals((byte) 0b10000000, Bits.setBit((byte) 0b00000000, 0, Bits.Bit.ONE));
@@ -137,4 +150,74 @@ public class TestBits {
             assertEquals(1, buf.position());
         }
     }
+
+    @Test
+    public void testCountBits() {
+        // 20 bytes: two full words and a partial one, after a 1 byte offset.
+        byte[] bytes = new byte[21];
+        bytes[0] = (byte) 0b11111111;
+        Buffer buf = ByteBuffer.wrap(bytes).position(1);
+        assertEquals(0, Bits.countBits(buf, 160));
+
+        int[] ones = {0, 7, 63, 64, 100, 127, 128, 150, 159};
+        for (int i : ones) {
+            Bits.setBit(buf, i, Bits.Bit.ONE);
+        }
+        assertEquals(ones.length, Bits.countBits(buf, 160));
+        assertEquals(6, Bits.countBits(buf, 128));
+        assertEquals(3, Bits.countBits(buf, 64));
+        assertEquals(2, Bits.countBits(buf, 63));
+        assertEquals(8, Bits.countBits(buf, 151));
+        assertEquals(1, buf.position());
+    }
+
+    @Test
+    public void testNextSetBit() {
+        byte[] bytes = new byte[21];
+        Buffer buf = ByteBuffer.wrap(bytes).position(1);
+        assertEquals(-1, Bits.nextSetBit(buf, 0, 160));
+
+        int[] ones = {2, 63, 64, 130, 159};
+        for (int i : ones) {
+            Bits.setBit(buf, i, Bits.Bit.ONE);
+        }
+        assertEquals(2, Bits.nextSetBit(buf, 0, 160));
+        assertEquals(2, Bits.nextSetBit(buf, 2, 160));
+        assertEquals(63, Bits.nextSetBit(buf, 3, 160));
+        assertEquals(64, Bits.nextSetBit(buf, 64, 160));
+        assertEquals(130, Bits.nextSetBit(buf, 65, 160));
+        assertEquals(159, Bits.nextSetBit(buf, 131, 160));
+        assertEquals(-1, Bits.nextSetBit(buf, 131, 159));
+        assertEquals(-1, Bits.nextSetBit(buf, 160, 160));
+        assertEquals(1, buf.position());
+
+        buf = ByteBuffer.wrap(new byte[] {0b00100000, 0b00000001});
+        assertEquals(2, Bits.nextSetBit(buf, 0, 16));
+        assertEquals(15, Bits.nextSetBit(buf, 3, 16));
+        assertEquals(-1, Bits.nextSetBit(buf, 3, 15));
+    }
+
+    @Test
+    public void testNextClearBit() {
+        byte[] bytes = new byte[21];
+        Arrays.fill(bytes, (byte) 0b11111111);
+        Buffer buf = ByteBuffer.wrap(bytes).position(1);
+        assertEquals(-1, Bits.nextClearBit(buf, 0, 160));
+
+        int[] zeros = {5, 64, 140};
+        for (int i : zeros) {
+            Bits.setBit(buf, i, Bits.Bit.ZERO);
+        }
+        assertEquals(5, Bits.nextClearBit(buf, 0, 160));
+        assertEquals(64, Bits.nextClearBit(buf, 6, 160));
+        assertEquals(140, Bits.nextClearBit(buf, 65, 160));
+        assertEquals(-1, Bits.nextClearBit(buf, 141, 160));
+        assertEquals(-1, Bits.nextClearBit(buf, 65, 140));
+        assertEquals(1, buf.position());
+
+        // Bits past numBits are not reported as clear.
+        buf = ByteBuffer.wrap(new byte[] {(byte) 0b11111111, (byte) 0b11110000});
+        assertEquals(-1, Bits.nextClearBit(buf, 0, 12));
+        assertEquals(12, Bits.nextClearBit(buf, 0, 16));
+    }
 }
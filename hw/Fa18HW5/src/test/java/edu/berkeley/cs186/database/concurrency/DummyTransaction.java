@@ -51,11 +51,20 @@ public class DummyTransaction implements BaseTransaction {
         throw new UnsupportedOperationException("dummy transaction cannot do this");
     }
 
+    public void createTable(Schema s, String tableName, int pageSize) throws DatabaseException {
+        throw new UnsupportedOperationException("dummy transaction cannot do this");
+    }
+
     public void createTableWithIndices(Schema s, String tableName,
                                        List<String> indexColumns) throws DatabaseException {
         throw new UnsupportedOperationException("dummy transaction cannot do this");
     }
 
+    public void createTableWithIndices(Schema s, String tableName, List<String> indexColumns,
+                                       int pageSize) throws DatabaseException {
+        throw new UnsupportedOperationException("dummy transaction cannot do this");
+    }
+
     public boolean deleteTable(String tableName) {
         throw new UnsupportedOperationException("dummy transaction cannot do this");
     }
@@ -106,6 +115,15 @@ public class DummyTransaction implements BaseTransaction {
         throw new UnsupportedOperationException("dummy transaction cannot do this");
     }
 
+    public long bulkInsert(String tableName,
+                           Iterator<List<DataBox>> rows) throws DatabaseException {
+        throw new UnsupportedOperationException("dummy transaction cannot do this");
+    }
+
+    public int compactTable(String tableName, int maxPages) throws DatabaseException {
+        throw new UnsupportedOperationException("dummy transaction cannot do this");
+    }
+
     public int getNumMemoryPages() throws DatabaseException {
         throw new UnsupportedOperationException("dummy transaction cannot do this");
     }
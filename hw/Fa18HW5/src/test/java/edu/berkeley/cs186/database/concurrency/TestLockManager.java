@@ -12,7 +12,9 @@ import org.junit.rules.TestRule;
 import org.junit.rules.Timeout;
 import sun.rmi.runtime.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import static org.junit.Assert.*;
@@ -303,6 +305,36 @@ public class TestLockManager {
         }
     }
 
+    @Test
+    public void testConcurrentAcquireRelease() throws Exception {
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        Thread[] threads = new Thread[transactions.length];
+        for (int i = 0; i < threads.length; ++i) {
+            BaseTransaction t = new DummyTransaction(lockman, i);
+            ResourceName table = tables[i];
+            threads[i] = new Thread(() -> {
+                try {
+                    // Every thread shares the database lock and has a table of its own.
+                    for (int j = 0; j < 500; ++j) {
+                        lockman.acquire(t, dbResource, LockType.IS);
+                        lockman.acquire(t, table, LockType.S);
+                        lockman.promote(t, table, LockType.X);
+                        lockman.release(t, table);
+                        lockman.release(t, dbResource);
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(Collections.emptyList(), lockman.getLocks(dbResource));
+    }
+
     @Test
     public void testReleaseUnheldLock() {
         BaseTransaction t1 = transactions[0];
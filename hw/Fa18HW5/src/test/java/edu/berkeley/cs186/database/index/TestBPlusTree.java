@@ -1,5 +1,6 @@
 package edu.berkeley.cs186.database.index;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
@@ -391,6 +392,76 @@ public class TestBPlusTree {
         }
     }
 
+    @Test
+    public void testSimpleMerge() throws BPlusTreeException, IOException {
+        BPlusTree tree = getBPlusTree(Type.intType(), 1);
+        tree.put(null, new IntDataBox(1), new RecordId(1, (short) 1));
+        tree.put(null, new IntDataBox(9), new RecordId(9, (short) 9));
+
+        // The leaf takes the three pairs at once and splits the five it then
+        // has evenly over three leaves of at most 2d pairs each.
+        //
+        //        (   3       7   )
+        //       /        |        \
+        //   (1 _)      (3 5)      (7 9)
+        List<Pair<DataBox, RecordId>> data = new ArrayList<>();
+        for (int i = 3; i <= 7; i += 2) {
+            data.add(new Pair<>(new IntDataBox(i), new RecordId(i, (short) i)));
+        }
+        tree.merge(null, data.iterator());
+        String leaf0 = "((1 (1 1)))";
+        String leaf1 = "((3 (3 3)) (5 (5 5)))";
+        String leaf2 = "((7 (7 7)) (9 (9 9)))";
+        assertEquals(String.format("(%s 3 %s 7 %s)", leaf0, leaf1, leaf2), tree.toSexp(null));
+    }
+
+    @Test
+    public void testMerge() throws BPlusTreeException, IOException {
+        for (int d = 1; d < 5; ++d) {
+            BPlusTree tree = getBPlusTree(Type.intType(), d);
+            List<RecordId> sortedRids = new ArrayList<>();
+            for (int i = 0; i < 1000; ++i) {
+                sortedRids.add(new RecordId(i, (short) i));
+                if (i % 5 == 0) {
+                    tree.put(null, new IntDataBox(i), new RecordId(i, (short) i));
+                }
+            }
+
+            // Merge in the other keys, in a few sorted batches.
+            for (int r = 1; r < 5; ++r) {
+                List<Pair<DataBox, RecordId>> data = new ArrayList<>();
+                for (int i = r; i < 1000; i += 5) {
+                    data.add(new Pair<>(new IntDataBox(i), new RecordId(i, (short) i)));
+                }
+                tree.merge(null, data.iterator());
+            }
+            for (int i = 0; i < 1000; ++i) {
+                assertEquals(Optional.of(sortedRids.get(i)), tree.get(null, new IntDataBox(i)));
+            }
+            assertEquals(sortedRids, iteratorToList(tree.scanAll(null)));
+
+            // Duplicates are skipped, and reported once the rest is merged.
+            List<Pair<DataBox, RecordId>> data = new ArrayList<>();
+            data.add(new Pair<>(new IntDataBox(-1), new RecordId(1000, (short) 0)));
+            data.add(new Pair<>(new IntDataBox(7), new RecordId(1000, (short) 1)));
+            data.add(new Pair<>(new IntDataBox(1000), new RecordId(1000, (short) 2)));
+            try {
+                tree.merge(null, data.iterator());
+                fail();
+            } catch (BPlusTreeException e) {
+                // Expected.
+            }
+            assertEquals(Optional.of(new RecordId(7, (short) 7)), tree.get(null, new IntDataBox(7)));
+            assertEquals(Optional.of(new RecordId(1000, (short) 0)), tree.get(null, new IntDataBox(-1)));
+            assertEquals(Optional.of(new RecordId(1000, (short) 2)), tree.get(null, new IntDataBox(1000)));
+            assertEquals(1002, iteratorToList(tree.scanAll(null)).size());
+
+            // The tree reads back from disk.
+            BPlusTree fromDisk = new BPlusTree(file.getAbsolutePath(), new DummyLockContext(), null);
+            assertEquals(1002, iteratorToList(fromDisk.scanAll(null)).size());
+        }
+    }
+
     @Test
     public void testMaxOrder() {
         // Note that this white box test depend critically on the implementation
@@ -0,0 +1,329 @@
+package edu.berkeley.cs186.database.io;
+
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.berkeley.cs186.database.concurrency.DummyLockContext;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.io.File;
+import java.util.List;
+
+/**
+* Tests BufferPool.java
+*/
+public class TestBufferPool {
+    private final String fName = "TestBufferPool.temp";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private Page newPage(int pageNum) throws IOException {
+        return newPage(pageNum, false);
+    }
+
+    private Page newPage(int pageNum, boolean durable) throws IOException {
+        File tempFile = new File(tempFolder.getRoot(), fName);
+        FileChannel fc = new RandomAccessFile(tempFile, "rw").getChannel();
+        return new Page(fc, pageNum, pageNum, durable);
+    }
+
+    @Test
+    public void TestBufferPoolCapacity() throws IOException {
+        BufferPool pool = new BufferPool(10, 1);
+        Page p = newPage(0);
+        for (long i = 0; i < 10; i++) {
+            assertSame(p, pool.put(i, p));
+            assertEquals(i + 1, pool.size());
+        }
+        for (long i = 10; i < 20; i++) {
+            pool.put(i, p);
+            assertEquals(10, pool.size());
+            assertSame(p, pool.get(i));
+        }
+    }
+
+    @Test
+    public void TestBufferPoolClockKeepsReferenced() throws IOException {
+        BufferPool pool = new BufferPool(3, 1);
+        Page p = newPage(0);
+        pool.put(0L, p);
+        pool.put(1L, p);
+        pool.put(2L, p);
+
+        // The first insert sweeps every reference bit and evicts 0; after that, re-referencing 1
+        // protects it from the next sweep, so 2 goes next.
+        pool.put(3L, p);
+        assertNull(pool.get(0L));
+        assertNotNull(pool.get(1L));
+        pool.put(4L, p);
+        assertNotNull(pool.get(1L));
+        assertNull(pool.get(2L));
+    }
+
+    @Test
+    public void TestBufferPoolPutKeepsResident() throws IOException {
+        BufferPool pool = new BufferPool(4);
+        Page p0 = newPage(0);
+        Page p1 = newPage(0);
+        assertSame(p0, pool.put(7L, p0));
+        assertSame(p0, pool.put(7L, p1));
+        assertSame(p0, pool.remove(7L));
+        assertNull(pool.get(7L));
+    }
+
+    @Test
+    public void TestBufferPoolSharded() throws IOException {
+        BufferPool pool = new BufferPool(1024, 16);
+        Page p = newPage(0);
+        for (long i = 0; i < 1024; i++) {
+            pool.put(i, p);
+        }
+        // Keys spread across shards, so no shard overflows before the pool is full.
+        assertTrue(pool.size() > 900);
+        assertTrue(pool.size() <= 1024);
+
+        int size = pool.size();
+        List<Page> removed = pool.removeIf(l -> l % 2 == 0);
+        assertFalse(removed.isEmpty());
+        assertEquals(size - removed.size(), pool.size());
+        pool.clear();
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void TestBufferPoolSkipsPinned() throws IOException {
+        BufferPool pool = new BufferPool(2, 1);
+        Page p0 = newPage(0).pin();
+        Page p1 = newPage(1);
+        pool.put(0L, p0);
+        pool.put(1L, p1);
+
+        pool.put(2L, newPage(2));
+        assertSame(p0, pool.get(0L));
+        assertNull(pool.get(1L));
+    }
+
+    @Test
+    public void TestBufferPoolGetPinned() throws IOException {
+        BufferPool pool = new BufferPool(2, 1);
+        Page p0 = newPage(0);
+        assertSame(p0, pool.putPinned(0L, p0));
+        assertTrue(p0.isPinned());
+        p0.unpin();
+
+        // A page returned by getPinned stays resident until it is unpinned.
+        assertSame(p0, pool.getPinned(0L));
+        pool.put(1L, newPage(1));
+        pool.put(2L, newPage(2));
+        assertSame(p0, pool.get(0L));
+        p0.unpin();
+        assertFalse(p0.isPinned());
+        assertNull(pool.getPinned(3L));
+    }
+
+    @Test
+    public void TestBufferPoolAllPinnedOverflows() throws IOException {
+        BufferPool pool = new BufferPool(2, 1);
+        Page p0 = newPage(0).pin();
+        Page p1 = newPage(1).pin();
+        pool.put(0L, p0);
+        pool.put(1L, p1);
+
+        // With every frame pinned the pool grows instead of failing...
+        pool.put(2L, newPage(2));
+        assertEquals(3, pool.size());
+
+        // ...and shrinks back to capacity once the pins are released.
+        p0.unpin();
+        p1.unpin();
+        pool.put(3L, newPage(3));
+        assertEquals(2, pool.size());
+        assertNotNull(pool.get(3L));
+    }
+
+    @Test
+    public void TestBufferPoolRing() throws IOException {
+        BufferPool pool = new BufferPool(4, 1);
+        Page p = newPage(0);
+        for (long i = 0; i < 4; i++) {
+            pool.put(i, p);
+        }
+
+        // A scan through a ring of two pages does not evict anything from the main pool.
+        BufferPool.Ring ring = pool.newRing(2);
+        Page pinned = newPage(10).pin();
+        assertSame(pinned, ring.put(10L, pinned));
+        for (long i = 11; i < 20; i++) {
+            ring.put(i, newPage((int) i));
+        }
+        for (long i = 0; i < 4; i++) {
+            assertSame(p, pool.get(i));
+        }
+        assertNull(pool.get(11L));
+        assertNotNull(pool.getForScan(19L));
+        // The pinned page stays in the ring, in one of its two slots.
+        assertSame(pinned, pool.get(10L));
+        assertEquals(2, ring.size());
+        assertEquals(6, pool.size());
+
+        // A page that is already resident stays where it is.
+        assertSame(p, ring.put(2L, newPage(2)));
+        pinned.unpin();
+        ring.put(20L, newPage(20));
+        assertNull(pool.get(10L));
+        assertEquals(6, pool.size());
+    }
+
+    @Test
+    public void TestBufferPoolMemoryBudget() {
+        BufferPool pool = BufferPool.withMemoryBudget(4 * Page.pageSize + 100);
+        assertEquals(4, pool.getCapacity());
+        assertEquals(4 * Page.pageSize, pool.getMemoryBudget());
+
+        ByteBuffer b0 = pool.allocateBuffer(Page.pageSize);
+        ByteBuffer b1 = pool.allocateBuffer(2 * Page.pageSize);
+        ByteBuffer b2 = pool.allocateBuffer(Page.pageSize);
+        assertEquals(2 * Page.pageSize, b1.capacity());
+        assertEquals(4 * Page.pageSize, pool.getMemoryUsed());
+        b1.putInt(2 * Page.pageSize - 4, 186);
+        assertEquals(0, b2.getInt(0));
+
+        // Once the arena is full, and there is no page to evict, nothing is allocated.
+        try {
+            pool.allocateBuffer(Page.pageSize);
+            fail("allocated a buffer past the budget");
+        } catch (PageException e) {
+            // expected
+        }
+        assertEquals(4 * Page.pageSize, pool.getMemoryUsed());
+        assertEquals(0, pool.getNumDirectAllocations());
+
+        // A run of two pages is only found once both of its pages are free.
+        pool.releaseBuffer(b0);
+        assertEquals(3 * Page.pageSize, pool.getMemoryUsed());
+        pool.releaseBuffer(b1);
+        ByteBuffer b3 = pool.allocateBuffer(3 * Page.pageSize);
+        assertEquals(3 * Page.pageSize, b3.capacity());
+        assertEquals(186, b3.getInt(3 * Page.pageSize - 4));
+        pool.releaseBuffer(b2);
+        pool.releaseBuffer(b3);
+        assertEquals(0, pool.getMemoryUsed());
+    }
+
+    @Test
+    public void TestBufferPoolMemoryBudgetEvicts() throws IOException {
+        File tempFile = new File(tempFolder.getRoot(), fName);
+        FileChannel fc = new RandomAccessFile(tempFile, "rw").getChannel();
+        BufferPool old = PageAllocator.getBufferPool();
+        BufferPool pool = BufferPool.withMemoryBudget(2 * Page.pageSize);
+        PageAllocator.setBufferPool(pool);
+        try {
+            PageStore store = PageStore.CHANNEL.open(fc, Page.pageSize);
+            Page[] pages = new Page[3];
+            for (int i = 0; i < pages.length; i++) {
+                pages[i] = new Page(new DummyLockContext(), store, i, i, false, new IOMetrics(null));
+                pool.put(i, pages[i]);
+            }
+
+            // The third page only fit by evicting one of the first two.
+            assertEquals(2, pool.size());
+            assertEquals(2 * Page.pageSize, pool.getMemoryUsed());
+
+            // Pinned pages are never evicted to make room.
+            Page p1 = pool.getPinned(1L);
+            Page p2 = pool.getPinned(2L);
+            try {
+                new Page(new DummyLockContext(), store, 3, 3, false, new IOMetrics(null));
+                fail("loaded a page past the budget");
+            } catch (PageException e) {
+                // expected
+            }
+            p1.unpin();
+            p2.unpin();
+            assertEquals(0, pool.getNumDirectAllocations());
+        } finally {
+            PageAllocator.setBufferPool(old);
+            fc.close();
+        }
+    }
+
+    @Test
+    public void TestBufferPoolTransferKeepsPinned() throws IOException {
+        BufferPool pool = new BufferPool(4);
+        Page p0 = newPage(0).pin();
+        Page p1 = newPage(1);
+        pool.put(0L, p0);
+        pool.put(1L, p1);
+
+        BufferPool next = new BufferPool(4);
+        pool.transferTo(next);
+        assertEquals(0, pool.size());
+        assertSame(p0, next.get(0L));
+        assertNull(next.get(1L));
+        p0.unpin();
+    }
+
+    @Test(expected = PageException.class)
+    public void TestPageUnpinWithoutPin() throws IOException {
+        newPage(0).unpin();
+    }
+
+    @Test
+    public void TestBufferPoolPrefersCleanVictims() throws IOException {
+        BufferPool pool = new BufferPool(2, 1);
+        Page dirty = newPage(0, true);
+        dirty.getBuffer(null).putInt(0, 1);
+        pool.put(0L, dirty);
+        pool.put(1L, newPage(1, true));
+
+        pool.put(2L, newPage(2, true));
+        assertSame(dirty, pool.get(0L));
+        assertNull(pool.get(1L));
+        assertTrue(dirty.isDirty());
+    }
+
+    @Test
+    public void TestBufferPoolDirtyPagesInOrder() throws IOException {
+        BufferPool pool = new BufferPool(16, 1);
+        for (int i = 7; i >= 0; i--) {
+            Page p = newPage(i, true);
+            if (i % 2 == 1) {
+                p.getBuffer(null).putInt(0, i);
+            }
+            pool.put(i, p);
+        }
+
+        List<Page> dirty = pool.getDirtyPages();
+        assertEquals(4, dirty.size());
+        for (int i = 0; i < dirty.size(); i++) {
+            assertEquals(2 * i + 1, dirty.get(i).getPageNum());
+        }
+
+        pool.flushAll();
+        assertTrue(pool.getDirtyPages().isEmpty());
+    }
+
+    @Test
+    public void TestBufferPoolFlusher() throws Exception {
+        BufferPool pool = new BufferPool(16);
+        Page p = newPage(0, true);
+        p.getBuffer(null).putInt(0, 1);
+        pool.put(0L, p);
+
+        pool.startFlusher(10);
+        try {
+            for (int i = 0; i < 500 && p.isDirty(); i++) {
+                Thread.sleep(10);
+            }
+        } finally {
+            pool.stopFlusher();
+        }
+        assertFalse(p.isDirty());
+    }
+}
@@ -0,0 +1,122 @@
+package edu.berkeley.cs186.database.io;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+* Tests FreeSpaceMap.java
+*/
+public class TestFreeSpaceMap {
+    @Test
+    public void TestFreeSpaceMapAllocateInOrder() {
+        FreeSpaceMap map = new FreeSpaceMap(4, 128);
+        for (int i = 0; i < 300; i++) {
+            assertEquals(i, map.allocate());
+            assertTrue(map.isAllocated(i));
+        }
+        assertEquals(128, map.getCount(0));
+        assertEquals(128, map.getCount(1));
+        assertEquals(44, map.getCount(2));
+        assertFalse(map.isAllocated(300));
+    }
+
+    @Test
+    public void TestFreeSpaceMapReusesLowestFree() {
+        FreeSpaceMap map = new FreeSpaceMap(4, 128);
+        for (int i = 0; i < 300; i++) {
+            map.allocate();
+        }
+        map.markFree(200);
+        map.markFree(70);
+        map.markFree(5);
+        assertEquals(5, map.allocate());
+        assertEquals(70, map.allocate());
+        assertEquals(200, map.allocate());
+        assertEquals(300, map.allocate());
+    }
+
+    @Test
+    public void TestFreeSpaceMapLoad() {
+        FreeSpaceMap map = new FreeSpaceMap(2, 128);
+        byte[] header = new byte[128];
+        for (int i = 0; i < 128; i++) {
+            header[i] = (byte) (i == 64 ? 0 : 1);
+        }
+        map.load(0, header);
+        assertEquals(127, map.getCount(0));
+        assertEquals(64, map.allocate());
+        assertEquals(128, map.allocate());
+    }
+
+    @Test
+    public void TestFreeSpaceMapFull() {
+        FreeSpaceMap map = new FreeSpaceMap(1, 64);
+        for (int i = 0; i < 64; i++) {
+            assertEquals(i, map.allocate());
+        }
+        assertEquals(-1, map.allocate());
+        map.markFree(10);
+        assertEquals(10, map.allocate());
+    }
+
+    @Test
+    public void TestFreeSpaceMapNextAllocated() {
+        FreeSpaceMap map = new FreeSpaceMap(8, 128);
+        assertEquals(-1, map.nextAllocated(0));
+
+        map.markAllocated(3);
+        map.markAllocated(64);
+        map.markAllocated(127);
+        map.markAllocated(5 * 128 + 70);
+        assertEquals(3, map.nextAllocated(0));
+        assertEquals(3, map.nextAllocated(3));
+        assertEquals(64, map.nextAllocated(4));
+        assertEquals(127, map.nextAllocated(65));
+        // Headers 1 through 4 are empty and skipped.
+        assertEquals(5 * 128 + 70, map.nextAllocated(128));
+        assertEquals(-1, map.nextAllocated(5 * 128 + 71));
+
+        map.markFree(64);
+        assertEquals(127, map.nextAllocated(4));
+    }
+
+    @Test
+    public void TestFreeSpaceMapLastAllocated() {
+        FreeSpaceMap map = new FreeSpaceMap(8, 128);
+        assertEquals(-1, map.lastAllocated());
+
+        map.markAllocated(3);
+        map.markAllocated(63);
+        assertEquals(63, map.lastAllocated());
+        map.markAllocated(5 * 128 + 70);
+        assertEquals(5 * 128 + 70, map.lastAllocated());
+
+        map.markFree(5 * 128 + 70);
+        assertEquals(63, map.lastAllocated());
+        map.markFree(63);
+        assertEquals(3, map.lastAllocated());
+    }
+
+    @Test
+    public void TestFreeSpaceMapReserveRun() {
+        FreeSpaceMap map = new FreeSpaceMap(2, 128);
+        map.markAllocated(0);
+        map.markAllocated(3);
+        // The first run of four free pages starts after page 3.
+        assertEquals(4, map.reserveRun(4));
+        assertEquals(1, map.allocate());
+        assertEquals(2, map.allocate());
+        assertEquals(8, map.allocate());
+
+        assertFalse(map.isAllocated(5));
+        assertTrue(map.allocateReserved(5));
+        assertTrue(map.isAllocated(5));
+        assertFalse(map.allocateReserved(5));
+        assertFalse(map.allocateReserved(9));
+
+        // Pages 9 through 127 are free, but runs do not span headers.
+        assertEquals(128, map.reserveRun(120));
+        assertEquals(9, map.reserveRun(8));
+        assertEquals(-1, map.reserveRun(112));
+    }
+}
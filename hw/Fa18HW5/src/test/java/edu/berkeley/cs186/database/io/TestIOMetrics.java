@@ -0,0 +1,99 @@
+package edu.berkeley.cs186.database.io;
+
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import edu.berkeley.cs186.database.concurrency.DummyLockContext;
+
+public class TestIOMetrics {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void TestIOMetricsCounts() throws IOException, JMException {
+        BufferPool old = PageAllocator.getBufferPool();
+        PageAllocator.setBufferPool(new BufferPool(64, 1));
+        try {
+            // Not durable, so that nothing is forced.
+            PageAllocator pA = new PageAllocator(new DummyLockContext(),
+                                                 tempFolder.newFile("metrics.temp").getAbsolutePath(), true,
+                                                 PageAllocator.Durability.NONE, PageStore.CHANNEL, null);
+            for (int i = 0; i < 10; i++) {
+                pA.allocPage(null);
+            }
+            IOMetrics metrics = pA.getMetrics();
+            metrics.reset();
+            long globalMisses = IOMetrics.global().getMisses();
+
+            // Every page is resident.
+            for (int i = 0; i < 10; i++) {
+                pA.fetchPage(null, i);
+            }
+            pA.fetchPage(null, 3).getBuffer(null).putInt(0, 186);
+            assertEquals(11, metrics.getHits());
+            assertEquals(0, metrics.getMisses());
+
+            // Replacing the pool writes back the dirty pages without evicting them...
+            PageAllocator.setBufferPool(new BufferPool(2, 1));
+            assertEquals(10, metrics.getWriteBacks());
+            assertEquals(10 * Page.pageSize, metrics.getBytesWritten());
+            assertEquals(10, metrics.getFlushLatency().getCount());
+            assertEquals(0, metrics.getForces());
+            assertEquals(0, metrics.getEvictions());
+
+            // ...and every page misses the new, smaller one.
+            for (int i = 0; i < 10; i++) {
+                pA.fetchPage(null, i);
+            }
+            assertEquals(186, pA.fetchPage(null, 3).getBuffer(null).getInt(0));
+            assertEquals(11, metrics.getMisses());
+            assertEquals(11 * Page.pageSize, metrics.getBytesRead());
+            assertEquals(11, metrics.getFetchLatency().getCount());
+            assertEquals(9, metrics.getEvictions());
+            assertEquals(0.5, metrics.getHitRatio(), 0.0);
+            assertTrue(IOMetrics.global().getMisses() - globalMisses >= 11);
+
+            // The same counters are visible over JMX while the allocator is open.
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = metrics.getObjectName();
+            assertNotNull(name);
+            assertEquals(11L, server.getAttribute(name, "Misses"));
+            assertTrue(server.isRegistered(IOMetrics.global().getObjectName()));
+
+            pA.close();
+            assertNull(metrics.getObjectName());
+            assertFalse(server.isRegistered(name));
+        } finally {
+            PageAllocator.setBufferPool(old);
+        }
+    }
+
+    @Test
+    public void TestLatencyHistogram() {
+        IOMetrics.LatencyHistogram histogram = new IOMetrics.LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(0.5));
+
+        histogram.record(0);
+        for (int i = 0; i < 98; i++) {
+            histogram.record(1000);
+        }
+        histogram.record(1 << 20);
+        assertEquals(100, histogram.getCount());
+        assertEquals(1, histogram.getBuckets()[0]);
+        assertEquals(98, histogram.getBuckets()[9]);
+        assertEquals(1, histogram.getBuckets()[20]);
+
+        assertEquals(2, histogram.getPercentile(0.0));
+        assertEquals(1024, histogram.getPercentile(0.5));
+        assertEquals(1024, histogram.getPercentile(0.99));
+        assertEquals(1 << 21, histogram.getPercentile(1.0));
+    }
+}
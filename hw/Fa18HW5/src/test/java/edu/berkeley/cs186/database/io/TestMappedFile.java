@@ -0,0 +1,67 @@
+package edu.berkeley.cs186.database.io;
+
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.io.File;
+
+/**
+* Tests MappedFile.java
+*/
+public class TestMappedFile {
+    private final String fName = "TestMappedFile.temp";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void TestMappedFileBlocksShareSegment() throws IOException {
+        File tempFile = tempFolder.newFile(fName);
+        FileChannel fc = new RandomAccessFile(tempFile, "rw").getChannel();
+        MappedFile file = new MappedFile(fc, Page.pageSize, 4 * Page.pageSize);
+
+        ByteBuffer b1 = file.load(1);
+        ByteBuffer b6 = file.load(6);
+        assertEquals(Page.pageSize, b1.capacity());
+        b1.putInt(0, 186);
+        b6.putInt(Page.pageSize - 4, 42);
+
+        // A second slice of the same block sees the writes through the shared mapping.
+        assertEquals(186, file.load(1).getInt(0));
+        ByteBuffer onDisk = ByteBuffer.allocate(4);
+        fc.read(onDisk, 7L * Page.pageSize - 4);
+        assertEquals(42, onDisk.getInt(0));
+
+        file.force(6);
+        file.close();
+        fc.close();
+    }
+
+    @Test
+    public void TestMappedFileCloseTrims() throws IOException {
+        File tempFile = tempFolder.newFile(fName);
+        FileChannel fc = new RandomAccessFile(tempFile, "rw").getChannel();
+        MappedFile file = new MappedFile(fc, Page.pageSize, 16 * Page.pageSize);
+
+        file.load(0);
+        file.load(2);
+        assertEquals(16 * Page.pageSize, fc.size());
+        file.close();
+        assertEquals(3 * Page.pageSize, fc.size());
+        fc.close();
+
+        // The file is never trimmed below its size at open.
+        fc = new RandomAccessFile(tempFile, "rw").getChannel();
+        file = new MappedFile(fc, Page.pageSize, 16 * Page.pageSize);
+        file.load(1);
+        file.close();
+        assertEquals(3 * Page.pageSize, fc.size());
+        fc.close();
+    }
+}
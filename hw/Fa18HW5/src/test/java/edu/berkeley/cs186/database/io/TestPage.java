@@ -5,6 +5,11 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import edu.berkeley.cs186.database.common.Buffer;
+import edu.berkeley.cs186.database.concurrency.DummyLockContext;
+import edu.berkeley.cs186.database.concurrency.LockType;
+
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.io.RandomAccessFile;
 import java.io.FileNotFoundException;
@@ -89,6 +94,54 @@ public class TestPage {
         fc.close();
     }
 
+    @Test
+    public void TestPageDirtyBit() throws IOException, FileNotFoundException {
+        File tempFile = tempFolder.newFile(fName);
+        FileChannel fc = new RandomAccessFile(tempFile, "rw").getChannel();
+        Page p = new Page(fc, 0, 0);
+        assertFalse(p.isDirty());
+        p.readBytes(null);
+        assertFalse(p.isDirty());
+        p.getBuffer(null).putInt(0, 42);
+        assertTrue(p.isDirty());
+        p.flush();
+        assertFalse(p.isDirty());
+
+        Page nonDurable = new Page(fc, 0, 0, false);
+        nonDurable.getBuffer(null).putInt(0, 42);
+        assertFalse(nonDurable.isDirty());
+        fc.close();
+    }
+
+    @Test
+    public void TestPageFailedFlushStaysDirty() throws IOException, FileNotFoundException {
+        File tempFile = tempFolder.newFile(fName);
+        FileChannel fc = new RandomAccessFile(tempFile, "rw").getChannel();
+        FailingStore store = new FailingStore(PageStore.CHANNEL.open(fc, Page.pageSize));
+        Page p = new Page(new DummyLockContext(), store, 0, 0, false, new IOMetrics(null));
+        p.getBuffer(null).putInt(0, 42);
+
+        store.failWrites = true;
+        try {
+            p.flush();
+            fail("flush should have failed");
+        } catch (PageException e) {
+            // expected
+        }
+        assertTrue(p.isDirty());
+
+        store.failWrites = false;
+        p.flush();
+        assertFalse(p.isDirty());
+
+        // Once released, the page has nothing left to write back.
+        p.getBuffer(null).putInt(0, 43);
+        p.evict();
+        p.flush();
+        store.close();
+        fc.close();
+    }
+
     @Test
     public void TestPageWriteWipe() throws IOException, FileNotFoundException {
         File tempFile = tempFolder.newFile(fName);
@@ -142,4 +195,103 @@ public class TestPage {
         fc.close();
     }
 
+    @Test
+    public void TestPageLockedBuffer() throws IOException, FileNotFoundException {
+        File tempFile = tempFolder.newFile(fName);
+        FileChannel fc = new RandomAccessFile(tempFile, "rw").getChannel();
+        Page p = new Page(fc, 0, 0);
+
+        Buffer locked = p.getBuffer(null, LockType.X);
+        locked.position(10).putInt(186).putLong(42L).put((byte) 7);
+        locked.putShort(Page.pageSize - 2, (short) -3);
+        assertTrue(p.isDirty());
+
+        // Writes through the locked buffer are seen by the copying buffer and vice versa.
+        Buffer copying = p.getBuffer(null);
+        assertEquals(186, copying.getInt(10));
+        assertEquals(42L, copying.getLong(14));
+        assertEquals((byte) 7, copying.get(22));
+        assertEquals((short) -3, copying.getShort(Page.pageSize - 2));
+        copying.putFloat(100, 1.5f);
+
+        Buffer slice = p.getBuffer(null, LockType.S).position(100).slice();
+        assertEquals(1.5f, slice.getFloat(), 0.0f);
+
+        boolean thrown = false;
+        try {
+            p.getBuffer(null, LockType.S).getInt(Page.pageSize - 3);
+        } catch (PageException e) {
+            thrown = true;
+        }
+        assertTrue(thrown);
+        fc.close();
+    }
+
+    @Test
+    public void TestPageLatch() throws IOException, FileNotFoundException {
+        File tempFile = tempFolder.newFile(fName);
+        FileChannel fc = new RandomAccessFile(tempFile, "rw").getChannel();
+        Page p = new Page(fc, 0, 0);
+
+        // Shared latches neither block each other nor invalidate optimistic reads.
+        long optimistic = p.optimisticLatch();
+        long s1 = p.latchShared();
+        long s2 = p.latchShared();
+        assertTrue(p.validateLatch(optimistic));
+        p.unlatch(s1);
+        p.unlatch(s2);
+
+        // An exclusive latch does.
+        long x = p.latchExclusive();
+        assertEquals(0, p.optimisticLatch());
+        p.unlatch(x);
+        assertFalse(p.validateLatch(optimistic));
+        assertTrue(p.validateLatch(p.optimisticLatch()));
+        fc.close();
+    }
+
+    /** A store that fails its writes on demand. */
+    private static class FailingStore implements PageStore {
+        private final PageStore store;
+        private volatile boolean failWrites = false;
+
+        FailingStore(PageStore store) {
+            this.store = store;
+        }
+
+        public int getPageSize() {
+            return store.getPageSize();
+        }
+
+        public ByteBuffer load(int blockNum) {
+            return store.load(blockNum);
+        }
+
+        public void write(int blockNum, ByteBuffer block) {
+            if (failWrites) {
+                throw new PageException("write of block " + blockNum + " failed");
+            }
+            store.write(blockNum, block);
+        }
+
+        public void force(int blockNum) {
+            store.force(blockNum);
+        }
+
+        public boolean writesThrough() {
+            return store.writesThrough();
+        }
+
+        public void preallocate(int fromBlock, int toBlock) {
+            store.preallocate(fromBlock, toBlock);
+        }
+
+        public void release(ByteBuffer block) {
+            store.release(block);
+        }
+
+        public void close() {
+            store.close();
+        }
+    }
 }
@@ -14,6 +14,10 @@ import java.io.File;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import edu.berkeley.cs186.database.concurrency.DummyLockContext;
 
 /**
 * Tests PageAllocator.java
@@ -434,4 +438,417 @@ public class TestPageAllocator {
         }
     }
 
+    @Test
+    public void TestPageAllocatorGroupDurability() throws IOException, FileNotFoundException {
+        File syncFile = tempFolder.newFile(fName + "sync");
+        PageAllocator pA = new PageAllocator(syncFile.getAbsolutePath(), true,
+                                             PageAllocator.Durability.SYNC, null);
+        long before = PageAllocator.getNumCacheMisses();
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, pA.allocPage(null));
+        }
+        long syncForces = PageAllocator.getNumCacheMisses() - before;
+        pA.close();
+
+        File groupFile = tempFolder.newFile(fName + "group");
+        pA = new PageAllocator(groupFile.getAbsolutePath(), true, PageAllocator.Durability.GROUP, null);
+        before = PageAllocator.getNumCacheMisses();
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, pA.allocPage(null));
+        }
+        pA.sync();
+        long groupForces = PageAllocator.getNumCacheMisses() - before;
+        assertTrue(groupForces < syncForces);
+        assertTrue(pA.freePage(null, 42));
+        pA.close();
+
+        pA = new PageAllocator(groupFile.getAbsolutePath(), false, PageAllocator.Durability.GROUP, null);
+        assertEquals(499, pA.getNumPages());
+        assertEquals(42, pA.allocPage(null));
+        pA.close();
+    }
+
+    @Test
+    public void TestPageAllocatorFetchMissMapsOnlyDataPage() throws IOException, FileNotFoundException {
+        File tempFile = tempFolder.newFile(fName);
+        PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false, null);
+        for (int i = 0; i < 10; i++) {
+            pA.allocPage(null);
+        }
+        PageAllocator.getBufferPool().removeIf(l -> true);
+
+        long before = PageAllocator.getNumCacheMisses();
+        pA.fetchPage(null, 7);
+        assertEquals(1, PageAllocator.getNumCacheMisses() - before);
+        pA.close();
+    }
+
+    @Test(expected = PageException.class)
+    public void TestPageAllocatorHeaderCountMismatch() throws IOException, FileNotFoundException {
+        File tempFile = tempFolder.newFile(fName);
+        PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, null);
+        for (int i = 0; i < 10; i++) {
+            pA.allocPage(null);
+        }
+        pA.close();
+
+        FileChannel fc = new RandomAccessFile(tempFile, "rw").getChannel();
+        ByteBuffer count = ByteBuffer.allocate(4);
+        count.putInt(0, 11);
+        fc.write(count, 0);
+        fc.close();
+
+        new PageAllocator(tempFile.getAbsolutePath(), false, null);
+    }
+
+    @Test
+    public void TestPageAllocatorChannelStore() throws IOException, FileNotFoundException {
+        File tempFile = tempFolder.newFile(fName);
+        BufferPool old = PageAllocator.getBufferPool();
+        // A tiny pool, so that most pages are evicted and read back from the file.
+        PageAllocator.setBufferPool(new BufferPool(4, 1));
+        try {
+            PageAllocator pA = new PageAllocator(new DummyLockContext(), tempFile.getAbsolutePath(),
+                                                 true, PageStore.CHANNEL, null);
+            for (int i = 0; i < 50; i++) {
+                assertEquals(i, pA.allocPage(null));
+                pA.fetchPage(null, i).getBuffer(null).putInt(0, i);
+            }
+            for (int i = 0; i < 50; i++) {
+                assertEquals(i, pA.fetchPage(null, i).getBuffer(null).getInt(0));
+            }
+            assertTrue(pA.freePage(null, 7));
+            pA.close();
+
+            pA = new PageAllocator(new DummyLockContext(), tempFile.getAbsolutePath(), false,
+                                   PageStore.CHANNEL, null);
+            assertEquals(49, pA.getNumPages());
+            assertEquals(49, pA.fetchPage(null, 49).getBuffer(null).getInt(0));
+            assertEquals(7, pA.allocPage(null));
+            assertEquals(0, pA.fetchPage(null, 7).getBuffer(null).getInt(0));
+            pA.close();
+        } finally {
+            PageAllocator.setBufferPool(old);
+        }
+    }
+
+    @Test
+    public void TestPageAllocatorMemoryStore() throws IOException, FileNotFoundException {
+        File tempFile = tempFolder.newFile(fName);
+        BufferPool old = PageAllocator.getBufferPool();
+        // A tiny pool, so that most pages are evicted and loaded again from the store.
+        PageAllocator.setBufferPool(new BufferPool(4, 1));
+        try {
+            // The master page, the header page and 30 data pages fit; the 31st doesn't.
+            PageAllocator pA = new PageAllocator(new DummyLockContext(), tempFile.getAbsolutePath(),
+                                                 true, PageStore.memory(32 * Page.pageSize), null);
+            for (int i = 0; i < 30; i++) {
+                assertEquals(i, pA.allocPage(null));
+                pA.fetchPage(null, i).getBuffer(null).putInt(0, i);
+            }
+            for (int i = 0; i < 30; i++) {
+                assertEquals(i, pA.fetchPage(null, i).getBuffer(null).getInt(0));
+            }
+            assertEquals(0, tempFile.length());
+
+            // Past the threshold, every page is written out to the file.
+            for (int i = 30; i < 50; i++) {
+                assertEquals(i, pA.allocPage(null));
+                pA.fetchPage(null, i).getBuffer(null).putInt(0, i);
+            }
+            assertTrue(tempFile.length() >= byteEstimate(29));
+            for (int i = 0; i < 50; i++) {
+                assertEquals(i, pA.fetchPage(null, i).getBuffer(null).getInt(0));
+            }
+            assertTrue(pA.freePage(null, 7));
+            assertEquals(49, pA.getNumPages());
+            pA.close();
+        } finally {
+            PageAllocator.setBufferPool(old);
+        }
+    }
+
+    @Test
+    public void TestPageAllocatorIteratorReadAhead() throws Exception {
+        File tempFile = tempFolder.newFile(fName);
+        PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false, null);
+        for (int i = 0; i < 20; i++) {
+            pA.allocPage(null);
+        }
+        pA.freePage(null, 12);
+        PageAllocator.getBufferPool().removeIf(l -> true);
+
+        Iterator<Page> iter = pA.iterator(null, 4);
+        long before = PageAllocator.getNumCacheMisses();
+        assertEquals(0, iter.next().getPageNum());
+        assertEquals(1, iter.next().getPageNum());
+
+        // After two pages in a row, pages 2 through 5 load in the background.
+        for (int i = 0; i < 500 && PageAllocator.getNumCacheMisses() - before < 6; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(6, PageAllocator.getNumCacheMisses() - before);
+        for (int i = 2; i < 6; i++) {
+            assertEquals(i, iter.next().getPageNum());
+        }
+
+        // Read-ahead skips freed pages and stops at the last page.
+        int count = 6;
+        while (iter.hasNext()) {
+            assertNotEquals(12, iter.next().getPageNum());
+            count++;
+        }
+        assertEquals(19, count);
+        pA.close();
+    }
+
+    @Test
+    public void TestPageAllocatorConcurrentMissesReadOnce() throws Exception {
+        File tempFile = tempFolder.newFile(fName);
+        BufferPool old = PageAllocator.getBufferPool();
+        PageAllocator.setBufferPool(new BufferPool(1024));
+        try {
+            PageAllocator pA = new PageAllocator(new DummyLockContext(), tempFile.getAbsolutePath(),
+                                                 true, PageStore.CHANNEL, null);
+            int[] pageNums = new int[200];
+            for (int i = 0; i < pageNums.length; i++) {
+                pageNums[i] = pA.allocPage(null);
+            }
+            PageAllocator.setBufferPool(new BufferPool(1024));
+
+            // Four fetches of every page race on the I/O threads; each page is read once.
+            long before = pA.getMetrics().getMisses();
+            List<CompletableFuture<List<Page>>> fetches = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                fetches.add(pA.fetchPages(null, pageNums));
+            }
+            for (CompletableFuture<List<Page>> f : fetches) {
+                for (Page p : f.get()) {
+                    p.unpin();
+                }
+            }
+            assertEquals(pageNums.length, pA.getMetrics().getMisses() - before);
+            pA.close();
+        } finally {
+            PageAllocator.setBufferPool(old);
+        }
+    }
+
+    @Test
+    public void TestPageAllocatorPageSize() throws IOException, FileNotFoundException {
+        File tempFile = tempFolder.newFile(fName);
+        int pageSize = 4 * Page.pageSize;
+        PageAllocator pA = new PageAllocator(new DummyLockContext(), tempFile.getAbsolutePath(), true,
+                                             pageSize, PageStore.MMAP, null);
+        assertEquals(pageSize, pA.getPageSize());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, pA.allocPage(null));
+        }
+        Page p = pA.fetchPage(null, 2);
+        assertEquals(pageSize, p.getPageSize());
+        p.getBuffer(null).putInt(pageSize - 4, 186);
+        pA.close();
+
+        // The master page, one header page and three data pages, all of the new size.
+        FileChannel fc = new RandomAccessFile(tempFile, "r").getChannel();
+        assertEquals(5 * pageSize, fc.size());
+        fc.close();
+
+        // The recorded page size wins over the requested one when the file is opened.
+        pA = new PageAllocator(new DummyLockContext(), tempFile.getAbsolutePath(), false,
+                               Page.pageSize, PageStore.MMAP, null);
+        assertEquals(pageSize, pA.getPageSize());
+        assertEquals(3, pA.getNumPages());
+        assertEquals(186, pA.fetchPage(null, 2).getBuffer(null).getInt(pageSize - 4));
+        pA.close();
+
+        // Wiping to the default page size starts the file over.
+        pA = new PageAllocator(tempFile.getAbsolutePath(), true, null);
+        assertEquals(Page.pageSize, pA.getPageSize());
+        assertEquals(0, pA.getNumPages());
+        pA.close();
+        pA = new PageAllocator(tempFile.getAbsolutePath(), false, null);
+        assertEquals(Page.pageSize, pA.getPageSize());
+        pA.close();
+    }
+
+    @Test
+    public void TestPageAllocatorExtents() throws IOException, FileNotFoundException {
+        File tempFile = tempFolder.newFile(fName);
+        PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, null);
+        PageAllocator.Extent a = pA.newExtent();
+        PageAllocator.Extent b = pA.newExtent();
+
+        // Allocations from two extents are not interleaved: each gets its own run of pages.
+        assertEquals(0, pA.allocPage(null, a));
+        assertEquals(8, pA.allocPage(null, b));
+        assertEquals(1, pA.allocPage(null, a));
+        assertEquals(9, pA.allocPage(null, b));
+
+        // Plain allocations skip the reserved pages.
+        assertEquals(16, pA.allocPage(null));
+        for (int i = 2; i < 8; i++) {
+            assertEquals(i, pA.allocPage(null, a));
+        }
+
+        // The second run of an extent is twice as long as the first.
+        assertEquals(17, pA.allocPage(null, a));
+        for (int i = 18; i < 33; i++) {
+            assertEquals(i, pA.allocPage(null, a));
+        }
+        assertEquals(33, pA.allocPage(null, a));
+        assertEquals(28, pA.getNumPages());
+        pA.close();
+
+        // Reservations are not persisted.
+        pA = new PageAllocator(tempFile.getAbsolutePath(), false, null);
+        assertEquals(10, pA.allocPage(null));
+        pA.close();
+    }
+
+    @Test
+    public void TestPageAllocatorPreallocation() throws IOException, FileNotFoundException {
+        File tempFile = tempFolder.newFile(fName);
+        for (PageStore.Factory store : new PageStore.Factory[] {PageStore.MMAP, PageStore.CHANNEL}) {
+            PageAllocator pA = new PageAllocator(new DummyLockContext(), tempFile.getAbsolutePath(),
+                                                 true, store, null);
+            pA.setPreallocationPages(16);
+            Page p = pA.fetchPage(null, pA.allocPage(null)).pin();
+            p.getBuffer(null).putInt(0, 186);
+            p.unpin();
+            for (int i = 1; i < 10; i++) {
+                pA.allocPage(null);
+            }
+            pA.close();
+
+            // The first allocation grew the file by 16 blocks past the first data page.
+            FileChannel fc = new RandomAccessFile(tempFile, "r").getChannel();
+            assertEquals((2 + 16) * Page.pageSize, fc.size());
+            fc.close();
+
+            pA = new PageAllocator(new DummyLockContext(), tempFile.getAbsolutePath(), false, store,
+                                   null);
+            assertEquals(10, pA.getNumPages());
+            assertEquals(186, pA.fetchPage(null, 0).getBuffer(null).getInt(0));
+            pA.close();
+        }
+    }
+
+    @Test
+    public void TestPageAllocatorFetchAsync() throws Exception {
+        File tempFile = tempFolder.newFile(fName);
+        PageAllocator pA = new PageAllocator(new DummyLockContext(), tempFile.getAbsolutePath(), true,
+                                             PageStore.CHANNEL, null);
+        for (int i = 0; i < 10; i++) {
+            Page p = pA.fetchPage(null, pA.allocPage(null)).pin();
+            p.getBuffer(null).putInt(0, i);
+            p.unpin();
+        }
+
+        Page p = pA.fetchPageAsync(null, 3).get();
+        assertTrue(p.isPinned());
+        assertEquals(3, p.getBuffer(null).getInt(0));
+        p.unpin();
+
+        List<Page> pages = pA.fetchPages(null, new int[] {9, 0, 5, 5}).get();
+        assertEquals(4, pages.size());
+        int[] expected = {9, 0, 5, 5};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], pages.get(i).getPageNum());
+            assertEquals(expected[i], pages.get(i).getBuffer(null).getInt(0));
+            pages.get(i).unpin();
+        }
+        assertFalse(pages.get(2).isPinned());
+
+        // One bad page number fails the batch and leaves no page pinned.
+        CompletableFuture<List<Page>> batch = pA.fetchPages(null, new int[] {1, 42, 2});
+        try {
+            batch.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof PageException);
+        }
+        assertFalse(pA.fetchPage(null, 1).isPinned());
+        assertFalse(pA.fetchPage(null, 2).isPinned());
+        pA.close();
+    }
+
+    @Test
+    public void TestPageAllocatorScanRing() throws IOException, FileNotFoundException {
+        BufferPool old = PageAllocator.getBufferPool();
+        BufferPool pool = new BufferPool(16, 1);
+        PageAllocator.setBufferPool(pool);
+        try {
+            // Not durable, so that no page is dirty and the clock takes victims in order.
+            PageAllocator hot = new PageAllocator(tempFolder.newFile("hot.temp").getAbsolutePath(),
+                                                  true, false, null);
+            PageAllocator big = new PageAllocator(tempFolder.newFile("big.temp").getAbsolutePath(),
+                                                  true, false, null);
+            for (int i = 0; i < 8; i++) {
+                hot.fetchPage(null, hot.allocPage(null));
+            }
+            for (int i = 0; i < 100; i++) {
+                big.allocPage(null);
+            }
+            for (int i = 0; i < 8; i++) {
+                hot.fetchPage(null, i);
+            }
+
+            // A full scan of a file much larger than the pool goes through a ring...
+            Iterator<Page> iter = big.iterator(null, 0);
+            int numScanned = 0;
+            while (iter.hasNext()) {
+                iter.next();
+                numScanned++;
+            }
+            assertEquals(100, numScanned);
+            assertTrue(pool.size() <= 16 + 16);
+
+            // ...and leaves the hot pages of the other file resident.
+            long misses = PageAllocator.getNumCacheMisses();
+            for (int i = 0; i < 8; i++) {
+                hot.fetchPage(null, i);
+            }
+            assertEquals(misses, PageAllocator.getNumCacheMisses());
+            hot.close();
+            big.close();
+        } finally {
+            PageAllocator.setBufferPool(old);
+        }
+    }
+
+    @Test
+    public void TestPageAllocatorIteratorRange() throws IOException, FileNotFoundException {
+        BufferPool old = PageAllocator.getBufferPool();
+        BufferPool pool = new BufferPool(16, 1);
+        PageAllocator.setBufferPool(pool);
+        try {
+            PageAllocator pA = new PageAllocator(tempFolder.newFile(fName).getAbsolutePath(),
+                                                 true, false, null);
+            for (int i = 0; i < 100; i++) {
+                pA.allocPage(null);
+            }
+            pA.freePage(null, 20);
+
+            // A range iterator returns the allocated pages of its range, through a ring.
+            PageAllocator.PageIterator iter = pA.iterator(null, 10, 60);
+            for (int i = 10; i < 60; i++) {
+                if (i == 20) {
+                    continue;
+                }
+                assertTrue(iter.hasNext());
+                Page p = iter.nextPinned();
+                assertEquals(i, p.getPageNum());
+                p.unpin();
+            }
+            assertFalse(iter.hasNext());
+            assertTrue(pool.size() <= 16 + 16 + 8);
+
+            iter = pA.iterator(null, 20, 21);
+            assertFalse(iter.hasNext());
+            pA.close();
+        } finally {
+            PageAllocator.setBufferPool(old);
+        }
+    }
 }